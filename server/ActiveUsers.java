@@ -7,19 +7,27 @@ package server;
 
 import javax.swing.*;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * <p> ActiveUsers class used to store active users that log on to the server. Allows to keep
  * track of active users and their tokens. Allows to search and remove active users.</p>
+ * <p> Users are kept in two concurrent hash indexes, one keyed by username and one keyed by token, so lookups
+ * take constant time and do not lock. The number of users is an atomic counter, a place is reserved in it before
+ * a user is added so the maximum number of users is never exceeded.</p>
  */
 public class ActiveUsers {
-    private int MAX_USERS;
-    private volatile ClientData[] users;
-    private int numOfUsers = 0;
+    private final int MAX_USERS;
+    private final ConcurrentHashMap<String, ClientData> usersByName;
+    private final ConcurrentHashMap<String, ClientData> usersByToken;
+    private final AtomicInteger numOfUsers = new AtomicInteger();
     private JTextArea textArea;
+    private volatile SessionExpiryWheel expiryWheel;
+    private volatile SearchResultCache searchCache;
 
     /**
-     * <p> Constructor for ActiveUsers class. Sets max number of users to the default value,  creates user array,
+     * <p> Constructor for ActiveUsers class. Sets max number of users to the default value,  creates user indexes,
      * updates user count.</p>
      *
      * <p> Called by: {@link Server.ServerGUI}</p>
@@ -31,101 +39,181 @@ public class ActiveUsers {
     public ActiveUsers(int MAX_USERS, JTextArea textArea){
         this.MAX_USERS = MAX_USERS;
         this.textArea = textArea;
-        users = new ClientData[MAX_USERS];
+        usersByName = new ConcurrentHashMap<>(MAX_USERS * 2);
+        usersByToken = new ConcurrentHashMap<>(MAX_USERS * 2);
         updateUserCountArea();
     }
 
     /**
-     * <p> This method adds a user to the active users array and updates user count gui.</p>
+     * <p> This method adds a user to the active users and updates user count gui.</p>
      *
      * <p>Called by: {@link Server.P2PServiceImpl}</p>
      *
-     * <p> Calls: {@link ActiveUsers#updateUserCountArea}</p>
+     * <p> Calls: {@link ActiveUsers#updateUserCountArea}, {@link Server.SessionExpiryWheel#schedule},
+     * {@link Server.SearchResultCache#invalidateUser}</p>
      *
      * @param token String of the user to add.
      * @param userName String of the user to add.
-     * @return ClientData object of the added user or <i>null</i> if no space left.
+     * @return ClientData object of the added user or <i>null</i> if no space left or user with that name is
+     * already active.
      */
-    public synchronized ClientData addUser(String token, String userName){
-        for(int i=0; i<users.length; i++){
-            // find null spot in array and add user
-            if(users[i] == null){
-                users[i] = new ClientData(userName, token);
-                numOfUsers++;
-                updateUserCountArea();
-                return users[i];
+    public ClientData addUser(String token, String userName){
+        if(token == null || userName == null){
+            return null;
+        }
+        // reserve a place for the user
+        int count;
+        do {
+            count = numOfUsers.get();
+            if(count >= MAX_USERS){
+                return null;
             }
+        } while (!numOfUsers.compareAndSet(count, count + 1));
+        ClientData user = new ClientData(userName, token);
+        if(usersByName.putIfAbsent(userName, user) != null){
+            numOfUsers.decrementAndGet();
+            return null;
+        }
+        usersByToken.put(token, user);
+        SessionExpiryWheel wheel = expiryWheel;
+        if(wheel != null){
+            wheel.schedule(user);
+        }
+        // files of the user appear in searches now
+        SearchResultCache cache = searchCache;
+        if(cache != null){
+            cache.invalidateUser(userName);
+        }
+        updateUserCountArea();
+        return user;
+    }
+
+    /**
+     * <p> This method sets the timing wheel that removes users whose session timed out. Users that are already
+     * active are scheduled on it.</p>
+     *
+     * <p> Called by: {@link Server.ServerGUI#activityTest}</p>
+     *
+     * <p> Calls: {@link Server.SessionExpiryWheel#schedule}</p>
+     *
+     * @param expiryWheel wheel tracking sessions of active users.
+     */
+    public void setExpiryWheel(SessionExpiryWheel expiryWheel){
+        this.expiryWheel = expiryWheel;
+        for(ClientData user : usersByName.values()){
+            expiryWheel.schedule(user);
         }
-        return null;
     }
 
     /**
-     * <p> This method removes a user from the active users array and updates user count gui.</p>
+     * <p> This method sets the cache of search results, which depend on the users that are active. Results cached
+     * for other users are cleared.</p>
+     *
+     * <p> Called by: {@link Server.ServerGUI#maxUsersListener}</p>
+     *
+     * <p> Calls: {@link Server.SearchResultCache#clear}</p>
+     *
+     * @param searchCache cache of search results.
+     */
+    public void setSearchCache(SearchResultCache searchCache){
+        this.searchCache = searchCache;
+        searchCache.clear();
+    }
+
+    /**
+     * <p> This method removes a user from the active users and updates user count gui.</p>
      *
      * <p> Called by: {@link Server.P2PServiceImpl}, {@link Server.ServerGUI}</p>
      *
-     * <p> Calls: {@link ActiveUsers#updateUserCountArea}</p>
+     * <p> Calls: {@link ActiveUsers#updateUserCountArea}, {@link Server.SearchResultCache#invalidateUser}</p>
      *
      * @param token of user to be removed.
      * @param userName of the user to be removed.
      * @return ClientData object of the removed user or <i>null</i> if user not found.
      */
-    public synchronized ClientData removeUser(String token, String userName){
-        for(int i=0; i<users.length; i++){
-            if (users[i] != null) {
-                // find user and replace with null
-                if (Objects.equals(users[i].getToken(), token) && users[i].getName().equals(userName)) {
-                    ClientData removedUser = users[i];
-                    users[i] = null;
-                    numOfUsers--;
-                    updateUserCountArea();
-                    return removedUser;
-                }
-            }
+    public ClientData removeUser(String token, String userName){
+        ClientData user = findUserByToken(token);
+        if(user == null || !Objects.equals(user.getName(), userName)){
+            return null;
+        }
+        // only the thread that removes the token entry removes the user
+        if(!usersByToken.remove(token, user)){
+            return null;
         }
-        return null;
+        usersByName.remove(userName, user);
+        numOfUsers.decrementAndGet();
+        SearchResultCache cache = searchCache;
+        if(cache != null){
+            cache.invalidateUser(userName);
+        }
+        updateUserCountArea();
+        return user;
     }
 
     /**
-     * <p> This method finds a user in the active users array based on their userName.</p>
+     * <p> This method finds an active user based on their userName.</p>
      *
      * <p> Called by: {@link Server.P2PServiceImpl}</p>
      *
      * @param userName of the user to find.
      * @return ClientData object of the found user or <i>null</i> if user was not found.
      */
-    public synchronized ClientData findUser(String userName){
-        for (ClientData user : users) {
-            if (user != null) {
-                if (user.getName().equals(userName)) {
-                    return user;
-                }
-            }
+    public ClientData findUser(String userName){
+        long start = System.nanoTime();
+        ClientData user = userName == null ? null : usersByName.get(userName);
+        ServiceMetrics.getShared().recordTimer(ServiceMetrics.USER_LOOKUP, System.nanoTime() - start);
+        return user;
+    }
+
+    /**
+     * <p> This method finds an active user based on their session token.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl}, {@link Server.ActiveUsers#removeUser}</p>
+     *
+     * @param token of the user to find.
+     * @return ClientData object of the found user or <i>null</i> if user was not found.
+     */
+    public ClientData findUserByToken(String token){
+        long start = System.nanoTime();
+        ClientData user = token == null ? null : usersByToken.get(token);
+        ServiceMetrics.getShared().recordTimer(ServiceMetrics.USER_LOOKUP, System.nanoTime() - start);
+        return user;
+    }
+
+    /**
+     * <p> This method records a heartbeat of an active user. The user is found with a single lookup of the token
+     * and marked active, without recording the lookup in ServiceMetrics.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl#sendHeartBeat}</p>
+     *
+     * <p> Calls: {@link Server.ClientData#markActive}</p>
+     *
+     * @param token session token of the user.
+     * @param userName name of the user, has to match the token.
+     * @return boolean true if the user is active and the token matches, false otherwise.
+     */
+    public boolean heartbeat(String token, String userName){
+        ClientData user = token == null ? null : usersByToken.get(token);
+        if(user == null || !user.getName().equals(userName)){
+            return false;
         }
-        return null;
+        user.markActive();
+        return true;
     }
 
     /**
      * <p> This method lists all active users.</p>
      *
-     * <p> Called by: {@link Server.P2PServiceImpl}, {@link Server.ServerGUI}</p>
+     * <p> Called by: {@link Server.ServerGUI}</p>
      *
-     * @return ClientData array of currently active users.
+     * @return ClientData array of currently active users or <i>null</i> if no users are active.
      */
-    public synchronized ClientData[] listActiveUsers(){
+    public ClientData[] listActiveUsers(){
+        ClientData[] activeUsers = usersByName.values().toArray(new ClientData[0]);
         // return null if no users are active
-        if(numOfUsers == 0){
+        if(activeUsers.length == 0){
             return null;
         }
-        int usersAdded = 0;
-        ClientData [] activeUsers = new ClientData[numOfUsers];
-        // add all active users to the new array to be returned
-        for (ClientData user : users) {
-            if (user != null && usersAdded <= numOfUsers) {
-                activeUsers[usersAdded] = user;
-                usersAdded++;
-            }
-        }
         return activeUsers;
     }
 
@@ -135,18 +223,18 @@ public class ActiveUsers {
      * <p> Called by: {@link Server.ActiveUsers}</p>
      */
     private void updateUserCountArea(){
-        textArea.setText(numOfUsers + "/" + MAX_USERS);
+        textArea.setText(numOfUsers.get() + "/" + MAX_USERS);
     }
 
     /**
-     * <p> This method checks if there is space for a new user in the array of active users.</p>
+     * <p> This method checks if there is space for a new user.</p>
      *
      * <p> Called by: {@link Server.P2PServiceImpl}</p>
      *
      * @return boolean true if there is space, false if there isn't.
      */
-    public synchronized boolean hasSpace(){
-        return numOfUsers < MAX_USERS;
+    public boolean hasSpace(){
+        return numOfUsers.get() < MAX_USERS;
     }
 
     /**
@@ -156,7 +244,7 @@ public class ActiveUsers {
      *
      * @return int number of active users.
      */
-    public synchronized int getNumOfUsers(){
-        return numOfUsers;
+    public int getNumOfUsers(){
+        return numOfUsers.get();
     }
 }
\ No newline at end of file
@@ -13,8 +13,9 @@ public class ClientData {
     private String password;
     private String token;
     private long port;
-    private boolean active;
-    private long lastActive;
+    private volatile boolean active;
+    private volatile long lastActiveMillis;
+    private volatile long heartbeatSequence = Long.MIN_VALUE;
 
     /**
      * <p> Constructor for ClientData class. Sets user name and token in addition to
@@ -70,7 +71,8 @@ public class ClientData {
     }
 
     /**
-     * <p> Sets activity status of user. Updates time of last user activity.</p>
+     * <p> Sets activity status of user. Updates time of last user activity, which is read by SessionExpiryWheel
+     * when the session of the user becomes due. The time is read from CoarseClock.</p>
      *
      * <p> Called by: {@link Server.ClientData}, {@link Server.P2PServiceImpl}</p>
      *
@@ -79,10 +81,37 @@ public class ClientData {
     public void setLastActive(boolean active) {
         this.active = active;
         if (active) {
-            this.lastActive = System.currentTimeMillis() / 1000L;
+            this.lastActiveMillis = CoarseClock.currentTimeMillis();
         }
     }
 
+    /**
+     * <p> Marks the user as active now. Used by heartbeats, which are most of the requests, so fields are only
+     * written when their value changes: repeated heartbeats within one tick of CoarseClock write nothing.</p>
+     *
+     * <p> Called by: {@link Server.ActiveUsers#heartbeat}</p>
+     */
+    public void markActive() {
+        long now = CoarseClock.currentTimeMillis();
+        if (lastActiveMillis != now) {
+            lastActiveMillis = now;
+        }
+        if (!active) {
+            active = true;
+        }
+    }
+
+    /**
+     * <p> Sets sequence number of the last UDP heartbeat accepted for this session.</p>
+     *
+     * <p> Called by: {@link Server.HeartbeatChannel}</p>
+     *
+     * @param heartbeatSequence sequence number of the heartbeat.
+     */
+    public void setHeartbeatSequence(long heartbeatSequence) {
+        this.heartbeatSequence = heartbeatSequence;
+    }
+
     /**
      * <p> Returns user name.</p>
      *
@@ -135,9 +164,32 @@ public class ClientData {
      *
      * <P> Called by: {@link Server.ServerGUI}</p>
      *
-     * @return long of user's last active time.
+     * @return long of user's last active time in seconds.
      */
     public long getLastActive() {
-        return this.lastActive;
+        return this.lastActiveMillis / 1000L;
+    }
+
+    /**
+     * <p> Returns sequence number of the last UDP heartbeat accepted for this session. Heartbeats with a number
+     * that is not higher are replays and are rejected.</p>
+     *
+     * <p> Called by: {@link Server.HeartbeatChannel}</p>
+     *
+     * @return long sequence number, Long.MIN_VALUE if no UDP heartbeat was accepted yet.
+     */
+    public long getHeartbeatSequence() {
+        return this.heartbeatSequence;
+    }
+
+    /**
+     * <p> Returns last active time of user in milliseconds.</p>
+     *
+     * <P> Called by: {@link Server.SessionExpiryWheel}</p>
+     *
+     * @return long of user's last active time in milliseconds.
+     */
+    public long getLastActiveMillis() {
+        return this.lastActiveMillis;
     }
 }
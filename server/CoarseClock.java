@@ -0,0 +1,52 @@
+/*
+ * 2023/10/13
+ * Anton Mishchenko
+ */
+
+package server;
+
+/**
+ * <p> CoarseClock class provides the current time for hot paths such as heartbeats, where reading the system
+ * clock on every request is wasted work. A single daemon thread reads the system clock every
+ * <i>p2p.clock.tickMillis</i> milliseconds (50 by default) and publishes it in a volatile field, so reading the
+ * time is a single volatile read. The time returned is at most one tick behind the system clock.</p>
+ */
+public final class CoarseClock {
+    private static final long TICK_MILLIS = Math.max(1, Long.getLong("p2p.clock.tickMillis", 50));
+    private static volatile long now = System.currentTimeMillis();
+
+    static {
+        Thread ticker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(TICK_MILLIS);
+                    } catch (InterruptedException e) {
+                        // the clock has to keep ticking for as long as the server runs
+                    }
+                    now = System.currentTimeMillis();
+                }
+            }
+        }, "coarse-clock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /**
+     * <p> Constructor for CoarseClock class, the clock only has static methods.</p>
+     */
+    private CoarseClock() {
+    }
+
+    /**
+     * <p> Returns the current time as of the last tick.</p>
+     *
+     * <p> Called by: {@link Server.ClientData}</p>
+     *
+     * @return long time in milliseconds, at most one tick behind System.currentTimeMillis.
+     */
+    public static long currentTimeMillis() {
+        return now;
+    }
+}
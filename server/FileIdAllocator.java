@@ -0,0 +1,126 @@
+/*
+ * 2023/10/13
+ * Anton Mishchenko
+ */
+
+package server;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p> FileIdAllocator class hands out File_IDs for new files. IDs are reserved from the FileIdSequence table in
+ * blocks of <i>p2p.fileId.blockSize</i> (1000 by default) and handed out from an AtomicLong, so registering a file
+ * needs no query to pick its ID and concurrent registrations never get the same one.</p>
+ * <p> A block is reserved with a single update on a connection of its own that is not part of any transaction,
+ * so a registration that is rolled back never returns IDs that were already handed out. IDs of a block that is
+ * not used up, for example when the server stops, are skipped.</p>
+ */
+public class FileIdAllocator {
+    private static final String SEQUENCE_NAME = "UserFiles";
+    private static final String RESERVE_BLOCK =
+            "update FileIdSequence set Next_ID = LAST_INSERT_ID(Next_ID + ?) where Sequence_Name = ?";
+    private static final String SELECT_RESERVED =
+            "select LAST_INSERT_ID()";
+    private final SQLConnectionManager sqlConnectionManager;
+    private final int blockSize = Math.max(1, Integer.getInteger("p2p.fileId.blockSize", 1000));
+    private volatile Block block = new Block(0, 0);
+
+    /**
+     * <p> Constructor for FileIdAllocator class.</p>
+     *
+     * <p> Called by: {@link Server.P2PDatabase}</p>
+     *
+     * @param sqlConnectionManager manager of the SQL connection pool.
+     */
+    public FileIdAllocator(SQLConnectionManager sqlConnectionManager) {
+        this.sqlConnectionManager = sqlConnectionManager;
+    }
+
+    /**
+     * <p> Returns an unused File_ID. Only every <i>p2p.fileId.blockSize</i>-th call runs a query.</p>
+     *
+     * <p> Called by: {@link Server.P2PDatabase#registerFile}</p>
+     *
+     * @return int new File_ID.
+     * @throws SQLException if a new block could not be reserved.
+     */
+    public int nextId() throws SQLException {
+        while (true) {
+            Block current = block;
+            long id = current.next.getAndIncrement();
+            if (id < current.end) {
+                return (int) id;
+            }
+            synchronized (this) {
+                // another thread may have reserved a block meanwhile
+                if (block == current) {
+                    block = reserveBlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * <p> Discards the IDs left in the current block, so the next ID is reserved from the database. Used after
+     * connecting to a database, which may not be the one the block was reserved from.</p>
+     *
+     * <p> Called by: {@link Server.P2PDatabase#createTables}</p>
+     */
+    public synchronized void reset() {
+        block = new Block(0, 0);
+    }
+
+    /**
+     * <p> Reserves the next block of IDs. The update stores the end of the block as LAST_INSERT_ID of the
+     * connection, which is then read back without another client being able to change it.</p>
+     *
+     * @return Block reserved IDs.
+     * @throws SQLException if there is a problem with the SQL connection or the sequence is missing or exhausted.
+     */
+    private Block reserveBlock() throws SQLException {
+        PooledConnection connection = sqlConnectionManager.borrowConnection();
+        ResultSet resultSet = null;
+        try {
+            PreparedStatement update = connection.prepareStatement(RESERVE_BLOCK);
+            update.setInt(1, blockSize);
+            update.setString(2, SEQUENCE_NAME);
+            if (update.executeUpdate() == 0) {
+                throw new SQLException("File ID sequence does not exist.");
+            }
+            resultSet = connection.prepareStatement(SELECT_RESERVED).executeQuery();
+            if (!resultSet.next()) {
+                throw new SQLException("File ID block was not reserved.");
+            }
+            long end = resultSet.getLong(1);
+            if (end > Integer.MAX_VALUE) {
+                throw new SQLException("File IDs are exhausted.");
+            }
+            return new Block(end - blockSize, end);
+        } finally {
+            if (resultSet != null) {
+                try {
+                    resultSet.close();
+                } catch (SQLException e) {
+                    // result set is discarded either way
+                }
+            }
+            sqlConnectionManager.returnConnection(connection);
+        }
+    }
+
+    /**
+     * <p> Reserved range of IDs, from the next ID to hand out up to the end of the range, exclusive.</p>
+     */
+    private static class Block {
+        private final AtomicLong next;
+        private final long end;
+
+        private Block(long start, long end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+}
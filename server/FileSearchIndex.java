@@ -0,0 +1,381 @@
+/*
+ * 2023/10/13
+ * Anton Mishchenko
+ */
+
+package server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p> FileSearchIndex class keeps every registered file in memory together with a trigram inverted index over the
+ * file name and type. Searches intersect the posting sets of the query trigrams, starting with the smallest one,
+ * and verify the remaining candidates with a substring check, so the cost of a search depends on the number of
+ * matching files rather than on the number of registered files.</p>
+ * <p> Matching is case-insensitive like the LIKE query it replaces. Every single character and pair of characters
+ * of a file is indexed as well, so queries shorter than three characters are answered from the posting set of the
+ * whole query instead of scanning all files. Only the empty query, which every file matches, returns all files.</p>
+ * <p> Every entry carries the root hash of the file content, so the service can merge files with the same
+ * content into one search result.</p>
+ * <p> The index is loaded from the UserFiles table when the server connects to the database and is kept up to date
+ * by P2PDatabase. Changes made while the index is being loaded are replayed once loading is finished.</p>
+ */
+public class FileSearchIndex {
+    private static final int GRAM_LENGTH = 3;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private Snapshot snapshot = new Snapshot();
+    private Snapshot loadingSnapshot;
+    private final List<FileEntry> pendingChanges = new ArrayList<>();
+    private volatile boolean ready = false;
+
+    /**
+     * <p> Returns true if the index was loaded and can answer searches.</p>
+     *
+     * <p> Called by: {@link Server.P2PDatabase#searchFiles}</p>
+     *
+     * @return boolean true if index is ready.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * <p> Starts loading the index. Files passed to {@link FileSearchIndex#addLoadedFile} are collected separately
+     * while searches keep using the previous contents.</p>
+     *
+     * <p> Called by: {@link Server.P2PDatabase#loadSearchIndex}</p>
+     */
+    public void startLoading() {
+        lock.writeLock().lock();
+        try {
+            loadingSnapshot = new Snapshot();
+            pendingChanges.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * <p> Adds a file read from the database to the index being loaded. Only called by the loading thread.</p>
+     *
+     * <p> Called by: {@link Server.P2PDatabase#loadSearchIndex}</p>
+     *
+     * @param fileId ID of the file.
+     * @param fileName name of the file.
+     * @param fileType type of the file.
+     * @param fileSize size of the file.
+     * @param userName username of the file owner.
+     * @param rootHash root hash of the file content, <i>null</i> if file was registered without hashes.
+     */
+    public void addLoadedFile(int fileId, String fileName, String fileType, String fileSize, String userName,
+                              String rootHash) {
+        loadingSnapshot.add(new FileEntry(fileId, fileName, fileType, fileSize, userName, rootHash));
+    }
+
+    /**
+     * <p> Replaces the contents of the index with the loaded files and replays changes made during loading.</p>
+     *
+     * <p> Called by: {@link Server.P2PDatabase#loadSearchIndex}</p>
+     */
+    public void finishLoading() {
+        lock.writeLock().lock();
+        try {
+            Snapshot loaded = loadingSnapshot;
+            loadingSnapshot = null;
+            // the database may or may not have included these changes, replaying them is idempotent
+            for (FileEntry change : pendingChanges) {
+                if (change.removed) {
+                    loaded.remove(change.fileId);
+                } else {
+                    loaded.add(change);
+                }
+            }
+            pendingChanges.clear();
+            snapshot = loaded;
+            ready = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * <p> Discards a partially loaded index. Searches go to the database until the index is loaded again.</p>
+     *
+     * <p> Called by: {@link Server.P2PDatabase#loadSearchIndex}</p>
+     */
+    public void abortLoading() {
+        lock.writeLock().lock();
+        try {
+            loadingSnapshot = null;
+            pendingChanges.clear();
+            snapshot = new Snapshot();
+            ready = false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * <p> Adds a newly registered file to the index.</p>
+     *
+     * <p> Called by: {@link Server.P2PDatabase#registerFile}</p>
+     *
+     * @param fileId ID of the file.
+     * @param fileName name of the file.
+     * @param fileType type of the file.
+     * @param fileSize size of the file.
+     * @param userName username of the file owner.
+     * @param rootHash root hash of the file content, <i>null</i> if file was registered without hashes.
+     */
+    public void addFile(int fileId, String fileName, String fileType, String fileSize, String userName,
+                        String rootHash) {
+        FileEntry entry = new FileEntry(fileId, fileName, fileType, fileSize, userName, rootHash);
+        lock.writeLock().lock();
+        try {
+            snapshot.add(entry);
+            if (loadingSnapshot != null) {
+                pendingChanges.add(entry);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * <p> Removes a deregistered file from the index.</p>
+     *
+     * <p> Called by: {@link Server.P2PDatabase#deregisterFile}</p>
+     *
+     * @param fileId ID of the file.
+     */
+    public void removeFile(int fileId) {
+        lock.writeLock().lock();
+        try {
+            snapshot.remove(fileId);
+            if (loadingSnapshot != null) {
+                pendingChanges.add(new FileEntry(fileId));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * <p> Searches for files whose name and type contain the search query, excluding files of the searching
+     * user.</p>
+     *
+     * <p> Called by: {@link Server.P2PDatabase#searchFiles}</p>
+     *
+     * @param searchQuery String to search for.
+     * @param userName username of the searching user.
+     * @return List of rows with File_ID, File_Name, File_Type, File_Size, User_Name of the owner and Root_Hash.
+     */
+    public List<String[]> search(String searchQuery, String userName) {
+        String query = normalize(searchQuery);
+        List<String[]> rows = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (FileEntry entry : snapshot.candidates(query)) {
+                if (entry.searchText.contains(query) && !entry.userName.equalsIgnoreCase(userName)) {
+                    rows.add(entry.toRow());
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return rows;
+    }
+
+    /**
+     * <p> Returns the number of files in the index.</p>
+     *
+     * @return int number of indexed files.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return snapshot.files.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * <p> Converts text to the form used for matching.</p>
+     *
+     * @param text text to convert, <i>null</i> is treated as empty.
+     * @return String lower case text.
+     */
+    private static String normalize(String text) {
+        return text == null ? "" : text.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * <p> Returns distinct grams of the text a file is indexed under: every substring of one to three
+     * characters.</p>
+     *
+     * @param text normalized text.
+     * @return Set of grams.
+     */
+    private static Set<String> grams(String text) {
+        Set<String> grams = new HashSet<>();
+        for (int length = 1; length <= GRAM_LENGTH; length++) {
+            for (int i = 0; i + length <= text.length(); i++) {
+                grams.add(text.substring(i, i + length));
+            }
+        }
+        return grams;
+    }
+
+    /**
+     * <p> Returns distinct grams a query is looked up with: its trigrams, or the whole query if it is shorter
+     * than three characters.</p>
+     *
+     * @param query normalized search query.
+     * @return Set of grams, empty for an empty query.
+     */
+    private static Set<String> queryGrams(String query) {
+        Set<String> grams = new HashSet<>();
+        if (query.length() < GRAM_LENGTH) {
+            if (!query.isEmpty()) {
+                grams.add(query);
+            }
+            return grams;
+        }
+        for (int i = 0; i + GRAM_LENGTH <= query.length(); i++) {
+            grams.add(query.substring(i, i + GRAM_LENGTH));
+        }
+        return grams;
+    }
+
+    /**
+     * <p> Contents of the index: files by ID and posting sets of file IDs by gram of one to three characters.</p>
+     */
+    private static class Snapshot {
+        private final Map<Integer, FileEntry> files = new HashMap<>();
+        private final Map<String, Set<Integer>> postings = new HashMap<>();
+
+        private void add(FileEntry entry) {
+            remove(entry.fileId);
+            files.put(entry.fileId, entry);
+            for (String gram : grams(entry.searchText)) {
+                Set<Integer> posting = postings.get(gram);
+                if (posting == null) {
+                    posting = new HashSet<>();
+                    postings.put(gram, posting);
+                }
+                posting.add(entry.fileId);
+            }
+        }
+
+        private void remove(int fileId) {
+            FileEntry entry = files.remove(fileId);
+            if (entry == null) {
+                return;
+            }
+            for (String gram : grams(entry.searchText)) {
+                Set<Integer> posting = postings.get(gram);
+                if (posting != null) {
+                    posting.remove(fileId);
+                    if (posting.isEmpty()) {
+                        postings.remove(gram);
+                    }
+                }
+            }
+        }
+
+        /**
+         * <p> Returns files that contain every gram of the query. Results still have to be verified since
+         * trigrams may appear in a different order.</p>
+         *
+         * @param query normalized search query.
+         * @return Collection of candidate files.
+         */
+        private Collection<FileEntry> candidates(String query) {
+            Set<String> queryGrams = queryGrams(query);
+            if (queryGrams.isEmpty()) {
+                // every file contains the empty query
+                return files.values();
+            }
+            List<Set<Integer>> sets = new ArrayList<>();
+            for (String gram : queryGrams) {
+                Set<Integer> posting = postings.get(gram);
+                if (posting == null) {
+                    return new ArrayList<>();
+                }
+                sets.add(posting);
+            }
+            // walk the smallest posting set and probe the others
+            Collections.sort(sets, new Comparator<Set<Integer>>() {
+                @Override
+                public int compare(Set<Integer> a, Set<Integer> b) {
+                    return Integer.compare(a.size(), b.size());
+                }
+            });
+            List<FileEntry> candidates = new ArrayList<>();
+            for (Integer fileId : sets.get(0)) {
+                boolean inAll = true;
+                for (int i = 1; i < sets.size() && inAll; i++) {
+                    inAll = sets.get(i).contains(fileId);
+                }
+                if (inAll) {
+                    candidates.add(files.get(fileId));
+                }
+            }
+            return candidates;
+        }
+    }
+
+    /**
+     * <p> Indexed file with the values returned by searches. Removal entries only carry the ID and are used to
+     * record removals made while the index is being loaded.</p>
+     */
+    private static class FileEntry {
+        private final int fileId;
+        private final boolean removed;
+        private final String fileName;
+        private final String fileType;
+        private final String fileSize;
+        private final String userName;
+        private final String rootHash;
+        private final String searchText;
+
+        private FileEntry(int fileId, String fileName, String fileType, String fileSize, String userName,
+                          String rootHash) {
+            this.fileId = fileId;
+            this.removed = false;
+            this.fileName = fileName;
+            this.fileType = fileType;
+            this.fileSize = fileSize;
+            this.userName = userName;
+            this.rootHash = rootHash;
+            // same text the LIKE query matched against: CONCAT_WS('', File_Name, File_Type)
+            this.searchText = normalize(fileName) + normalize(fileType);
+        }
+
+        private FileEntry(int fileId) {
+            this.fileId = fileId;
+            this.removed = true;
+            this.fileName = null;
+            this.fileType = null;
+            this.fileSize = null;
+            this.userName = null;
+            this.rootHash = null;
+            this.searchText = "";
+        }
+
+        private String[] toRow() {
+            return new String[]{Integer.toString(fileId), fileName, fileType, fileSize, userName, rootHash};
+        }
+    }
+}
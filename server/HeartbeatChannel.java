@@ -0,0 +1,239 @@
+/*
+ * 2023/10/13
+ * Anton Mishchenko
+ */
+
+package server;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p> HeartbeatChannel class receives heartbeats of clients as single UDP datagrams, so idle clients keep their
+ * sessions without a SOAP request every 30 seconds. It is started only when <i>p2p.heartbeat.udpPort</i> is set,
+ * bound to <i>p2p.heartbeat.udpHost</i> (all addresses by default), and clients learn the port with the
+ * getHeartbeatChannel WebMethod.</p>
+ * <p> A heartbeat holds a sequence number and the username, and is authenticated with an HMAC-SHA256 keyed with
+ * the session token, so the token itself is never sent. A heartbeat is accepted only if its HMAC matches the token
+ * of the active user and its sequence number is higher than the last one accepted for the session, which rejects
+ * forged and replayed datagrams. Accepted heartbeats mark the user active and are answered with an ack carrying
+ * the same sequence number and an HMAC of its own. Rejected heartbeats are not answered, so the channel cannot be
+ * used to probe sessions, and clients fall back to sendHeartBeat.</p>
+ * <p> Heartbeat: magic, version, type 1, sequence (8 bytes), username length (2 bytes), username in UTF-8, HMAC
+ * (16 bytes). Ack: magic, version, type 2, sequence, HMAC. Numbers are big-endian and the HMAC is the first 16
+ * bytes of the HMAC-SHA256 of everything before it.</p>
+ */
+public class HeartbeatChannel {
+    public static final int MAGIC = 0x50325048;
+    public static final byte VERSION = 1;
+    public static final byte TYPE_HEARTBEAT = 1;
+    public static final byte TYPE_ACK = 2;
+    public static final int MAC_LENGTH = 16;
+    public static final int MAX_NAME_LENGTH = 255;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MAX_DATAGRAM = 4 + 1 + 1 + 8 + 2 + MAX_NAME_LENGTH + MAC_LENGTH;
+    private final ServerGUI serverGUI;
+    private final OutputManager outputManager;
+    private final DatagramSocket socket;
+    private final Mac mac;
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private volatile boolean running = true;
+
+    /**
+     * <p> Constructor for HeartbeatChannel class. Binds the socket, heartbeats are received after
+     * {@link HeartbeatChannel#start} is called.</p>
+     *
+     * @param serverGUI Server GUI holding the active users.
+     * @param outputManager manager used to print errors to the Server GUI.
+     * @param address address to bind the socket to.
+     * @throws SocketException if the socket could not be bound.
+     * @throws GeneralSecurityException if HMAC-SHA256 is not available.
+     */
+    private HeartbeatChannel(ServerGUI serverGUI, OutputManager outputManager, InetSocketAddress address)
+            throws SocketException, GeneralSecurityException {
+        this.serverGUI = serverGUI;
+        this.outputManager = outputManager;
+        this.mac = Mac.getInstance(MAC_ALGORITHM);
+        this.socket = new DatagramSocket(address);
+    }
+
+    /**
+     * <p> Opens the channel if <i>p2p.heartbeat.udpPort</i> is set and starts the thread receiving heartbeats.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl}</p>
+     *
+     * @param serverGUI Server GUI holding the active users.
+     * @param outputManager manager used to print messages to the Server GUI.
+     * @return HeartbeatChannel started channel or <i>null</i> if it is not enabled or could not be opened.
+     */
+    public static HeartbeatChannel start(ServerGUI serverGUI, OutputManager outputManager) {
+        int port = Integer.getInteger("p2p.heartbeat.udpPort", 0);
+        if (port <= 0) {
+            return null;
+        }
+        String host = System.getProperty("p2p.heartbeat.udpHost");
+        InetSocketAddress address = host == null || host.isEmpty() ?
+                new InetSocketAddress(port) : new InetSocketAddress(host, port);
+        try {
+            final HeartbeatChannel channel = new HeartbeatChannel(serverGUI, outputManager, address);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    channel.receive();
+                }
+            }, "udp-heartbeat");
+            thread.setDaemon(true);
+            thread.start();
+            outputManager.printToTextArea("UDP heartbeats accepted on port " + port);
+            return channel;
+        } catch (SocketException | GeneralSecurityException e) {
+            outputManager.printToTextArea("ERROR: UDP heartbeat channel could not be opened: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * <p> Returns the port heartbeats are received on.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl#getHeartbeatChannel}</p>
+     *
+     * @return int local port of the socket.
+     */
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    /**
+     * <p> Returns the number of heartbeats accepted.</p>
+     *
+     * @return long number of accepted heartbeats.
+     */
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    /**
+     * <p> Returns the number of datagrams rejected as malformed, forged, replayed or from inactive users.</p>
+     *
+     * @return long number of rejected datagrams.
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * <p> Stops receiving heartbeats and closes the socket.</p>
+     */
+    public void close() {
+        running = false;
+        socket.close();
+    }
+
+    /**
+     * <p> Loop of the receiving thread. A single thread receives and answers all heartbeats, each takes one user
+     * lookup and two HMACs.</p>
+     */
+    private void receive() {
+        byte[] buffer = new byte[MAX_DATAGRAM + 1];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (running) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                byte[] ack = handle(buffer, packet.getLength());
+                if (ack == null) {
+                    rejected.increment();
+                    continue;
+                }
+                accepted.increment();
+                socket.send(new DatagramPacket(ack, ack.length, packet.getSocketAddress()));
+            } catch (IOException e) {
+                if (running) {
+                    outputManager.printToTextArea("ERROR: when receiving UDP heartbeat: " + e);
+                }
+            } catch (RuntimeException e) {
+                outputManager.printToTextArea("ERROR: when handling UDP heartbeat: " + e);
+            }
+        }
+    }
+
+    /**
+     * <p> Checks a heartbeat and marks its user active.</p>
+     *
+     * @param data received datagram.
+     * @param length length of the datagram.
+     * @return byte[] ack to send back, <i>null</i> if the heartbeat was rejected.
+     */
+    private byte[] handle(byte[] data, int length) {
+        if (length > MAX_DATAGRAM) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        String userName;
+        long sequence;
+        try {
+            if (buffer.getInt() != MAGIC || buffer.get() != VERSION || buffer.get() != TYPE_HEARTBEAT) {
+                return null;
+            }
+            sequence = buffer.getLong();
+            int nameLength = buffer.getShort() & 0xFFFF;
+            if (nameLength > MAX_NAME_LENGTH || buffer.remaining() != nameLength + MAC_LENGTH) {
+                return null;
+            }
+            userName = new String(data, buffer.position(), nameLength, StandardCharsets.UTF_8);
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+        ActiveUsers users = serverGUI.getActiveUsers();
+        ClientData user = users == null ? null : users.findUser(userName);
+        if (user == null) {
+            return null;
+        }
+        int signedLength = length - MAC_LENGTH;
+        byte[] expected = sign(user.getToken(), data, signedLength);
+        if (!MessageDigest.isEqual(expected, Arrays.copyOfRange(data, signedLength, length))) {
+            return null;
+        }
+        // only this thread accepts UDP heartbeats, so checking and setting the sequence needs no lock
+        if (sequence <= user.getHeartbeatSequence()) {
+            return null;
+        }
+        user.setHeartbeatSequence(sequence);
+        user.markActive();
+        ByteBuffer ack = ByteBuffer.allocate(4 + 1 + 1 + 8 + MAC_LENGTH);
+        ack.putInt(MAGIC).put(VERSION).put(TYPE_ACK).putLong(sequence);
+        ack.put(sign(user.getToken(), ack.array(), ack.position()));
+        return ack.array();
+    }
+
+    /**
+     * <p> Computes the truncated HMAC-SHA256 of the start of a datagram, keyed with the session token.</p>
+     *
+     * @param token session token of the user.
+     * @param data datagram.
+     * @param length number of bytes to sign.
+     * @return byte[] first MAC_LENGTH bytes of the HMAC.
+     */
+    private byte[] sign(String token, byte[] data, int length) {
+        try {
+            mac.init(new SecretKeySpec(token.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC key was rejected.", e);
+        }
+        mac.update(data, 0, length);
+        return Arrays.copyOf(mac.doFinal(), MAC_LENGTH);
+    }
+}
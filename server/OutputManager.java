@@ -6,53 +6,378 @@
 package server;
 
 import javax.swing.JTextArea;
-import java.time.LocalDateTime;
+import javax.swing.SwingUtilities;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * <p> OutputManager class is used to print messages to Server GUI text area. It uses a lock to make
- * sure that only one thread can access the text area at one time. Messages displayed by this method
- * are start with the current hour, minute and second.</p>
+ * <p> OutputManager class is used to print messages to Server GUI text area. Messages displayed by this method
+ * start with the current hour, minute and second.</p>
+ * <p> Printing never blocks the calling thread. Messages are put into a bounded lock-free ring buffer of
+ * <i>p2p.log.capacity</i> messages (8192 by default) and a single consumer thread formats them and hands them to
+ * the sinks in batches. The text area sink appends every batch on the event dispatch thread, with at most one
+ * append waiting there at a time. When the event dispatch thread falls behind and the text waiting for it reaches
+ * <i>p2p.log.textAreaBacklog</i> characters (1 MB by default), the consumer waits for the append, so the buffer
+ * fills up and the drop policy below applies instead of the waiting text growing without limit. Messages are also written to the file set by <i>p2p.log.file</i>, if any, and
+ * further sinks can be added with {@link OutputManager#addSink}.</p>
+ * <p> When the buffer is full new messages are dropped and counted instead of waiting for the consumer, and the
+ * number of dropped messages is printed once there is room again.</p>
  */
 public class OutputManager {
-    private JTextArea serverOutputArea;
-    private static Lock textLock;
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+    private static final int MAX_BATCH = 512;
+    private static final long IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<Message> messages;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final List<LogSink> sinks = new CopyOnWriteArrayList<>();
+    private final Thread consumer;
+    private long head = 0;
+    private long reportedDropped = 0;
+    private long formattedSecond = -1;
+    private String formattedTime = "";
+    private volatile boolean consumerWaiting = false;
+    private volatile boolean closing = false;
+
+    /**
+     * <p> Sink that receives formatted messages from the consumer thread, one batch of lines at a time.</p>
+     */
+    public interface LogSink {
+        /**
+         * <p> Writes a batch of formatted messages. Called only by the consumer thread.</p>
+         *
+         * @param lines messages, each ending with a line break.
+         * @throws IOException if the messages could not be written.
+         */
+        void write(String lines) throws IOException;
+
+        /**
+         * <p> Releases resources of the sink when the server stops.</p>
+         */
+        void close();
+    }
 
     /**
      * <p> Constructor for the OutputManager class.
-     * It takes in a JTextArea that will be used to display messages to the Server user. And
-     * initializes the lock that will be used by this manager.</p>
+     * It takes in a JTextArea that will be used to display messages to the Server user, adds the file sink if
+     * <i>p2p.log.file</i> is set and starts the consumer thread.</p>
      *
      * <p> Called by: {@link Server.P2PServiceImpl}</p>
      *
      * @param serverOutputArea JTextArea from Server GUI for displaying messages.
      */
     public OutputManager(JTextArea serverOutputArea) {
-        this.serverOutputArea = serverOutputArea;
-        textLock = new ReentrantLock();
+        // round up to a power of two so the slot of a sequence is found with a mask
+        int requested = Math.max(2, Math.min(1 << 20, Integer.getInteger("p2p.log.capacity", 8192)));
+        this.capacity = Integer.highestOneBit(requested - 1) << 1;
+        this.mask = capacity - 1;
+        this.messages = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        sinks.add(new TextAreaSink(serverOutputArea));
+        String logFile = System.getProperty("p2p.log.file");
+        if (logFile != null && !logFile.isEmpty()) {
+            try {
+                sinks.add(new FileSink(logFile));
+            } catch (IOException e) {
+                printToTextArea("ERROR: log file " + logFile + " could not be opened: " + e);
+            }
+        }
+        consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        }, "output-manager");
+        consumer.setDaemon(true);
+        consumer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        }));
     }
 
     /**
-     * <p> This method prints the given text to the Server GUI serverOutputArea. It uses a lock
-     * to ensure only one thread can access the text area at one time. It appends current hour, minute and second
-     * to the message printed.</p>
+     * <p> This method prints the given text to the Server GUI serverOutputArea and the other sinks. It puts the
+     * message into the ring buffer and returns right away, the message is dropped if the buffer is full. Current
+     * hour, minute and second are added to the message printed.</p>
      *
      * <p> Called by: {@link Server.SQLConnectionManager}, {@link Server.ServerGUI}, {@link Server.P2PServiceImpl}</p>
      *
      * @param text String text to be printed to the Server GUI.
      */
     public void printToTextArea(String text) {
+        Message message = new Message(System.currentTimeMillis(), text);
+        while (true) {
+            long sequence = tail.get();
+            int slot = (int) sequence & mask;
+            long available = sequences.get(slot);
+            if (available == sequence) {
+                if (tail.compareAndSet(sequence, sequence + 1)) {
+                    messages.set(slot, message);
+                    // publishes the message to the consumer
+                    sequences.set(slot, sequence + 1);
+                    break;
+                }
+            } else if (available < sequence) {
+                // slot still holds a message the consumer has not taken, buffer is full
+                dropped.incrementAndGet();
+                return;
+            }
+        }
+        if (consumerWaiting) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * <p> Adds a sink that receives every message printed from now on.</p>
+     *
+     * @param sink sink to add.
+     */
+    public void addSink(LogSink sink) {
+        sinks.add(sink);
+    }
+
+    /**
+     * <p> Returns the number of messages dropped because the buffer was full.</p>
+     *
+     * @return long number of dropped messages.
+     */
+    public long getDroppedMessages() {
+        return dropped.get();
+    }
+
+    /**
+     * <p> Stops the consumer after it wrote the messages already in the buffer and closes the sinks. Called by
+     * the shutdown hook.</p>
+     */
+    private void close() {
+        closing = true;
+        LockSupport.unpark(consumer);
         try {
-            // lock the text area so only one thread can access it at a time
-            textLock.lock();
-            // add current time and print the text to the text area
-            DateTimeFormatter dtf = DateTimeFormatter.ofPattern("HH:mm:ss");
-            serverOutputArea.append("(" + dtf.format(LocalDateTime.now()) + ") " + text + "\n");
-        } finally {
-            // unlock the text area
-            textLock.unlock();
+            consumer.join(TimeUnit.SECONDS.toMillis(2));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * <p> Loop of the consumer thread. Takes up to MAX_BATCH messages at a time, formats them and writes them to
+     * every sink, and parks while the buffer is empty.</p>
+     */
+    private void consume() {
+        StringBuilder batch = new StringBuilder();
+        while (true) {
+            int taken = 0;
+            Message message;
+            while (taken < MAX_BATCH && (message = poll()) != null) {
+                append(batch, message.time, message.text);
+                taken++;
+            }
+            long droppedNow = dropped.get();
+            if (droppedNow != reportedDropped) {
+                append(batch, System.currentTimeMillis(), (droppedNow - reportedDropped) +
+                        " messages were dropped, output could not keep up.");
+                reportedDropped = droppedNow;
+            }
+            if (batch.length() > 0) {
+                write(batch.toString());
+                batch.setLength(0);
+            }
+            if (taken < MAX_BATCH) {
+                if (closing) {
+                    break;
+                }
+                consumerWaiting = true;
+                // a message published before the flag was set would not unpark the consumer
+                if (!hasMessage()) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                consumerWaiting = false;
+            }
+        }
+        for (LogSink sink : sinks) {
+            sink.close();
+        }
+    }
+
+    /**
+     * <p> Takes the next message from the ring buffer. Called only by the consumer thread.</p>
+     *
+     * @return Message next message, <i>null</i> if the buffer is empty.
+     */
+    private Message poll() {
+        int slot = (int) head & mask;
+        if (sequences.get(slot) != head + 1) {
+            return null;
+        }
+        Message message = messages.get(slot);
+        messages.set(slot, null);
+        // frees the slot for the producer one lap ahead
+        sequences.set(slot, head + capacity);
+        head++;
+        return message;
+    }
+
+    /**
+     * <p> Checks if the next message was published. Called only by the consumer thread.</p>
+     *
+     * @return boolean true if the buffer is not empty.
+     */
+    private boolean hasMessage() {
+        return sequences.get((int) head & mask) == head + 1;
+    }
+
+    /**
+     * <p> Appends a formatted message to the batch. The time is formatted once per second.</p>
+     *
+     * @param batch batch of formatted messages.
+     * @param time time the message was printed in milliseconds.
+     * @param text text of the message.
+     */
+    private void append(StringBuilder batch, long time, String text) {
+        long second = time / 1000;
+        if (second != formattedSecond) {
+            formattedTime = TIME_FORMAT.format(Instant.ofEpochMilli(time));
+            formattedSecond = second;
+        }
+        batch.append('(').append(formattedTime).append(") ").append(text).append('\n');
+    }
+
+    /**
+     * <p> Writes a batch to every sink. A failing sink does not stop the others.</p>
+     *
+     * @param lines formatted messages.
+     */
+    private void write(String lines) {
+        for (LogSink sink : sinks) {
+            try {
+                sink.write(lines);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Output could not be written: " + e);
+            }
+        }
+    }
+
+    /**
+     * <p> Message waiting in the ring buffer: time it was printed and its text.</p>
+     */
+    private static class Message {
+        private final long time;
+        private final String text;
+
+        private Message(long time, String text) {
+            this.time = time;
+            this.text = text;
+        }
+    }
+
+    /**
+     * <p> Sink appending messages to the Server GUI text area on the event dispatch thread. Batches arriving while
+     * an append is still waiting are added to it, so the event queue holds at most one append of this sink. Once
+     * the waiting text reaches its limit the consumer is blocked until the append took it.</p>
+     */
+    private static class TextAreaSink implements LogSink {
+        private static final int MAX_WAITING =
+                Math.max(MAX_BATCH * 128, Integer.getInteger("p2p.log.textAreaBacklog", 1 << 20));
+        private final JTextArea textArea;
+        private final StringBuilder waiting = new StringBuilder();
+
+        private TextAreaSink(JTextArea textArea) {
+            this.textArea = textArea;
+        }
+
+        @Override
+        public void write(String lines) throws IOException {
+            synchronized (waiting) {
+                // an append is scheduled while text is waiting, it empties the builder and wakes the consumer
+                while (waiting.length() >= MAX_WAITING) {
+                    try {
+                        waiting.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for the text area.");
+                    }
+                }
+                boolean scheduled = waiting.length() > 0;
+                waiting.append(lines);
+                if (scheduled) {
+                    return;
+                }
+            }
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    String text;
+                    synchronized (waiting) {
+                        text = waiting.toString();
+                        waiting.setLength(0);
+                        waiting.notifyAll();
+                    }
+                    textArea.append(text);
+                }
+            });
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * <p> Sink appending messages to a log file. The file is flushed after every batch.</p>
+     */
+    public static class FileSink implements LogSink {
+        private final BufferedWriter writer;
+
+        /**
+         * <p> Constructor for FileSink class. Opens the file for appending, creating it if it does not exist.</p>
+         *
+         * @param path path of the log file.
+         * @throws IOException if the file could not be opened.
+         */
+        public FileSink(String path) throws IOException {
+            this.writer = Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+
+        @Override
+        public void write(String lines) throws IOException {
+            writer.write(lines);
+            writer.flush();
+        }
+
+        @Override
+        public void close() {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                // file is closed either way
+            }
         }
     }
-}
\ No newline at end of file
+}
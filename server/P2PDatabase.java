@@ -0,0 +1,937 @@
+/*
+ * 2023/10/13
+ * Anton Mishchenko
+ */
+
+package server;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p> P2PDatabase class is the data access layer used by P2PServiceImpl. It holds every query the server runs as a
+ * parameterized statement, borrows a connection from SQLConnectionManager for each operation and returns it when
+ * the operation is done.</p>
+ * <p> Statements are prepared through {@link PooledConnection#prepareStatement}, which caches them per connection,
+ * so repeated requests reuse statements the database has already parsed. Methods in this class throw SQLException
+ * and leave reporting of errors to the caller.</p>
+ * <p> File searches are answered from a FileSearchIndex loaded by {@link P2PDatabase#loadSearchIndex}. Until the
+ * index is loaded searches fall back to a LIKE query on the database.</p>
+ * <p> Content hashes of files are stored once per distinct content in the Contents table, keyed by the root hash.
+ * The FileContents table links every hashed File_ID to its content, so all files with the same content can be
+ * found from any one of them. Both tables are created by {@link P2PDatabase#createTables} if they do not exist
+ * yet.</p>
+ * <p> File_IDs of new files are handed out by a FileIdAllocator from blocks reserved in the FileIdSequence
+ * table.</p>
+ * <p> Every statement is recorded in ServiceMetrics and SlowQueryLog with the time it took, including the wait
+ * for its connection and reading its rows.</p>
+ * <p> Files of a user can also be registered and removed in bulk. Each bulk operation runs its statements as JDBC
+ * batches in one transaction and reports the result of every file.</p>
+ * <p> Registrations lock the row of the user in the Users table before checking the file limit and duplicates, so
+ * concurrent registrations of the same user run one after another, can not exceed the limit together and can not
+ * insert the same file twice. The schema is not changed for this. A database that has a unique key on User_Name,
+ * File_Name, File_Type and File_Path reports a duplicate through the key instead, which is treated the same.</p>
+ */
+public class P2PDatabase {
+    private static final int ER_DUP_ENTRY = 1062;
+    private static final String SELECT_USER =
+            "select User_Name, User_Password, User_IP, User_Port from Users where User_Name = ?";
+    private static final String INSERT_USER =
+            "insert into Users (User_Name, User_Password, User_IP, User_Port) values (?, ?, ?, ?)";
+    private static final String UPDATE_USER_IP =
+            "update Users set User_IP = ? where User_Name = ?";
+    private static final String UPDATE_USER_PORT =
+            "update Users set User_Port = ? where User_Name = ?";
+    private static final String LOCK_USER =
+            "select 1 from Users where User_Name = ? for update";
+    private static final String COUNT_USER_FILES =
+            "select count(*) from UserFiles where User_Name = ?";
+    // MySQL only allows the target table of an insert in the select part as a derived table
+    private static final String INSERT_USER_FILE_CHECKED =
+            "insert into UserFiles (File_ID, File_Name, File_Type, File_Path, File_Size, User_Name)" +
+            " select ?, ?, ?, ?, ?, ? from (select count(*) as Files," +
+            " coalesce(sum(File_Name = ? and File_Type = ? and File_Path = ?), 0) as Copies" +
+            " from UserFiles where User_Name = ?) Owned where Owned.Files < ? and Owned.Copies = 0";
+    private static final String FIND_USER_FILE_CONTENT =
+            "select UserFiles.File_ID, Root_Hash from UserFiles" +
+            " left join FileContents on UserFiles.File_ID = FileContents.File_ID" +
+            " where User_Name = ? and File_Name = ? and File_Type = ? and File_Path = ?";
+    private static final String DELETE_USER_FILE =
+            "delete from UserFiles where User_Name = ? and File_Name = ? and File_Type = ? and File_Path = ?";
+    private static final String SELECT_USER_FILES =
+            "select File_ID, File_Name, File_Type, File_Path, File_Size from UserFiles where User_Name = ?";
+    private static final String SEARCH_FILES =
+            "select UserFiles.File_ID, File_Name, File_Type, File_Size, User_Name, Root_Hash from UserFiles" +
+            " left join FileContents on UserFiles.File_ID = FileContents.File_ID" +
+            " where CONCAT_WS('', File_Name, File_Type) like ? and User_Name != ?";
+    private static final String SELECT_ALL_FILES =
+            "select UserFiles.File_ID, File_Name, File_Type, File_Size, User_Name, Root_Hash from UserFiles" +
+            " left join FileContents on UserFiles.File_ID = FileContents.File_ID";
+    private static final String SELECT_FILE_HOSTS =
+            "select Users.User_Name, User_IP, User_Port, File_Path, File_Name, File_Type from Users" +
+            " inner join UserFiles on Users.User_Name = UserFiles.User_Name" +
+            " where File_ID = ? and UserFiles.User_Name != ?";
+    private static final String SELECT_CONTENT_HOSTS =
+            "select Users.User_Name, User_IP, User_Port, Hosted.File_Path, Hosted.File_Name, Hosted.File_Type" +
+            " from FileContents Requested" +
+            " inner join UserFiles RequestedFile on RequestedFile.File_ID = Requested.File_ID" +
+            " inner join FileContents Same on Same.Root_Hash = Requested.Root_Hash" +
+            " inner join UserFiles Hosted on Hosted.File_ID = Same.File_ID and Hosted.File_Size = RequestedFile.File_Size" +
+            " inner join Users on Users.User_Name = Hosted.User_Name" +
+            " where Requested.File_ID = ? and Hosted.User_Name != ?";
+    private static final String CREATE_FILE_ID_SEQUENCE =
+            "create table if not exists FileIdSequence (Sequence_Name varchar(64) not null primary key," +
+            " Next_ID bigint not null)";
+    private static final String INIT_FILE_ID_SEQUENCE =
+            "insert ignore into FileIdSequence (Sequence_Name, Next_ID)" +
+            " select 'UserFiles', coalesce(max(File_ID), 0) + 1 from UserFiles";
+    private static final String CREATE_CONTENTS =
+            "create table if not exists Contents (Root_Hash char(64) not null primary key, File_Size bigint not null," +
+            " Piece_Size int not null, Piece_Hashes longtext not null)";
+    private static final String CREATE_FILE_CONTENTS =
+            "create table if not exists FileContents (File_ID int not null primary key, Root_Hash char(64) not null," +
+            " key (Root_Hash))";
+    private static final String INSERT_CONTENT =
+            "insert ignore into Contents (Root_Hash, File_Size, Piece_Size, Piece_Hashes) values (?, ?, ?, ?)";
+    private static final String INSERT_FILE_CONTENT =
+            "insert into FileContents (File_ID, Root_Hash) values (?, ?)";
+    private static final String SELECT_FILE_HASHES =
+            "select Contents.Root_Hash, Piece_Size, Piece_Hashes from FileContents" +
+            " inner join Contents on Contents.Root_Hash = FileContents.Root_Hash where File_ID = ?";
+    private static final String DELETE_FILE_CONTENT =
+            "delete from FileContents where File_ID = ?";
+    private static final String DELETE_UNUSED_CONTENT =
+            "delete from Contents where Root_Hash = ?" +
+            " and not exists (select * from FileContents where FileContents.Root_Hash = Contents.Root_Hash)";
+    private final SQLConnectionManager sqlConnectionManager;
+    private final FileSearchIndex searchIndex;
+    private final FileIdAllocator fileIdAllocator;
+
+    /**
+     * <p> Constructor for P2PDatabase class. Sets the connection manager used to borrow connections and the index
+     * used to answer file searches.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl}</p>
+     *
+     * @param sqlConnectionManager manager of the SQL connection pool.
+     * @param searchIndex in memory index of registered files.
+     */
+    public P2PDatabase(SQLConnectionManager sqlConnectionManager, FileSearchIndex searchIndex) {
+        this.sqlConnectionManager = sqlConnectionManager;
+        this.searchIndex = searchIndex;
+        this.fileIdAllocator = new FileIdAllocator(sqlConnectionManager);
+    }
+
+    /**
+     * <p> Creates tables added after the original schema if they do not exist. The File_ID sequence starts after
+     * the highest File_ID already registered. Existing tables and rows are never changed.</p>
+     *
+     * <p> Called by: {@link Server.ServerGUI#sqlConnect}</p>
+     *
+     * <p> Calls: {@link Server.FileIdAllocator#reset}</p>
+     *
+     * @throws SQLException if there is a problem with the SQL connection.
+     */
+    public void createTables() throws SQLException {
+        PooledConnection connection = sqlConnectionManager.borrowConnection();
+        Statement statement = null;
+        try {
+            statement = connection.getConnection().createStatement();
+            statement.executeUpdate(CREATE_CONTENTS);
+            statement.executeUpdate(CREATE_FILE_CONTENTS);
+            statement.executeUpdate(CREATE_FILE_ID_SEQUENCE);
+            statement.executeUpdate(INIT_FILE_ID_SEQUENCE);
+            fileIdAllocator.reset();
+        } finally {
+            if (statement != null) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    // statement is discarded either way
+                }
+            }
+            sqlConnectionManager.returnConnection(connection);
+        }
+    }
+
+    /**
+     * <p> Loads all registered files into the search index. Rows are streamed from the database instead of being
+     * read into memory at once.</p>
+     *
+     * <p> Called by: {@link Server.ServerGUI#sqlConnect}</p>
+     *
+     * <p> Calls: {@link Server.FileSearchIndex#startLoading}, {@link Server.FileSearchIndex#addLoadedFile},
+     * {@link Server.FileSearchIndex#finishLoading}</p>
+     *
+     * @return int number of files loaded.
+     * @throws SQLException if there is a problem with the SQL connection, searches then keep using the database.
+     */
+    public int loadSearchIndex() throws SQLException {
+        PooledConnection connection = sqlConnectionManager.borrowConnection();
+        Statement statement = null;
+        ResultSet resultSet = null;
+        searchIndex.startLoading();
+        try {
+            statement = connection.getConnection().createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            // MySQL driver streams rows one at a time with this fetch size
+            statement.setFetchSize(Integer.MIN_VALUE);
+            resultSet = statement.executeQuery(SELECT_ALL_FILES);
+            int count = 0;
+            while (resultSet.next()) {
+                searchIndex.addLoadedFile(resultSet.getInt(1), resultSet.getString(2), resultSet.getString(3),
+                        resultSet.getString(4), resultSet.getString(5), resultSet.getString(6));
+                count++;
+            }
+            searchIndex.finishLoading();
+            return count;
+        } catch (SQLException | RuntimeException e) {
+            searchIndex.abortLoading();
+            throw e;
+        } finally {
+            closeResultSet(resultSet);
+            if (statement != null) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    // statement is discarded either way
+                }
+            }
+            sqlConnectionManager.returnConnection(connection);
+        }
+    }
+
+    /**
+     * <p> Finds user record in the database.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl#getUserInformation}</p>
+     *
+     * @param userName username of the user.
+     * @return String[] with User_Name, User_Password, User_IP and User_Port, all elements are <i>null</i> if user
+     * does not exist.
+     * @throws SQLException if there is a problem with the SQL connection.
+     */
+    public String[] getUserInformation(String userName) throws SQLException {
+        List<String[]> rows = queryRows(SELECT_USER, 4, userName);
+        return rows.isEmpty() ? new String[4] : rows.get(0);
+    }
+
+    /**
+     * <p> Adds a new user to the database.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl#connectToServer}</p>
+     *
+     * @param userName username of the user.
+     * @param userPassword password of the user.
+     * @param userIP IP address of the user.
+     * @param userPort port of the user.
+     * @return boolean true if user was added.
+     * @throws SQLException if there is a problem with the SQL connection.
+     */
+    public boolean insertUser(String userName, String userPassword, String userIP, long userPort) throws SQLException {
+        return update(INSERT_USER, userName, userPassword, userIP, userPort) > 0;
+    }
+
+    /**
+     * <p> Updates IP address of the user.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl#updateUserIp}</p>
+     *
+     * @param userIP new IP address of the user.
+     * @param userName username of the user.
+     * @return boolean true if user was updated.
+     * @throws SQLException if there is a problem with the SQL connection.
+     */
+    public boolean updateUserIp(String userIP, String userName) throws SQLException {
+        return update(UPDATE_USER_IP, userIP, userName) > 0;
+    }
+
+    /**
+     * <p> Updates port of the user.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl#updateUserPort}</p>
+     *
+     * @param userPort new port of the user.
+     * @param userName username of the user.
+     * @return boolean true if user was updated.
+     * @throws SQLException if there is a problem with the SQL connection.
+     */
+    public boolean updateUserPort(long userPort, String userName) throws SQLException {
+        return update(UPDATE_USER_PORT, userPort, userName) > 0;
+    }
+
+    /**
+     * <p> Registers a file of the user with a File_ID from the FileIdAllocator, see the method with content hashes
+     * for the statements sent.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl#registerFile}</p>
+     *
+     * @param userName username of the file owner.
+     * @param fileName name of the file.
+     * @param fileType type of the file.
+     * @param filePath path of the file on the owner's machine.
+     * @param fileSize size of the file.
+     * @param maxUserFiles maximum number of files a user can register.
+     * @return String "OK" if file was registered, "FULL" if user reached maximum number of files, "COPY" if file
+     * is already registered.
+     * @throws SQLException if there is a problem with the SQL connection or file was not inserted.
+     */
+    public String registerFile(String userName, String fileName, String fileType, String filePath, long fileSize,
+                               int maxUserFiles) throws SQLException {
+        return registerFile(userName, fileName, fileType, filePath, fileSize, maxUserFiles, null, 0, null);
+    }
+
+    /**
+     * <p> Registers a file of the user together with its content hashes in one transaction. The row of the user is
+     * locked with a select for update first, so registrations of the same user wait for each other. The file is
+     * then inserted by a conditional insert that also enforces the file limit and rejects duplicates. When hashes
+     * are given two more inserts store the content, only if no other file has it yet, and link the file to it. A
+     * registration therefore sends the lock, the insert, the content inserts if any and the commit. A rejected
+     * registration runs a count instead of the content inserts to tell which check failed and is rolled back.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl#registerHashedFile}, {@link Server.P2PDatabase#registerFile}</p>
+     *
+     * @param userName username of the file owner.
+     * @param fileName name of the file.
+     * @param fileType type of the file.
+     * @param filePath path of the file on the owner's machine.
+     * @param fileSize size of the file.
+     * @param maxUserFiles maximum number of files a user can register.
+     * @param rootHash hex Merkle root of the piece hashes, <i>null</i> if file was not hashed.
+     * @param pieceSize size of the hashed pieces.
+     * @param pieceHashes hex SHA-256 hashes of all pieces in order.
+     * @return String "OK" if file was registered, "FULL" if user reached maximum number of files, "COPY" if file
+     * is already registered.
+     * @throws SQLException if there is a problem with the SQL connection or file was not inserted.
+     */
+    public String registerFile(String userName, String fileName, String fileType, String filePath, long fileSize,
+                               int maxUserFiles, String rootHash, int pieceSize, String pieceHashes)
+            throws SQLException {
+        // taken before borrowing, reserving a new block of IDs needs a connection of its own
+        int fileId = fileIdAllocator.nextId();
+        PooledConnection connection = sqlConnectionManager.borrowConnection();
+        try {
+            connection.getConnection().setAutoCommit(false);
+            boolean committed = false;
+            try {
+                // registrations of the same user wait here until this transaction ends
+                queryInt(connection, LOCK_USER, userName);
+                // add new file to the database if user is under the limit and has no such file yet
+                int inserted;
+                try {
+                    inserted = executeUpdate(connection, INSERT_USER_FILE_CHECKED, fileId, fileName, fileType,
+                            filePath, fileSize, userName, fileName, fileType, filePath, userName, maxUserFiles);
+                } catch (SQLException e) {
+                    if (!isDuplicateKey(e)) {
+                        throw e;
+                    }
+                    return "COPY";
+                }
+                if (inserted == 0) {
+                    return queryInt(connection, COUNT_USER_FILES, userName) >= maxUserFiles ? "FULL" : "COPY";
+                }
+                if (rootHash != null) {
+                    executeUpdate(connection, INSERT_CONTENT, rootHash, fileSize, pieceSize, pieceHashes);
+                    executeUpdate(connection, INSERT_FILE_CONTENT, fileId, rootHash);
+                }
+                connection.getConnection().commit();
+                committed = true;
+            } finally {
+                endTransaction(connection, committed);
+            }
+            searchIndex.addFile(fileId, fileName, fileType, Long.toString(fileSize), userName, rootHash);
+            return "OK";
+        } finally {
+            sqlConnectionManager.returnConnection(connection);
+        }
+    }
+
+    /**
+     * <p> Registers files of the user in one transaction. The row of the user is locked first as in
+     * {@link P2PDatabase#registerFile}. Every file is inserted by the same conditional insert, sent to the database
+     * as one batch, so files earlier in the list count towards the limit and duplicates of them are rejected. Files
+     * rejected by a unique key of the database are reported as copies. Contents and links of the hashed files that were
+     * inserted are sent as two more batches. A single count after the inserts tells which check rejected each
+     * file that was not inserted.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl#registerFiles}</p>
+     *
+     * <p> Calls: {@link Server.FileIdAllocator#nextId}, {@link Server.FileSearchIndex#addFile}</p>
+     *
+     * @param userName username of the file owner.
+     * @param files files to register.
+     * @param maxUserFiles maximum number of files a user can register.
+     * @return String[] result of every file in order: "OK" if file was registered, "FULL" if user reached maximum
+     * number of files, "COPY" if file is already registered.
+     * @throws SQLException if there is a problem with the SQL connection, no file is registered then.
+     */
+    public String[] registerFiles(String userName, List<FileRecord> files, int maxUserFiles) throws SQLException {
+        String[] results = new String[files.size()];
+        if (files.isEmpty()) {
+            return results;
+        }
+        // taken before borrowing, reserving a new block of IDs needs a connection of its own
+        int[] fileIds = new int[files.size()];
+        List<Object[]> inserts = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            FileRecord file = files.get(i);
+            fileIds[i] = fileIdAllocator.nextId();
+            inserts.add(new Object[]{fileIds[i], file.fileName, file.fileType, file.filePath, file.fileSize, userName,
+                    file.fileName, file.fileType, file.filePath, userName, maxUserFiles});
+        }
+        PooledConnection connection = sqlConnectionManager.borrowConnection();
+        try {
+            connection.getConnection().setAutoCommit(false);
+            boolean committed = false;
+            int[] inserted;
+            int ownedFiles;
+            try {
+                // registrations of the same user wait here until this transaction ends
+                queryInt(connection, LOCK_USER, userName);
+                try {
+                    inserted = executeBatch(connection, INSERT_USER_FILE_CHECKED, inserts);
+                } catch (BatchUpdateException e) {
+                    // the driver went on with the rest of the batch, failed inserts have a negative count
+                    if (!isDuplicateKey(e) || e.getUpdateCounts().length != inserts.size()) {
+                        throw e;
+                    }
+                    inserted = e.getUpdateCounts();
+                }
+                List<Object[]> contents = new ArrayList<>();
+                List<Object[]> links = new ArrayList<>();
+                int registered = 0;
+                for (int i = 0; i < files.size(); i++) {
+                    FileRecord file = files.get(i);
+                    if (inserted[i] > 0) {
+                        registered++;
+                        if (file.rootHash != null) {
+                            contents.add(new Object[]{file.rootHash, file.fileSize, file.pieceSize,
+                                    file.pieceHashes});
+                            links.add(new Object[]{fileIds[i], file.rootHash});
+                        }
+                    }
+                }
+                executeBatch(connection, INSERT_CONTENT, contents);
+                executeBatch(connection, INSERT_FILE_CONTENT, links);
+                // files the user had before the batch, inserts ran in order so each saw the ones before it
+                ownedFiles = queryInt(connection, COUNT_USER_FILES, userName) - registered;
+                connection.getConnection().commit();
+                committed = true;
+            } finally {
+                endTransaction(connection, committed);
+            }
+            for (int i = 0; i < files.size(); i++) {
+                FileRecord file = files.get(i);
+                if (inserted[i] > 0) {
+                    ownedFiles++;
+                    searchIndex.addFile(fileIds[i], file.fileName, file.fileType, Long.toString(file.fileSize),
+                            userName, file.rootHash);
+                    results[i] = "OK";
+                } else {
+                    results[i] = ownedFiles >= maxUserFiles ? "FULL" : "COPY";
+                }
+            }
+            return results;
+        } finally {
+            sqlConnectionManager.returnConnection(connection);
+        }
+    }
+
+    /**
+     * <p> Removes files of the user in one transaction. The row of the user is locked first as for registrations,
+     * IDs and root hashes of the files are read, then the files, their content links and contents no other file
+     * uses are deleted in three batches. A registration linking a file to one of the contents at the same time
+     * locks the content row, so the content is either deleted before the registration stores it again or kept
+     * because the new link is seen.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl#deregisterFiles}</p>
+     *
+     * <p> Calls: {@link Server.FileSearchIndex#removeFile}</p>
+     *
+     * @param userName username of the file owner.
+     * @param files files to remove, only name, type and path are used.
+     * @return boolean[] for every file in order, true if file was removed.
+     * @throws SQLException if there is a problem with the SQL connection, no file is removed then.
+     */
+    public boolean[] deregisterFiles(String userName, List<FileRecord> files) throws SQLException {
+        boolean[] results = new boolean[files.size()];
+        if (files.isEmpty()) {
+            return results;
+        }
+        PooledConnection connection = sqlConnectionManager.borrowConnection();
+        try {
+            connection.getConnection().setAutoCommit(false);
+            boolean committed = false;
+            int[] deleted;
+            List<Integer> removedIds = new ArrayList<>();
+            try {
+                // registrations and removals of the same user wait here until this transaction ends
+                queryInt(connection, LOCK_USER, userName);
+                List<Object[]> deletes = new ArrayList<>();
+                List<Object[]> links = new ArrayList<>();
+                Set<String> rootHashes = new LinkedHashSet<>();
+                for (FileRecord file : files) {
+                    deletes.add(new Object[]{userName, file.fileName, file.fileType, file.filePath});
+                    for (String[] row : readRows(connection, FIND_USER_FILE_CONTENT, 2, userName, file.fileName,
+                            file.fileType, file.filePath)) {
+                        int fileId = Integer.parseInt(row[0]);
+                        removedIds.add(fileId);
+                        links.add(new Object[]{fileId});
+                        if (row[1] != null) {
+                            rootHashes.add(row[1]);
+                        }
+                    }
+                }
+                deleted = executeBatch(connection, DELETE_USER_FILE, deletes);
+                executeBatch(connection, DELETE_FILE_CONTENT, links);
+                List<Object[]> contents = new ArrayList<>();
+                for (String rootHash : rootHashes) {
+                    contents.add(new Object[]{rootHash});
+                }
+                executeBatch(connection, DELETE_UNUSED_CONTENT, contents);
+                connection.getConnection().commit();
+                committed = true;
+            } finally {
+                endTransaction(connection, committed);
+            }
+            for (int fileId : removedIds) {
+                searchIndex.removeFile(fileId);
+            }
+            for (int i = 0; i < files.size(); i++) {
+                results[i] = deleted[i] > 0;
+            }
+            return results;
+        } finally {
+            sqlConnectionManager.returnConnection(connection);
+        }
+    }
+
+    /**
+     * <p> Removes a file of the user from the database and from the search index in one transaction, with the same
+     * order of statements and locks as {@link P2PDatabase#deregisterFiles}. IDs and root hashes of the removed rows
+     * are read first so that the index drops exactly the rows the database deleted. Content hashes are removed with
+     * the last file that has the content, a failure on the way rolls back the whole removal.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl#deregisterFile}</p>
+     *
+     * @param userName username of the file owner.
+     * @param fileName name of the file.
+     * @param fileType type of the file.
+     * @param filePath path of the file on the owner's machine.
+     * @return boolean true if file was removed.
+     * @throws SQLException if there is a problem with the SQL connection.
+     */
+    public boolean deregisterFile(String userName, String fileName, String fileType, String filePath) throws SQLException {
+        PooledConnection connection = sqlConnectionManager.borrowConnection();
+        try {
+            connection.getConnection().setAutoCommit(false);
+            boolean committed = false;
+            List<String[]> removed;
+            try {
+                // registrations and removals of the same user wait here until this transaction ends
+                queryInt(connection, LOCK_USER, userName);
+                removed = readRows(connection, FIND_USER_FILE_CONTENT, 2, userName, fileName, fileType, filePath);
+                if (executeUpdate(connection, DELETE_USER_FILE, userName, fileName, fileType, filePath) == 0) {
+                    return false;
+                }
+                Set<String> rootHashes = new LinkedHashSet<>();
+                for (String[] row : removed) {
+                    executeUpdate(connection, DELETE_FILE_CONTENT, Integer.parseInt(row[0]));
+                    if (row[1] != null) {
+                        rootHashes.add(row[1]);
+                    }
+                }
+                for (String rootHash : rootHashes) {
+                    executeUpdate(connection, DELETE_UNUSED_CONTENT, rootHash);
+                }
+                connection.getConnection().commit();
+                committed = true;
+            } finally {
+                endTransaction(connection, committed);
+            }
+            for (String[] row : removed) {
+                searchIndex.removeFile(Integer.parseInt(row[0]));
+            }
+            return true;
+        } finally {
+            sqlConnectionManager.returnConnection(connection);
+        }
+    }
+
+    /**
+     * <p> Returns files registered by the user.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl#getUserFiles}</p>
+     *
+     * @param userName username of the file owner.
+     * @return List of rows with File_ID, File_Name, File_Type, File_Path and File_Size.
+     * @throws SQLException if there is a problem with the SQL connection.
+     */
+    public List<String[]> getUserFiles(String userName) throws SQLException {
+        return queryRows(SELECT_USER_FILES, 5, userName);
+    }
+
+    /**
+     * <p> Searches for files whose name and type contain the search query, excluding files of the searching
+     * user. Wildcard characters in the query are matched literally. The search index is used when it is loaded.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl#findSearchResults}</p>
+     *
+     * @param searchQuery String to search for.
+     * @param userName username of the searching user, empty to include files of all users.
+     * @return List of rows with File_ID, File_Name, File_Type, File_Size, User_Name of the owner and Root_Hash,
+     * which is <i>null</i> for files registered without hashes.
+     * @throws SQLException if there is a problem with the SQL connection.
+     */
+    public List<String[]> searchFiles(String searchQuery, String userName) throws SQLException {
+        if (searchIndex.isReady()) {
+            return searchIndex.search(searchQuery, userName);
+        }
+        return queryRows(SEARCH_FILES, 6, "%" + escapeLike(searchQuery) + "%", userName);
+    }
+
+    /**
+     * <p> Returns hosts of the content of the file with the given ID, excluding the requesting user. Files of other
+     * users with the same root hash and size are hosts too, whatever their name. A file registered without hashes
+     * only has its own host.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl#getFileHostInfo}</p>
+     *
+     * @param fileID ID of the file.
+     * @param userName username of the requesting user.
+     * @return List of rows with User_Name, User_IP, User_Port, File_Path, File_Name and File_Type of the hosted
+     * file.
+     * @throws SQLException if there is a problem with the SQL connection.
+     */
+    public List<String[]> getFileHosts(int fileID, String userName) throws SQLException {
+        PooledConnection connection = sqlConnectionManager.borrowConnection();
+        try {
+            List<String[]> rows = readRows(connection, SELECT_CONTENT_HOSTS, 6, fileID, userName);
+            if (rows.isEmpty()) {
+                rows = readRows(connection, SELECT_FILE_HOSTS, 6, fileID, userName);
+            }
+            return rows;
+        } finally {
+            sqlConnectionManager.returnConnection(connection);
+        }
+    }
+
+    /**
+     * <p> Returns content hashes of the file with the given ID.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl#getFileHashes}</p>
+     *
+     * @param fileID ID of the file.
+     * @return String[] with Root_Hash, Piece_Size and Piece_Hashes, <i>null</i> if file was registered without
+     * hashes.
+     * @throws SQLException if there is a problem with the SQL connection.
+     */
+    public String[] getFileHashes(int fileID) throws SQLException {
+        List<String[]> rows = queryRows(SELECT_FILE_HASHES, 3, fileID);
+        return rows.isEmpty() ? null : rows.get(0);
+    }
+
+    /**
+     * <p> Runs a query on a borrowed connection and returns all rows as String arrays.</p>
+     *
+     * @param sql parameterized SQL query.
+     * @param columns number of columns to read from each row.
+     * @param parameters values of the query parameters.
+     * @return List of rows.
+     * @throws SQLException if there is a problem with the SQL connection.
+     */
+    private List<String[]> queryRows(String sql, int columns, Object... parameters) throws SQLException {
+        PooledConnection connection = sqlConnectionManager.borrowConnection();
+        try {
+            return readRows(connection, sql, columns, parameters);
+        } finally {
+            sqlConnectionManager.returnConnection(connection);
+        }
+    }
+
+    /**
+     * <p> Runs a query on the given connection and returns all rows as String arrays.</p>
+     *
+     * @param connection connection to run the query on.
+     * @param sql parameterized SQL query.
+     * @param columns number of columns to read from each row.
+     * @param parameters values of the query parameters.
+     * @return List of rows.
+     * @throws SQLException if there is a problem with the SQL connection.
+     */
+    private List<String[]> readRows(PooledConnection connection, String sql, int columns, Object... parameters)
+            throws SQLException {
+        long start = System.nanoTime();
+        List<String[]> rows = new ArrayList<>();
+        ResultSet resultSet = null;
+        try {
+            resultSet = executeQuery(connection, sql, parameters);
+            while (resultSet.next()) {
+                String[] row = new String[columns];
+                for (int i = 0; i < columns; i++) {
+                    row[i] = resultSet.getString(i + 1);
+                }
+                rows.add(row);
+            }
+            return rows;
+        } finally {
+            closeResultSet(resultSet);
+            recordStatement(connection, sql, parameters.length, 1, start, rows.size());
+        }
+    }
+
+    /**
+     * <p> Runs an update on a borrowed connection.</p>
+     *
+     * @param sql parameterized SQL query.
+     * @param parameters values of the query parameters.
+     * @return int number of affected rows.
+     * @throws SQLException if there is a problem with the SQL connection.
+     */
+    private int update(String sql, Object... parameters) throws SQLException {
+        PooledConnection connection = sqlConnectionManager.borrowConnection();
+        try {
+            return executeUpdate(connection, sql, parameters);
+        } finally {
+            sqlConnectionManager.returnConnection(connection);
+        }
+    }
+
+    /**
+     * <p> Ends the transaction of a connection that was not committed by rolling it back, and turns auto commit on
+     * again, so the connection goes back to the pool without an open transaction.</p>
+     *
+     * @param connection connection running the transaction.
+     * @param committed true if the transaction was committed.
+     * @throws SQLException if the transaction could not be rolled back or auto commit turned on.
+     */
+    private void endTransaction(PooledConnection connection, boolean committed) throws SQLException {
+        Connection sqlConnection = connection.getConnection();
+        try {
+            if (!committed) {
+                sqlConnection.rollback();
+            }
+        } finally {
+            sqlConnection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * <p> Returns true if the exception reports a duplicate entry for a unique key, error 1062 of MySQL.</p>
+     *
+     * @param e exception thrown by a statement.
+     * @return boolean true if the statement broke a unique key.
+     */
+    private static boolean isDuplicateKey(SQLException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException && ((SQLException) cause).getErrorCode() == ER_DUP_ENTRY) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * <p> Runs a query returning a single number on the given connection.</p>
+     *
+     * @param connection connection to run the query on.
+     * @param sql parameterized SQL query.
+     * @param parameters values of the query parameters.
+     * @return int value of the first column of the first row, 0 if there are no rows.
+     * @throws SQLException if there is a problem with the SQL connection.
+     */
+    private int queryInt(PooledConnection connection, String sql, Object... parameters) throws SQLException {
+        long start = System.nanoTime();
+        int rows = 0;
+        ResultSet resultSet = null;
+        try {
+            resultSet = executeQuery(connection, sql, parameters);
+            if (!resultSet.next()) {
+                return 0;
+            }
+            rows = 1;
+            return resultSet.getInt(1);
+        } finally {
+            closeResultSet(resultSet);
+            recordStatement(connection, sql, parameters.length, 1, start, rows);
+        }
+    }
+
+    /**
+     * <p> Executes a query using a cached prepared statement of the connection. The query is recorded by the
+     * caller once its rows are read.</p>
+     *
+     * @param connection connection to run the query on.
+     * @param sql parameterized SQL query.
+     * @param parameters values of the query parameters.
+     * @return ResultSet result of the query, has to be closed by the caller.
+     * @throws SQLException if there is a problem with the SQL connection.
+     */
+    private ResultSet executeQuery(PooledConnection connection, String sql, Object... parameters) throws SQLException {
+        return bind(connection.prepareStatement(sql), parameters).executeQuery();
+    }
+
+    /**
+     * <p> Executes an update using a cached prepared statement of the connection.</p>
+     *
+     * @param connection connection to run the query on.
+     * @param sql parameterized SQL query.
+     * @param parameters values of the query parameters.
+     * @return int number of affected rows.
+     * @throws SQLException if there is a problem with the SQL connection.
+     */
+    private int executeUpdate(PooledConnection connection, String sql, Object... parameters) throws SQLException {
+        PreparedStatement statement = bind(connection.prepareStatement(sql), parameters);
+        long start = System.nanoTime();
+        int rows = 0;
+        try {
+            rows = statement.executeUpdate();
+            return rows;
+        } finally {
+            recordStatement(connection, sql, parameters.length, 1, start, rows);
+        }
+    }
+
+    /**
+     * <p> Executes an update once for every set of parameters, sent to the database as one batch using a cached
+     * prepared statement of the connection.</p>
+     *
+     * @param connection connection to run the update on.
+     * @param sql parameterized SQL query.
+     * @param parameterRows values of the query parameters of every update.
+     * @return int[] number of affected rows of every update in order.
+     * @throws SQLException if there is a problem with the SQL connection.
+     */
+    private int[] executeBatch(PooledConnection connection, String sql, List<Object[]> parameterRows)
+            throws SQLException {
+        if (parameterRows.isEmpty()) {
+            return new int[0];
+        }
+        PreparedStatement statement = connection.prepareStatement(sql);
+        try {
+            int parameters = 0;
+            for (Object[] row : parameterRows) {
+                bind(statement, row).addBatch();
+                parameters += row.length;
+            }
+            long start = System.nanoTime();
+            long rows = 0;
+            try {
+                int[] counts = statement.executeBatch();
+                for (int count : counts) {
+                    // drivers may report SUCCESS_NO_INFO instead of a count
+                    rows += Math.max(0, count);
+                }
+                return counts;
+            } finally {
+                recordStatement(connection, sql, parameters, parameterRows.size(), start, rows);
+            }
+        } finally {
+            // the statement is cached, a failed batch must not be sent with the next one
+            statement.clearBatch();
+        }
+    }
+
+    /**
+     * <p> Records the execution time of a statement in ServiceMetrics and the statement with the connection wait
+     * and the rows it read or changed in SlowQueryLog.</p>
+     *
+     * @param connection connection the statement was run on.
+     * @param sql parameterized SQL of the statement.
+     * @param parameters number of parameters bound.
+     * @param batchSize number of statements sent together.
+     * @param start time the statement was started at, from System.nanoTime.
+     * @param rows number of rows read or changed.
+     */
+    private void recordStatement(PooledConnection connection, String sql, int parameters, int batchSize, long start,
+                                 long rows) {
+        long executeNanos = System.nanoTime() - start;
+        ServiceMetrics.getShared().recordTimer(ServiceMetrics.DB_EXECUTE, executeNanos);
+        SlowQueryLog.getShared().record(sql, parameters, batchSize, connection.takeBorrowWait(), executeNanos, rows);
+    }
+
+    /**
+     * <p> Sets parameters of the prepared statement in order.</p>
+     *
+     * @param statement statement to set parameters of.
+     * @param parameters values of the query parameters.
+     * @return PreparedStatement the same statement.
+     * @throws SQLException if a parameter could not be set.
+     */
+    private PreparedStatement bind(PreparedStatement statement, Object... parameters) throws SQLException {
+        for (int i = 0; i < parameters.length; i++) {
+            statement.setObject(i + 1, parameters[i]);
+        }
+        return statement;
+    }
+
+    /**
+     * <p> Escapes LIKE wildcard characters so that the search query is matched literally.</p>
+     *
+     * @param text text to escape.
+     * @return String escaped text.
+     */
+    private String escapeLike(String text) {
+        return text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    /**
+     * <p> Closes a result set, errors are ignored since the result is no longer needed.</p>
+     *
+     * @param resultSet result set to close, <i>null</i> is ignored.
+     */
+    private void closeResultSet(ResultSet resultSet) {
+        if (resultSet == null) {
+            return;
+        }
+        try {
+            resultSet.close();
+        } catch (SQLException e) {
+            // result set is discarded either way
+        }
+    }
+
+    /**
+     * <p> File registered or removed in bulk: name, type, path and size of the file and its content hashes.</p>
+     */
+    public static class FileRecord {
+        private final String fileName;
+        private final String fileType;
+        private final String filePath;
+        private final long fileSize;
+        private final String rootHash;
+        private final int pieceSize;
+        private final String pieceHashes;
+
+        /**
+         * <p> Constructor for FileRecord class.</p>
+         *
+         * <p> Called by: {@link Server.P2PServiceImpl#registerFiles}, {@link Server.P2PServiceImpl#deregisterFiles}</p>
+         *
+         * @param fileName name of the file.
+         * @param fileType type of the file.
+         * @param filePath path of the file on the owner's machine.
+         * @param fileSize size of the file.
+         * @param rootHash hex Merkle root of the piece hashes, <i>null</i> if file was not hashed.
+         * @param pieceSize size of the hashed pieces.
+         * @param pieceHashes hex SHA-256 hashes of all pieces in order.
+         */
+        public FileRecord(String fileName, String fileType, String filePath, long fileSize, String rootHash,
+                          int pieceSize, String pieceHashes) {
+            this.fileName = fileName;
+            this.fileType = fileType;
+            this.filePath = filePath;
+            this.fileSize = fileSize;
+            this.rootHash = rootHash;
+            this.pieceSize = pieceSize;
+            this.pieceHashes = pieceHashes;
+        }
+    }
+}
@@ -6,71 +6,178 @@
 package server;
 
 import java.security.SecureRandom;
-import java.sql.Connection;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.Objects;
-import java.util.Random;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 import javax.jws.WebService;
 import javax.jws.soap.SOAPBinding;
 import org.apache.cxf.annotations.WSDLDocumentation;
+import org.apache.cxf.interceptor.InInterceptors;
+import org.apache.cxf.interceptor.OutFaultInterceptors;
+import org.apache.cxf.interceptor.OutInterceptors;
 
 /**
  * <p> P2PServiceImpl class is an implementation of a web service based P2P features dictated by P2PServiceSEI class.</p>
  * <p> This class acts as an intermediary between the Clients and SQL database. It provides methods for the Clients
  * to access Server resources via login and registration features, after which they can register, unregister their own
  * files and search, download files registered by other users. </p>
- * <p> Methods in this class output information to the Server GUI via OutputManager, SQL database connection is
- * provided by SQLConnectionManager to the methods that need it,  </p>
+ * <p> Methods in this class output information to the Server GUI via OutputManager. Database access goes through
+ * P2PDatabase, which borrows pooled connections from SQLConnectionManager and runs cached prepared statements,
+ * which allows requests from different users to run their queries in parallel.</p>
  * <p> This class also provides a heartbeat feature that is used to check if the users are active. Allowing the server
  * to display files from active users only. </p>
  * <p> Methods in this class use combination of token and username to verify users and prevent unauthorized access to
  * Server resources.</p>
+ * <p> Calls, response codes and latencies of all WebMethods are recorded in ServiceMetrics by the CXF interceptors
+ * set on this class.</p>
  */
 @WebService(targetNamespace = "http://server/", endpointInterface = "server.P2PServiceImplSEI", portName = "P2PServiceImplPort", serviceName = "P2PServiceImplService")
 @SOAPBinding(style = SOAPBinding.Style.RPC)
+@InInterceptors(classes = ServiceMetrics.RequestInterceptor.class)
+@OutInterceptors(classes = ServiceMetrics.ResponseInterceptor.class)
+@OutFaultInterceptors(classes = ServiceMetrics.ResponseInterceptor.class)
 @WSDLDocumentation("This P2PService Web Service provides methods for clients to facilitate P2P file sharing. Methods allow clients to create basic accounts, manage their sessions, register, remove and search for hosted files.")
 public class P2PServiceImpl implements P2PServiceImplSEI {
-    private final int MAX_USER_FILES = 10;
+    private static final int MAX_USER_FILES = Math.max(1, Integer.getInteger("p2p.maxUserFiles", 10));
+    private static final int MAX_BATCH_FILES = Math.max(1, Integer.getInteger("p2p.batch.maxFiles", 1000));
+    private static final int REGISTER_FIELDS = 7;
+    private static final int DEREGISTER_FIELDS = 3;
+    private static final int SEARCH_MAX_RESULTS = Math.max(1, Integer.getInteger("p2p.search.maxResults", 1000));
+    private static final int SEARCH_PAGE_SIZE = Math.max(1, Integer.getInteger("p2p.search.pageSize", 50));
+    private static final int SEARCH_MAX_PAGE_SIZE = Math.max(SEARCH_PAGE_SIZE, Integer.getInteger("p2p.search.maxPageSize", 200));
+    private static final List<String> HEARTBEAT_OK =
+            Collections.unmodifiableList(Arrays.asList("OK", "Heartbeat received by server."));
+    private static final List<String> HEARTBEAT_CRED =
+            Collections.unmodifiableList(Arrays.asList("CRED", "Could not send heart beat. Token/Username mismatch."));
+    private static final List<String> HEARTBEAT_NOT_READY =
+            Collections.unmodifiableList(Arrays.asList("ERROR", "Server is not ready for requests. Try again later."));
     private final ServerGUI serverGUI;
     private ActiveUsers activeUsers;
-    private Connection sqlConnection;
     private final SQLConnectionManager SQLConnectionManager;
+    private final P2PDatabase database;
+    private final SearchResultCache searchCache;
     private final OutputManager outputManager;
-    private final Lock dbLock = new ReentrantLock();
+    private final HeartbeatChannel heartbeatChannel;
 
     /**
-     * <p> Constructor of the P2PServiceImpl class. It initiates ServerGUI and sets the SQLConnectionManager and
-     * OutputManager. It then acquires the SQLConnection from SQLConnectionManager appropriate variables.</p>
+     * <p> Constructor of the P2PServiceImpl class. It initiates ServerGUI and sets the SQLConnectionManager,
+     * P2PDatabase, SearchResultCache and OutputManager and opens the UDP HeartbeatChannel if it is enabled, then
+     * adds their counters to ServiceMetrics, starts exposing the metrics and starts the slow query log.</p>
      *
      * <p> Calls: {@link Server.ServerGUI#getServerOutputArea}, {@link Server.ServerGUI#setOutputManager},
-     * {@link Server.ServerGUI#setButtonListeners}, {@link Server.SQLConnectionManager#getSqlConnection}</p>
+     * {@link Server.ServerGUI#setDatabase}, {@link Server.ServerGUI#setSearchCache},
+     * {@link Server.ServerGUI#setButtonListeners}, {@link Server.P2PServiceImpl#addGauges},
+     * {@link Server.HeartbeatChannel#start}, {@link Server.ServiceMetrics#start}, {@link Server.SlowQueryLog#start}</p>
      */
     P2PServiceImpl(){
         ServerGUI gui = new ServerGUI();
     	OutputManager outputManager = new OutputManager(ServerGUI.getServerOutputArea());
     	SQLConnectionManager sqlManager = new SQLConnectionManager(outputManager);
         gui.setOutputManager(outputManager);
+        P2PDatabase database = new P2PDatabase(sqlManager, new FileSearchIndex());
+        gui.setDatabase(database);
+        SearchResultCache searchCache = new SearchResultCache();
+        gui.setSearchCache(searchCache);
         gui.setButtonListeners(sqlManager);
         this.serverGUI = gui;
     	this.SQLConnectionManager = sqlManager;
+        this.database = database;
+        this.searchCache = searchCache;
     	this.outputManager = outputManager;
-        this.sqlConnection = sqlManager.getSqlConnection();
+        this.heartbeatChannel = HeartbeatChannel.start(gui, outputManager);
+        addGauges(ServiceMetrics.getShared());
+        ServiceMetrics.getShared().start(outputManager);
+        SlowQueryLog.getShared().start(outputManager);
+    }
+
+    /**
+     * <p> This method adds the number of active users, the search cache counters, the number of dropped output
+     * messages and slow SQL queries and the UDP heartbeat counters to the metrics.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl#P2PServiceImpl}</p>
+     *
+     * @param metrics metrics to add the gauges to.
+     */
+    private void addGauges(ServiceMetrics metrics) {
+        metrics.addGauge("active_users", new ServiceMetrics.Gauge() {
+            @Override
+            public long value() {
+                ActiveUsers users = serverGUI.getActiveUsers();
+                return users == null ? 0 : users.getNumOfUsers();
+            }
+        });
+        metrics.addGauge("search_cache_hits", new ServiceMetrics.Gauge() {
+            @Override
+            public long value() {
+                return searchCache.getHits();
+            }
+        });
+        metrics.addGauge("search_cache_misses", new ServiceMetrics.Gauge() {
+            @Override
+            public long value() {
+                return searchCache.getMisses();
+            }
+        });
+        metrics.addGauge("search_cache_evictions", new ServiceMetrics.Gauge() {
+            @Override
+            public long value() {
+                return searchCache.getEvictions();
+            }
+        });
+        metrics.addGauge("search_cache_invalidations", new ServiceMetrics.Gauge() {
+            @Override
+            public long value() {
+                return searchCache.getInvalidations();
+            }
+        });
+        metrics.addGauge("search_cache_entries", new ServiceMetrics.Gauge() {
+            @Override
+            public long value() {
+                return searchCache.size();
+            }
+        });
+        metrics.addGauge("output_dropped_messages", new ServiceMetrics.Gauge() {
+            @Override
+            public long value() {
+                return outputManager.getDroppedMessages();
+            }
+        });
+        metrics.addGauge("db_slow_queries", new ServiceMetrics.Gauge() {
+            @Override
+            public long value() {
+                return SlowQueryLog.getShared().getSlowQueries();
+            }
+        });
+        metrics.addGauge("udp_heartbeats_accepted", new ServiceMetrics.Gauge() {
+            @Override
+            public long value() {
+                return heartbeatChannel == null ? 0 : heartbeatChannel.getAccepted();
+            }
+        });
+        metrics.addGauge("udp_heartbeats_rejected", new ServiceMetrics.Gauge() {
+            @Override
+            public long value() {
+                return heartbeatChannel == null ? 0 : heartbeatChannel.getRejected();
+            }
+        });
     }
 
     /**
      * <p> This method simply verifies if server initiated the active users list.</p>
      *
      * <p> Called by: {@link Server.P2PServiceImpl#connectToServer}, {@link Server.P2PServiceImpl#resumeSession},
-     * {@link Server.P2PServiceImpl#disconnectFromServer}, {@link Server.P2PServiceImpl#sendHeartBeat},
+     * {@link Server.P2PServiceImpl#disconnectFromServer},
      * {@link Server.P2PServiceImpl#registerFile}, {@link Server.P2PServiceImpl#deregisterFile},
      * {@link Server.P2PServiceImpl#getUserFiles}, {@link Server.P2PServiceImpl#searchFile},
-     * {@link Server.P2PServiceImpl#getFileHostInfo}</p>
+     * {@link Server.P2PServiceImpl#searchFilePage}, {@link Server.P2PServiceImpl#getFileHostInfo},
+     * {@link Server.P2PServiceImpl#registerHashedFile}, {@link Server.P2PServiceImpl#getFileHashes},
+     * {@link Server.P2PServiceImpl#registerFiles}, {@link Server.P2PServiceImpl#deregisterFiles},
+     * {@link Server.P2PServiceImpl#getHeartbeatChannel}</p>
      *
      * <p> Calls: {@link Server.ServerGUI#getActiveUsers}</p>
      *
@@ -92,7 +199,7 @@ public class P2PServiceImpl implements P2PServiceImplSEI {
      * <p> Calls: {@link Server.P2PServiceImpl#isActiveUsersReady}, {@link Server.ActiveUsers#hasSpace},
      * {@link Server.ActiveUsers#findUser}, {@link Server.ClientData#getName},
      * {@link Server.P2PServiceImpl#getUserInformation}, {@link Server.P2PServiceImpl#generateToken},
-     * {@link Server.SQLConnectionManager#getSqlConnection}, {@link Server.P2PServiceImpl#sqlExecuteUpdate},
+     * {@link Server.P2PDatabase#insertUser},
      * {@link Server.ActiveUsers#addUser}, {@link Server.OutputManager#printToTextArea},
      * {@link Server.P2PServiceImpl#updateUserIp}, {@link Server.P2PServiceImpl#updateUserPort}</p>
      *
@@ -159,16 +266,8 @@ public class P2PServiceImpl implements P2PServiceImplSEI {
         if (sqlResultArray[0] == null) {
             // add new user to the database
             try {
-                String query = "insert into Users (User_Name, User_Password, User_IP, User_Port) " +
-                        "values (\"" + userName + "\",\"" + userPassword + "\",\"" + userIP + "\"," + userPort + ");";
-                // execute query
-                sqlConnection = SQLConnectionManager.getSqlConnection();
-                Statement statement = sqlConnection.createStatement();
-                int result = sqlExecuteUpdate(query, statement);
-                // close resources
-                statement.close();
                 // check if user was added
-                if (result == 0) {
+                if (!database.insertUser(userName, userPassword, userIP, userPort)) {
                     throw new SQLException();
                 }
                 // add user to active users
@@ -251,8 +350,7 @@ public class P2PServiceImpl implements P2PServiceImplSEI {
      *
      * <p> Called by: {@link Server.P2PServiceImpl#connectToServer}, {@link Server.P2PServiceImpl#resumeSession}</p>
      *
-     * <p> Calls: {@link Server.P2PServiceImpl#sqlExecuteQuery}, {@link Server.SQLConnectionManager#getSqlConnection},
-     * {@link Server.OutputManager#printToTextArea}</p>
+     * <p> Calls: {@link Server.P2PDatabase#getUserInformation}, {@link Server.OutputManager#printToTextArea}</p>
      *
      * @param userName username provided by user wanting to log in.
      *
@@ -264,31 +362,8 @@ public class P2PServiceImpl implements P2PServiceImplSEI {
      * <p> null - if user does not exist.</p>
      */
     private String[] getUserInformation(String userName){
-        String query = "select * from Users where user_Name = \"" + userName + "\" ;";
-        String[] sqlResultArray = new String[4];
         try {
-            // acquire most recent sql connection
-            sqlConnection = SQLConnectionManager.getSqlConnection();
-            if(sqlConnection == null){
-                throw new SQLException();
-            }
-            // execute query
-            Statement statement = sqlConnection.createStatement();
-            ResultSet resultSet = sqlExecuteQuery(query, statement);
-            // test for database issues
-            if (resultSet == null) {
-                throw new SQLException();
-            }
-            // parse result
-            while (resultSet.next()) {
-                for (int i = 0; i < 4; i++) {
-                    sqlResultArray[i] = resultSet.getString(i + 1);
-                }
-            }
-            // close resources
-            resultSet.close();
-            statement.close();
-            return sqlResultArray;
+            return database.getUserInformation(userName);
         } catch (SQLException e) {
             outputManager.printToTextArea("SQL ERROR: occurred when searching for user " + userName + ": " +
                     "\n" + e);
@@ -305,8 +380,7 @@ public class P2PServiceImpl implements P2PServiceImplSEI {
      *
      * <Called by: {@link Server.P2PServiceImpl#connectToServer}, {@link Server.P2PServiceImpl#resumeSession}</p>
      *
-     * <p> Calls: {@link Server.P2PServiceImpl#sqlExecuteUpdate}, {@link Server.SQLConnectionManager#getSqlConnection},
-     * {@link Server.OutputManager#printToTextArea}</p>
+     * <p> Calls: {@link Server.P2PDatabase#updateUserIp}, {@link Server.OutputManager#printToTextArea}</p>
      *
      * @param userIP new IP address of the user.
      * @param userName username of the user.
@@ -315,15 +389,7 @@ public class P2PServiceImpl implements P2PServiceImplSEI {
      */
     private boolean updateUserIp(String userIP, String userName){
         try {
-            // create query
-            String query = "update Users set User_IP = \"" + userIP + "\" where User_Name = \"" + userName + "\";";
-            sqlConnection = SQLConnectionManager.getSqlConnection();
-            Statement statement = sqlConnection.createStatement();
-            // execute query
-            int result = sqlExecuteUpdate(query, statement);
-            // close resources
-            statement.close();
-            if (result == 0) {
+            if (!database.updateUserIp(userIP, userName)) {
                 throw new SQLException();
             }
             return true;
@@ -344,8 +410,7 @@ public class P2PServiceImpl implements P2PServiceImplSEI {
      *
      * <Called by: {@link Server.P2PServiceImpl#connectToServer}, {@link Server.P2PServiceImpl#resumeSession}</p>
      *
-     * <p> Calls: {@link Server.P2PServiceImpl#sqlExecuteUpdate}, {@link Server.SQLConnectionManager#getSqlConnection},
-     * {@link Server.OutputManager#printToTextArea}</p>
+     * <p> Calls: {@link Server.P2PDatabase#updateUserPort}, {@link Server.OutputManager#printToTextArea}</p>
      *
      * @param userPort new port of the user.
      * @param userName username of the user.
@@ -354,15 +419,7 @@ public class P2PServiceImpl implements P2PServiceImplSEI {
      */
     private boolean updateUserPort(long userPort, String userName){
         try {
-            // create query
-            String query = "update Users set User_Port = \"" + userPort + "\" where User_Name = \"" + userName + "\";";
-            // execute query
-            sqlConnection = SQLConnectionManager.getSqlConnection();
-            Statement statement = sqlConnection.createStatement();
-            int result = sqlExecuteUpdate(query, statement);
-            // close resources
-            statement.close();
-            if (result == 0) {
+            if (!database.updateUserPort(userPort, userName)) {
                 throw new SQLException();
             }
             return true;
@@ -555,11 +612,12 @@ public class P2PServiceImpl implements P2PServiceImplSEI {
     /**
      * <p> This WebMethod implementation is used by Clients to send a heartbeat notification to the server. It verifies the
      * user via provided token and username and then sets the user as active, updating their last active time.</p>
+     * <p> Heartbeats are most of the requests, so this method takes a fast path: the user is found with one lookup of
+     * the token, the time is read from CoarseClock and the responses are shared constant lists.</p>
      *
      * <p> Called by: {@link serviceClient.ClientGUI}</p>
      *
-     * <p> Calls: {@link Server.P2PServiceImpl#isActiveUsersReady}, {@link Server.P2PServiceImpl#verifyActiveUser},
-     * {@link Server.ActiveUsers#findUser}, {@link Server.ClientData#setLastActive},
+     * <p> Calls: {@link Server.ServerGUI#getActiveUsers}, {@link Server.ActiveUsers#heartbeat},
      * {@link Server.OutputManager#printToTextArea}</p>
      *
      * @param token token provided by user.
@@ -578,8 +636,54 @@ public class P2PServiceImpl implements P2PServiceImplSEI {
      *      <p> [description] - short string describing the error.</p>
      */
     public List <String> sendHeartBeat (String token,  String userName){
+        // read into a local, heartbeats do not write the shared activeUsers field
+        ActiveUsers users = serverGUI.getActiveUsers();
+        if(users == null){
+            return HEARTBEAT_NOT_READY;
+        }
+        try {
+            // verify user and update last active time
+            if(!users.heartbeat(token, userName)){
+                return HEARTBEAT_CRED;
+            }
+            return HEARTBEAT_OK;
+        } catch (Exception e) {
+            List <String> response = new ArrayList<>();
+            outputManager.printToTextArea("ERROR: occurred when user " + userName + " sent heart beat: " + "\n" + e);
+            response.add("ERROR");
+            response.add("Error sending heart beat.");
+            return response;
+        }
+    }
+
+    /**
+     * <p> This WebMethod implementation is used by Clients to find out if heartbeats can be sent as UDP datagrams
+     * instead of calling sendHeartBeat. It verifies the user via provided token and username and returns the port
+     * of the HeartbeatChannel, on the host of this service.</p>
+     *
+     * <p> Called by: {@link serviceClient.HeartbeatSender}</p>
+     *
+     * <p> Calls: {@link Server.P2PServiceImpl#isActiveUsersReady}, {@link Server.P2PServiceImpl#verifyActiveUser},
+     * {@link Server.HeartbeatChannel#getPort}</p>
+     *
+     * @param token token provided by user.
+     * @param userName username provided by user.
+     *
+     * @return <p><b> List <String> with two elements: </b></p>
+     * <p> If request completed successfully method returns an OK string followed by the port:</p>
+     *      <p> ["OK"] - if UDP heartbeats are accepted.</p>
+     *      <p><i>and</i></p>
+     *      <p> [port] - UDP port heartbeats are sent to.</p>
+     * <p></p>
+     * <p> If request failed one of the error code strings followed by short string description element:</p>
+     *      <p> ["404"] - if UDP heartbeats are not enabled on this server.</p>
+     *      <p> ["ERROR"] - if there was a server error when fulfilling the request.</p>
+     *      <p> ["CRED"] - if token/username combination is incorrect.</p>
+     *      <p><i>and</i></p>
+     *      <p> [description] - short string describing the error.</p>
+     */
+    public List <String> getHeartbeatChannel (String token,  String userName){
         List <String> response = new ArrayList<>();
-        // check if active user list is set up
         if(!isActiveUsersReady()){
             response.add("ERROR");
             response.add("Server is not ready for requests. Try again later.");
@@ -588,22 +692,17 @@ public class P2PServiceImpl implements P2PServiceImplSEI {
         // verify user
         if(!verifyActiveUser(token, userName)){
             response.add("CRED");
-            response.add("Could not send heart beat. Token/Username mismatch.");
+            response.add("Could not return heartbeat channel. Token/Username mismatch.");
             return response;
         }
-        try {
-            // set user as active, update last active time
-            ClientData user = activeUsers.findUser(userName);
-            user.setLastActive(true);
-            response.add("OK");
-            response.add("Heartbeat received by server.");
-            return response;
-        } catch (Exception e) {
-            outputManager.printToTextArea("ERROR: occurred when user " + userName + " sent heart beat: " + "\n" + e);
-            response.add("ERROR");
-            response.add("Error sending heart beat.");
+        if(heartbeatChannel == null){
+            response.add("404");
+            response.add("UDP heartbeats are not enabled.");
             return response;
         }
+        response.add("OK");
+        response.add(String.valueOf(heartbeatChannel.getPort()));
+        return response;
     }
 
 
@@ -615,8 +714,8 @@ public class P2PServiceImpl implements P2PServiceImplSEI {
      * <p> Called by: {@link serviceClient.ClientGUI}</p>
      *
      * <p> Calls: {@link Server.P2PServiceImpl#isActiveUsersReady}, {@link Server.P2PServiceImpl#verifyActiveUser},
-     * {@link Server.P2PServiceImpl#sqlExecuteQuery}, {@link Server.SQLConnectionManager#getSqlConnection},
-     * {@link Server.OutputManager#printToTextArea}, {@link Server.P2PServiceImpl#sqlExecuteUpdate}</p>
+     * {@link Server.P2PDatabase#registerFile}, {@link Server.SearchResultCache#invalidateFile},
+     * {@link Server.OutputManager#printToTextArea}</p>
      *
      * @param token token provided by user.
      * @param userName username provided by user.
@@ -634,12 +733,79 @@ public class P2PServiceImpl implements P2PServiceImplSEI {
      * <p> If request failed one of the error code strings followed by short string description element:</p>
      *      <p> ["ERROR"] - if there was a server error when fulfilling the request.</p>
      *      <p> ["CRED"] - if token/username combination is incorrect.</p>
-     *      <p> ["FULL"] - if user has reached maximum number of files (10).</p>
+     *      <p> ["FULL"] - if user has reached maximum number of files (10 by default).</p>
      *      <p> ["COPY"] - if file already exists.</p>
      *      <p><i>and</i></p>
      *      <p> [description] - short string describing the error.</p>
      */
     public List <String> registerFile (String token,  String userName,  String fileName,  String fileType,  String filePath,  long fileSize) {
+        return registerFile(token, userName, fileName, fileType, filePath, fileSize, null, 0, null);
+    }
+
+    /**
+     * <p> This WebMethod implementation is used by Clients to register a new file together with its content hashes.
+     * The file is split into pieces of the given size, the piece hashes are SHA-256 hashes of the pieces in order
+     * written as one string of hex digits, and the root hash is the Merkle root computed from the piece hashes.
+     * Downloading clients use the hashes to verify every piece they receive. Apart from checking the format of
+     * the hashes it works like registerFile.</p>
+     *
+     * <p> Called by: {@link serviceClient.ClientGUI}</p>
+     *
+     * <p> Calls: {@link Server.P2PServiceImpl#isActiveUsersReady}, {@link Server.P2PServiceImpl#verifyActiveUser},
+     * {@link Server.P2PDatabase#registerFile}, {@link Server.SearchResultCache#invalidateFile},
+     * {@link Server.OutputManager#printToTextArea}</p>
+     *
+     * @param token token provided by user.
+     * @param userName username provided by user.
+     * @param fileName name of the file to be registered.
+     * @param fileType type of the file to be registered.
+     * @param filePath path of the file to be registered.
+     * @param fileSize size of the file to be registered.
+     * @param rootHash hex Merkle root of the piece hashes.
+     * @param pieceSize size of the hashed pieces in bytes.
+     * @param pieceHashes hex SHA-256 hashes of all pieces in order.
+     *
+     * @return <p><b> List <String> with two elements: </b></p>
+     * <p> Same as registerFile, with one more error code:</p>
+     *      <p> ["HASH"] - if the hashes do not match the size of the file.</p>
+     *      <p><i>and</i></p>
+     *      <p> [description] - short string describing the result.</p>
+     */
+    public List <String> registerHashedFile (String token,  String userName,  String fileName,  String fileType,  String filePath,  long fileSize,
+                                             String rootHash,  int pieceSize,  String pieceHashes) {
+        if (!isValidHashes(fileSize, rootHash, pieceSize, pieceHashes)) {
+            List <String> response = new ArrayList<>();
+            response.add("HASH");
+            response.add("Could not register file " + fileName + ". File hashes are malformed.");
+            return response;
+        }
+        return registerFile(token, userName, fileName, fileType, filePath, fileSize, rootHash.toLowerCase(),
+                pieceSize, pieceHashes.toLowerCase());
+    }
+
+    /**
+     * <p> This method registers a file with or without its content hashes. It verifies the user via provided token
+     * and username, then the database checks the number of files and duplicates and adds the file.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl#registerFile}, {@link Server.P2PServiceImpl#registerHashedFile}</p>
+     *
+     * <p> Calls: {@link Server.P2PServiceImpl#isActiveUsersReady}, {@link Server.P2PServiceImpl#verifyActiveUser},
+     * {@link Server.P2PDatabase#registerFile}, {@link Server.SearchResultCache#invalidateFile},
+     * {@link Server.OutputManager#printToTextArea}</p>
+     *
+     * @param token token provided by user.
+     * @param userName username provided by user.
+     * @param fileName name of the file to be registered.
+     * @param fileType type of the file to be registered.
+     * @param filePath path of the file to be registered.
+     * @param fileSize size of the file to be registered.
+     * @param rootHash hex Merkle root of the piece hashes, <i>null</i> if file was not hashed.
+     * @param pieceSize size of the hashed pieces in bytes.
+     * @param pieceHashes hex SHA-256 hashes of all pieces in order.
+     * @return List <String> response as described in registerFile.
+     */
+    private List <String> registerFile (String token,  String userName,  String fileName,  String fileType,  String filePath,  long fileSize,
+                                        String rootHash,  int pieceSize,  String pieceHashes) {
         List <String> response = new ArrayList<>();
         // check if active user list is set up
         if(!isActiveUsersReady()){
@@ -654,119 +820,31 @@ public class P2PServiceImpl implements P2PServiceImplSEI {
             return response;
         }
 
-        String query = "select count(*) from UserFiles where User_Name = \""+userName+"\";";
-        // check number of files user has registered
-        try{
-            sqlConnection = SQLConnectionManager.getSqlConnection();
-            Statement statement = sqlConnection.createStatement();
-            ResultSet result = sqlExecuteQuery(query,statement);
-            // test for database issues
-            if (result == null) {
-                throw new SQLException();
-            }
-            // parse result
-            while (result.next()) {
-                if(result.getInt(1) >= MAX_USER_FILES){
-                    response.add("FULL");
-                    response.add("User has reached maximum number of files (" + MAX_USER_FILES + ").");
-                    return response;
-                }
-            }
-        }catch (SQLException e) {
-            outputManager.printToTextArea("SQL ERROR: occurred when acquiring number of user files for " + userName + ": " +
-                    "\n" + e);
-            response.add("ERROR");
-            response.add("Could not register file " + fileName + ". Try again later.");
-            return response;
-        }catch (Exception e) {
-            outputManager.printToTextArea("ERROR: occurred when acquiring number of user files for " + userName + ": " +
-                    "\n" + e);
-            response.add("ERROR");
-            response.add("Could not register file " + fileName + ". Try again later.");
-            return response;
-        }
-
-        filePath = filePath.replace("\\","\\\\");
-        query = "select * from UserFiles where User_Name = \""+userName+"\" and File_Name = \""+fileName+"\" and File_Type = \""+fileType+"\" and File_Path = \""+filePath+"\";";
-        // find file in case of duplicate
-        try{
-            Statement statement = sqlConnection.createStatement();
-            ResultSet result = sqlExecuteQuery(query,statement);
-            // test for database issues
-            if (result == null) {
-                throw new SQLException();
-            } else if (result.next()) {
+        // check number of files, duplicates and add new file to the database
+        try {
+            String result = database.registerFile(userName, fileName, fileType, filePath, fileSize, MAX_USER_FILES,
+                    rootHash, pieceSize, pieceHashes);
+            if (result.equals("FULL")) {
+                response.add("FULL");
+                response.add("User has reached maximum number of files (" + MAX_USER_FILES + ").");
+                return response;
+            } else if (result.equals("COPY")) {
                 response.add("COPY");
                 response.add("Could not register chosen file. File already exists.");
                 return response;
             }
-            // close resources
-            result.close();
-            statement.close();
-        } catch (SQLException e) {
-            outputManager.printToTextArea("SQL ERROR: occurred when verifying file copies for " + userName + ": " +
-                    "\n" + e);
-            response.add("ERROR");
-            response.add("Could not register file " + fileName + ". Try again later.");
-            return response;
-        } catch (Exception e) {
-            outputManager.printToTextArea("ERROR: occurred when verifying file copies for " + userName + ": " +
-                    "\n" + e);
-            response.add("ERROR");
-            response.add("Could not register file " + fileName + ". Try again later.");
-            return response;
-        }
-
-        Random rand = new Random();
-        ResultSet sqlIdResult;
-        int fileId;
-        // generate file id and check if is not already in use
-        try{
-            do{
-                fileId = rand.nextInt(1000000);
-                String fileIdQuery = "select * from UserFiles where File_ID = \""+fileId+"\";";
-                Statement statement = sqlConnection.createStatement();
-                sqlIdResult = sqlExecuteQuery(fileIdQuery,statement);
-                if (sqlIdResult == null) {
-                    throw new SQLException();
-                }
-            }while (sqlIdResult.next());
-        }catch (SQLException e){
-            outputManager.printToTextArea("ERROR: occurred when generating new File_ID for " + userName + ": " +
-                    "\n" + e);
-            response.add("ERROR");
-            response.add("Could not register file " + fileName + ". Try again later.");
-            return response;
-        }catch (Exception e){
-            outputManager.printToTextArea("SQL ERROR: occurred when generating new File_ID for " + userName + ": " +
-                    "\n" + e);
-            response.add("ERROR");
-            response.add("Could not register file " + fileName + ". Try again later.");
-            return response;
-        }
-
-        // add new file to the database
-        query = "insert into UserFiles values (\""+fileId+"\",\""+fileName+"\",\""+fileType+"\",\""+filePath+"\",\""+fileSize+"\",\""+userName+"\");";
-        try {
-            Statement statement = sqlConnection.createStatement();
-            int result = sqlExecuteUpdate(query,statement);
-            // close resources
-            statement.close();
-            // check if file was added
-            if (result == 0) {
-                throw new SQLException();
-            }
+            searchCache.invalidateFile(fileName, fileType);
             response.add("OK");
             response.add("File successfully registered on the server.");
             return response;
         } catch (SQLException e) {
-            outputManager.printToTextArea("SQL ERROR: occurred when registering file in the database: " +
+            outputManager.printToTextArea("SQL ERROR: occurred when registering file of " + userName + " in the database: " +
                     "\n" + e);
             response.add("ERROR");
             response.add("Could not register file " + fileName + ". Try again later.");
             return response;
         } catch (Exception e) {
-            outputManager.printToTextArea("ERROR: occurred when registering file in the database: " +
+            outputManager.printToTextArea("ERROR: occurred when registering file of " + userName + " in the database: " +
                     "\n" + e);
             response.add("ERROR");
             response.add("Could not register file " + fileName + ". Try again later.");
@@ -782,7 +860,7 @@ public class P2PServiceImpl implements P2PServiceImplSEI {
      * <p> Called by: {@link serviceClient.ClientGUI}</p>
      *
      * <p> Calls: {@link Server.P2PServiceImpl#isActiveUsersReady}, {@link Server.P2PServiceImpl#verifyActiveUser},
-     * {@link Server.P2PServiceImpl#sqlExecuteUpdate}, {@link Server.SQLConnectionManager#getSqlConnection},
+     * {@link Server.P2PDatabase#deregisterFile}, {@link Server.SearchResultCache#invalidateFile},
      * {@link Server.OutputManager#printToTextArea}</p>
      *
      * @param token token provided by user.
@@ -817,19 +895,13 @@ public class P2PServiceImpl implements P2PServiceImplSEI {
             return response;
         }
 
-        filePath = filePath.replace("\\","\\\\");
-        String query = "delete from UserFiles where User_Name = \""+userName+"\" and File_Name = \""+fileName+"\" and File_Type = \""+fileType+"\" and File_Path = \""+filePath+"\";";
         // remove file from the database
         try {
-            sqlConnection = SQLConnectionManager.getSqlConnection();
-            Statement statement = sqlConnection.createStatement();
-            int result = sqlExecuteUpdate(query,statement);
-            // close resources
-            statement.close();
             // check if file was removed
-            if (result == 0) {
+            if (!database.deregisterFile(userName, fileName, fileType, filePath)) {
                 throw new SQLException();
             }
+            searchCache.invalidateFile(fileName, fileType);
             response.add("OK");
             response.add("File deregistered from server.");
             return response;
@@ -848,6 +920,220 @@ public class P2PServiceImpl implements P2PServiceImplSEI {
         }
     }
 
+    /**
+     * <p> This WebMethod implementation is used by Clients to register many files in one request, for example all
+     * files of a shared folder. It verifies the user via provided token and username, checks the format of every
+     * file and registers the well formed files in one database transaction.</p>
+     *
+     * <p> Called by: {@link serviceClient.ClientGUI}</p>
+     *
+     * <p> Calls: {@link Server.P2PServiceImpl#isActiveUsersReady}, {@link Server.P2PServiceImpl#verifyActiveUser},
+     * {@link Server.P2PServiceImpl#isValidHashes}, {@link Server.P2PDatabase#registerFiles},
+     * {@link Server.SearchResultCache#invalidateFile}, {@link Server.OutputManager#printToTextArea}</p>
+     *
+     * @param token token provided by user.
+     * @param userName username provided by user.
+     * @param files seven string elements for every file to be registered: File_Name, File_Type, File_Path,
+     *              File_Size, Root_Hash, Piece_Size and Piece_Hashes. Root_Hash, Piece_Size and Piece_Hashes
+     *              are empty for a file registered without hashes.
+     *
+     * @return <p><b> List <String> with two or more elements: </b></p>
+     * <p> If request completed successfully method returns an OK string followed by one string element for every
+     * file in order:</p>
+     *      <p> ["OK"] - if request was processed.</p>
+     *      <p><i>and</i></p>
+     *      <p> [status] - "OK", "FULL", "COPY" or "HASH" as returned by registerHashedFile, "ERROR" if file size
+     *      or piece size is not a number.</p>
+     * <p></p>
+     * <p> If request failed one of the error code strings followed by short string description element:</p>
+     *      <p> ["ERROR"] - if there was a server error when fulfilling the request or the list of files is
+     *      malformed.</p>
+     *      <p> ["CRED"] - if token/username combination is incorrect.</p>
+     *      <p><i>and</i></p>
+     *      <p> [description] - short string describing the error.</p>
+     */
+    public List <String> registerFiles (String token,  String userName,  List <String> files) {
+        List <String> response = new ArrayList<>();
+        // check if active user list is set up
+        if(!isActiveUsersReady()){
+            response.add("ERROR");
+            response.add("Server is not ready for requests. Try again later.");
+            return response;
+        }
+        // verify user
+        if(!verifyActiveUser(token, userName)){
+            response.add("CRED");
+            response.add("Could not register files. Token/Username mismatch.");
+            return response;
+        }
+        if (!isValidBatch(files, REGISTER_FIELDS)) {
+            response.add("ERROR");
+            response.add("Could not register files. List of files is malformed or has more than " + MAX_BATCH_FILES +
+                    " files.");
+            return response;
+        }
+
+        // check format of every file, only well formed files are sent to the database
+        String[] results = new String[files.size() / REGISTER_FIELDS];
+        List<P2PDatabase.FileRecord> records = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        for (int i = 0; i < results.length; i++) {
+            int field = i * REGISTER_FIELDS;
+            String rootHash = files.get(field + 4);
+            boolean hashed = rootHash != null && !rootHash.isEmpty();
+            long fileSize;
+            int pieceSize;
+            try {
+                fileSize = Long.parseLong(files.get(field + 3));
+                pieceSize = hashed ? Integer.parseInt(files.get(field + 5)) : 0;
+            } catch (NumberFormatException e) {
+                results[i] = "ERROR";
+                continue;
+            }
+            String pieceHashes = files.get(field + 6);
+            if (hashed && !isValidHashes(fileSize, rootHash, pieceSize, pieceHashes)) {
+                results[i] = "HASH";
+                continue;
+            }
+            records.add(new P2PDatabase.FileRecord(files.get(field), files.get(field + 1), files.get(field + 2),
+                    fileSize, hashed ? rootHash.toLowerCase() : null, pieceSize,
+                    hashed ? pieceHashes.toLowerCase() : null));
+            positions.add(i);
+        }
+
+        // check number of files, duplicates and add new files to the database
+        try {
+            String[] registered = database.registerFiles(userName, records, MAX_USER_FILES);
+            for (int i = 0; i < registered.length; i++) {
+                int position = positions.get(i);
+                results[position] = registered[i];
+                if (registered[i].equals("OK")) {
+                    searchCache.invalidateFile(files.get(position * REGISTER_FIELDS),
+                            files.get(position * REGISTER_FIELDS + 1));
+                }
+            }
+        } catch (SQLException e) {
+            outputManager.printToTextArea("SQL ERROR: occurred when registering files of " + userName + " in the database: " +
+                    "\n" + e);
+            response.add("ERROR");
+            response.add("Could not register files. Try again later.");
+            return response;
+        } catch (Exception e) {
+            outputManager.printToTextArea("ERROR: occurred when registering files of " + userName + " in the database: " +
+                    "\n" + e);
+            response.add("ERROR");
+            response.add("Could not register files. Try again later.");
+            return response;
+        }
+        response.add("OK");
+        response.addAll(Arrays.asList(results));
+        return response;
+    }
+
+    /**
+     * <p> This WebMethod implementation is used by Clients to remove many files from the database in one request.
+     * It verifies the user via provided token and username, then removes the files in one database transaction.</p>
+     *
+     * <p> Called by: {@link serviceClient.ClientGUI}</p>
+     *
+     * <p> Calls: {@link Server.P2PServiceImpl#isActiveUsersReady}, {@link Server.P2PServiceImpl#verifyActiveUser},
+     * {@link Server.P2PDatabase#deregisterFiles}, {@link Server.SearchResultCache#invalidateFile},
+     * {@link Server.OutputManager#printToTextArea}</p>
+     *
+     * @param token token provided by user.
+     * @param userName username provided by user.
+     * @param files three string elements for every file to be removed: File_Name, File_Type and File_Path.
+     *
+     * @return <p><b> List <String> with two or more elements: </b></p>
+     * <p> If request completed successfully method returns an OK string followed by one string element for every
+     * file in order:</p>
+     *      <p> ["OK"] - if request was processed.</p>
+     *      <p><i>and</i></p>
+     *      <p> [status] - "OK" if file was removed, "404" if user has no such file.</p>
+     * <p></p>
+     * <p> If request failed one of the error code strings followed by short string description element:</p>
+     *      <p> ["ERROR"] - if there was a server error when fulfilling the request or the list of files is
+     *      malformed.</p>
+     *      <p> ["CRED"] - if token/username combination is incorrect.</p>
+     *      <p><i>and</i></p>
+     *      <p> [description] - short string describing the error.</p>
+     */
+    public List <String> deregisterFiles (String token,  String userName,  List <String> files) {
+        List <String> response = new ArrayList<>();
+        if(!isActiveUsersReady()){
+            response.add("ERROR");
+            response.add("Server is not ready for requests. Try again later.");
+            return response;
+        }
+        // verify user
+        if(!verifyActiveUser(token, userName)){
+            response.add("CRED");
+            response.add("Could not deregister files. Token/Username mismatch.");
+            return response;
+        }
+        if (!isValidBatch(files, DEREGISTER_FIELDS)) {
+            response.add("ERROR");
+            response.add("Could not deregister files. List of files is malformed or has more than " +
+                    MAX_BATCH_FILES + " files.");
+            return response;
+        }
+
+        // remove files from the database
+        List<P2PDatabase.FileRecord> records = new ArrayList<>();
+        for (int field = 0; field < files.size(); field += DEREGISTER_FIELDS) {
+            records.add(new P2PDatabase.FileRecord(files.get(field), files.get(field + 1), files.get(field + 2),
+                    0, null, 0, null));
+        }
+        try {
+            boolean[] removed = database.deregisterFiles(userName, records);
+            response.add("OK");
+            for (int i = 0; i < removed.length; i++) {
+                if (removed[i]) {
+                    searchCache.invalidateFile(files.get(i * DEREGISTER_FIELDS), files.get(i * DEREGISTER_FIELDS + 1));
+                }
+                response.add(removed[i] ? "OK" : "404");
+            }
+            return response;
+        } catch (SQLException e) {
+            outputManager.printToTextArea("SQL ERROR: occurred when removing files of " + userName + ": " +
+                    "\n" + e);
+            response.clear();
+            response.add("ERROR");
+            response.add("Could not remove files. Try again later.");
+            return response;
+        } catch (Exception e) {
+            outputManager.printToTextArea("ERROR: occurred when removing files of " + userName + ": " +
+                    "\n" + e);
+            response.clear();
+            response.add("ERROR");
+            response.add("Could not remove files. Try again later.");
+            return response;
+        }
+    }
+
+    /**
+     * <p> This method checks that a list of files sent in one request has the given number of non <i>null</i>
+     * elements for every file and no more than <i>p2p.batch.maxFiles</i> files.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl#registerFiles}, {@link Server.P2PServiceImpl#deregisterFiles}</p>
+     *
+     * @param files list of files.
+     * @param fields number of elements of every file.
+     * @return boolean true if list is well formed.
+     */
+    private boolean isValidBatch(List <String> files, int fields) {
+        if (files == null || files.size() % fields != 0 || files.size() / fields > MAX_BATCH_FILES) {
+            return false;
+        }
+        for (int i = 0; i < files.size(); i++) {
+            // hashes of a file registered without them may be left out
+            if (files.get(i) == null && (fields != REGISTER_FIELDS || i % fields < 4)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * <p> This WebMethod implementation is used by Clients to get a list of files registered by the user. It verifies
      * the user via provided token and username. Then it searches the database for the files registered by the user
@@ -856,8 +1142,7 @@ public class P2PServiceImpl implements P2PServiceImplSEI {
      * <p> Called by: {@link serviceClient.ClientGUI}</p>
      *
      * <p> Calls: {@link Server.P2PServiceImpl#isActiveUsersReady}, {@link Server.P2PServiceImpl#verifyActiveUser},
-     * {@link Server.P2PServiceImpl#sqlExecuteQuery}, {@link Server.SQLConnectionManager#getSqlConnection},
-     * {@link Server.OutputManager#printToTextArea}</p>
+     * {@link Server.P2PDatabase#getUserFiles}, {@link Server.OutputManager#printToTextArea}</p>
      *
      * @param token token provided by user.
      * @param userName username provided by user.
@@ -893,35 +1178,24 @@ public class P2PServiceImpl implements P2PServiceImplSEI {
             return response;
         }
 
-        String query = "select File_ID, File_Name, File_Type, File_Path, File_Size from UserFiles where User_Name = \""+userName+"\";";
         // get user files from the database
         try {
-            sqlConnection = SQLConnectionManager.getSqlConnection();
-            Statement statement = sqlConnection.createStatement();
-            ResultSet result = sqlExecuteQuery(query,statement);
-            // test for database issues
-            if (result == null) {
-                throw new SQLException();
-            }
+            List<String[]> rows = database.getUserFiles(userName);
             // handle empty result
-            if (!result.next()) {
+            if (rows.isEmpty()) {
                 response.add("404");
                 response.add("No files found.");
                 return response;
             }
             response.add("OK");
             // parse sql result
-            do {
-                response.add(result.getString(1));
-                response.add(result.getString(2));
-                response.add(result.getString(3));
-                response.add(result.getString(4));
-                response.add(result.getString(5));
-            } while (result.next());
-            // close resources
-            result.close();
-            statement.close();
-            // parse result
+            for (String[] row : rows) {
+                response.add(row[0]);
+                response.add(row[1]);
+                response.add(row[2]);
+                response.add(row[3]);
+                response.add(row[4]);
+            }
             return response;
         } catch (SQLException e) {
             outputManager.printToTextArea("SQL ERROR: occurred when fetching files of " + userName + ": " +
@@ -938,31 +1212,34 @@ public class P2PServiceImpl implements P2PServiceImplSEI {
         }
     }
 
-
     /**
      * <p> This WebMethod implementation is used by Clients to search for a file on the server. It verifies the user
-     * via provided token and username. Then it searches the database for the files matching the search string and
+     * via provided token and username. Then it searches the file index for the files matching the search string and
      * makes sure that only files registered by currently active users are returned not including files registered by
-     * the searching user.</p>
+     * the searching user. Files with the same content hashes are returned once, with the number of active users
+     * hosting that content. At most <i>p2p.search.maxResults</i> results are returned, most relevant first, clients
+     * that need all results page through them with searchFilePage.</p>
      *
      * <p> Called by: {@link serviceClient.ClientGUI}</p>
      *
      * <p> Calls: {@link Server.P2PServiceImpl#isActiveUsersReady}, {@link Server.P2PServiceImpl#verifyActiveUser},
-     * {@link Server.P2PServiceImpl#sqlExecuteQuery}, {@link Server.SQLConnectionManager#getSqlConnection},
-     * {@link Server.ActiveUsers#findUser}, {@link Server.OutputManager#printToTextArea}</p>
+     * {@link Server.P2PServiceImpl#findSearchResults}, {@link Server.SearchResult#addTo},
+     * {@link Server.OutputManager#printToTextArea}</p>
      *
      * @param token token provided by user.
      * @param userName username provided by user.
      * @param searchQuery String used to search for files in the database.
      *
      * @return <p><b> List <String> with two or more elements: </b></p>
-     * <p> If request completed successfully method returns an OK string followed by four more string elements:</p>
+     * <p> If request completed successfully method returns an OK string followed by five more string elements for
+     * every distinct content found:</p>
      *      <p> ["OK"] - if file was found.</p>
      *      <p><i>and</i></p>
-     *      <p> [File_ID] - ID of the file.</p>
+     *      <p> [File_ID] - ID of one of the files with the content.</p>
      *      <p> [File_Name] - name of the file.</p>
      *      <p> [File_Type] - type of the file.</p>
      *      <p> [File_Size] - size of the file.</p>
+     *      <p> [Host_Count] - number of active users hosting the content.</p>
      * <p></p>
      * <p> If request failed one of the error code strings followed by short string description element:</p>
      *      <p> ["404"] - if no file was found.</p>
@@ -985,46 +1262,131 @@ public class P2PServiceImpl implements P2PServiceImplSEI {
             return response;
         }
 
-        String query = "SELECT File_ID, File_Name, File_Type, File_Size, User_Name " +
-                "FROM UserFiles WHERE CONCAT_WS('', File_Name, File_Type) LIKE '%" + searchQuery + "%' AND User_Name != \""+userName+"\";";
         // search for a file in the database
         try {
-            sqlConnection = SQLConnectionManager.getSqlConnection();
-            Statement statement = sqlConnection.createStatement();
-            ResultSet result = sqlExecuteQuery(query,statement);
-            // test for database issues
-            if (result == null) {
-                throw new SQLException();
+            List<SearchResult> results = findSearchResults(searchQuery, "relevance");
+            response.add("OK");
+            // only the most relevant results are returned
+            int returned = 0;
+            for (int i = 0; i < results.size() && returned < SEARCH_MAX_RESULTS; i++) {
+                if (results.get(i).countHosts(userName) > 0) {
+                    results.get(i).addTo(response, userName);
+                    returned++;
+                }
             }
-            // handle empty result
-            if (!result.next()) {
+            // check if any files were found
+            if(response.size() < 2){
+                response = new ArrayList<>();
                 response.add("404");
                 response.add("No files containing \"" + searchQuery + "\" found.");
                 return response;
             }
-            response.add("OK");
-            // parse sql result
-            do {
-                // check if host is active
-                String userWithFile = result.getString(5);
-                if(activeUsers.findUser(userWithFile) != null && !userWithFile.equals(userName)){
-                	response.add(result.getString(1));
-                	response.add(result.getString(2));
-                    response.add(result.getString(3));
-                    response.add(result.getString(4));
+            return response;
+        } catch (SQLException e) {
+            outputManager.printToTextArea("SQL ERROR: occurred when searching for a query of " + userName + ": " +
+                    "\n" + e);
+            response.add("ERROR");
+            response.add("Could not search for \"" + searchQuery + "\". Try again later.");
+            return response;
+        } catch (Exception e) {
+            outputManager.printToTextArea("ERROR: occurred when searching for a query of " + userName + ": " +
+                    "\n" + e);
+            response.add("ERROR");
+            response.add("Could not search for \"" + searchQuery + "\". Try again later.");
+            return response;
+        }
+    }
+
+
+    /**
+     * <p> This WebMethod implementation is used by Clients to search for a file on the server one page at a time.
+     * It finds the same results as searchFile, sorts them in the requested order and returns the page that starts
+     * after the cursor. The cursor of the next page is returned with every page, so clients can load further pages
+     * only when they are needed. The cursor holds the sort key of the last result of the page rather than its
+     * position, so results added or removed while a client pages do not make pages skip or repeat results.</p>
+     *
+     * <p> Called by: {@link serviceClient.ClientGUI}</p>
+     *
+     * <p> Calls: {@link Server.P2PServiceImpl#isActiveUsersReady}, {@link Server.P2PServiceImpl#verifyActiveUser},
+     * {@link Server.P2PServiceImpl#findSearchResults}, {@link Server.SearchResult#pageStart},
+     * {@link Server.SearchResult#cursor}, {@link Server.SearchResult#addTo},
+     * {@link Server.OutputManager#printToTextArea}</p>
+     *
+     * @param token token provided by user.
+     * @param userName username provided by user.
+     * @param searchQuery String used to search for files in the database.
+     * @param limit maximum number of results in the page, values below one select the default page size and values
+     *              above <i>p2p.search.maxPageSize</i> are reduced to it.
+     * @param cursor cursor returned with the previous page, empty or <i>null</i> for the first page.
+     * @param sort order of the results: "relevance", "name", "size" or "hosts".
+     *
+     * @return <p><b> List <String> with two or more elements: </b></p>
+     * <p> If request completed successfully method returns an OK string followed by the cursor of the next page,
+     * the number of results and five more string elements for every result in the page, same as searchFile:</p>
+     *      <p> ["OK"] - if file was found.</p>
+     *      <p><i>and</i></p>
+     *      <p> [cursor] - cursor of the next page, empty if this is the last page.</p>
+     *      <p> [total] - number of results of the search.</p>
+     *      <p> [File_ID], [File_Name], [File_Type], [File_Size], [Host_Count] - for every result.</p>
+     * <p></p>
+     * <p> If request failed one of the error code strings followed by short string description element:</p>
+     *      <p> ["404"] - if no file was found.</p>
+     *      <p> ["ERROR"] - if there was a server error when fulfilling the request or the cursor is invalid.</p>
+     *      <p> ["CRED"] - if token/username combination is incorrect. </p>
+     *      <p><i>and</i></p>
+     *      <p> [description] - short string describing the error. </p>
+     */
+    public List <String> searchFilePage ( String token,  String userName,  String searchQuery,  int limit,
+                                          String cursor,  String sort){
+        List <String> response = new ArrayList<>();
+        if(!isActiveUsersReady()){
+            response.add("ERROR");
+            response.add("Server is not ready for requests. Try again later.");
+            return response;
+        }
+        // verify user
+        if(!verifyActiveUser(token, userName)){
+            response.add("CRED");
+            response.add("Could not search for specified files. Token/Username mismatch.");
+            return response;
+        }
+        int pageSize = limit < 1 ? SEARCH_PAGE_SIZE : Math.min(limit, SEARCH_MAX_PAGE_SIZE);
+
+        // search for a file in the database
+        try {
+            List<SearchResult> results = findSearchResults(searchQuery, sort);
+            // the page starts after the sort key of the last result of the previous page
+            int position = SearchResult.pageStart(results, cursor, sort);
+            if (position < 0) {
+                response.add("ERROR");
+                response.add("Invalid search cursor.");
+                return response;
+            }
+            // results hosted only by the searching user are skipped
+            int total = 0;
+            for (SearchResult result : results) {
+                if (result.countHosts(userName) > 0) {
+                    total++;
                 }
-            }while (result.next());
-            // check if any files were found
-            if(response.size() < 2){
-                response = new ArrayList<>();
+            }
+            if (total == 0) {
                 response.add("404");
                 response.add("No files containing \"" + searchQuery + "\" found.");
                 return response;
             }
-            // close resources
-            result.close();
-            statement.close();
-            // parse result
+            List<String> page = new ArrayList<>();
+            SearchResult last = null;
+            for (int returned = 0; position < results.size() && returned < pageSize; position++) {
+                if (results.get(position).countHosts(userName) > 0) {
+                    last = results.get(position);
+                    last.addTo(page, userName);
+                    returned++;
+                }
+            }
+            response.add("OK");
+            response.add(last != null && position < results.size() ? last.cursor() : "");
+            response.add(Integer.toString(total));
+            response.addAll(page);
             return response;
         } catch (SQLException e) {
             outputManager.printToTextArea("SQL ERROR: occurred when searching for a query of " + userName + ": " +
@@ -1041,28 +1403,62 @@ public class P2PServiceImpl implements P2PServiceImplSEI {
         }
     }
 
+    /**
+     * <p> Finds merged and sorted results of a search. Results are taken from the SearchResultCache when the same
+     * search was made since its results last changed, otherwise files of all users are searched and the results are
+     * cached for every searching user.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl#searchFile}, {@link Server.P2PServiceImpl#searchFilePage}</p>
+     *
+     * <p> Calls: {@link Server.SearchResultCache#get}, {@link Server.SearchResultCache#put},
+     * {@link Server.P2PDatabase#searchFiles}, {@link Server.SearchResult#merge}</p>
+     *
+     * @param searchQuery String used to search for files in the database.
+     * @param sort order of the results.
+     * @return List of results including files of the searching user.
+     * @throws SQLException if there is a problem with the SQL connection.
+     */
+    private List<SearchResult> findSearchResults(String searchQuery, String sort) throws SQLException {
+        List<SearchResult> results = searchCache.get(searchQuery, sort);
+        if (results != null) {
+            return results;
+        }
+        long version = searchCache.getVersion();
+        List<String[]> rows = database.searchFiles(searchQuery, "");
+        results = SearchResult.merge(rows, activeUsers, searchQuery, sort);
+        // owners of inactive files are recorded too, their login changes the results
+        Set<String> owners = new HashSet<>();
+        for (String[] row : rows) {
+            owners.add(row[4]);
+        }
+        searchCache.put(searchQuery, sort, results, owners, version);
+        return results;
+    }
     /**
      * <p> This WebMethod implementation is used by Clients to get information about the host of a file they are looking
      * to download. It verifies the user via provided token and username and makes sure that the server is ready for interaction.
-     * Then it searches the database for the users that match the file ID provided and makes sure that only active
-     * users are returned. If an error occurs, method returns an error code and a short description.</p>
+     * Then it searches the database for the users that host the content of the file with the ID provided and makes
+     * sure that only active users are returned. If an error occurs, method returns an error code and a short
+     * description.</p>
      *
      * <p> Called by: {@link serviceClient.ClientGUI}</p>
      *
      * <p> Calls: {@link Server.P2PServiceImpl#isActiveUsersReady}, {@link Server.P2PServiceImpl#verifyActiveUser},
-     * {@link Server.P2PServiceImpl#sqlExecuteQuery}, {@link Server.SQLConnectionManager#getSqlConnection},
-     * {@link Server.ActiveUsers#findUser}, {@link Server.OutputManager#printToTextArea}</p>
+     * {@link Server.P2PDatabase#getFileHosts}, {@link Server.ActiveUsers#findUser},
+     * {@link Server.OutputManager#printToTextArea}</p>
      *
      * @param token token provided by user.
      * @param userName username provided by user.
      * @param fileID ID of the file to be downloaded.
      *
      * @return <p><b> List <String> with two or more elements: </b></p>
-     * <p> If request completed successfully method returns an OK string followed by three more string elements:</p>
+     * <p> If request completed successfully method returns an OK string followed by three more string elements for
+     * every active host:</p>
      *      <p> ["OK"] - if host was found.</p>
      *      <p> [User_IP] - IP address of the active user with the file. </p>
      *      <p> [User_Port] - port number of the active user with the file. </p>
-     *      <p> [File_Path] - path of the file on the active user's machine. </p>
+     *      <p> [File_Path] - full path of the file, including its name and type, on the active user's machine. Hosts
+     *      may have the same content under a different name.</p>
      * <p></p>
      * <p> If request failed one of the error code strings followed by short string description element:</p>
      *      <p> ["404"] - if no available host was found.</p>
@@ -1084,36 +1480,27 @@ public class P2PServiceImpl implements P2PServiceImplSEI {
             return response;
         }
 
-        String query = "select Users.User_Name, User_IP, User_Port, File_Path from Users" +
-                " inner join UserFiles ON Users.User_Name = UserFiles.User_Name" +
-                " where File_ID = \""+fileID+"\"" +
-                " and UserFiles.User_Name != \""+userName+"\";";
         // get file host info from the database
         try {
-            sqlConnection = SQLConnectionManager.getSqlConnection();
-            Statement statement = sqlConnection.createStatement();
-            ResultSet result = sqlExecuteQuery(query,statement);
-            // test for database issues
-            if (result == null) {
-                throw new SQLException();
-            }
+            List<String[]> rows = database.getFileHosts(fileID, userName);
             // handle empty result
-            if (!result.next()) {
+            if (rows.isEmpty()) {
                 response.add("404");
                 response.add("No file hosts were found.");
                 return response;
             }
             response.add("OK");
+            Set<String> hostNames = new HashSet<>();
             // parse sql result
-            do {
-                // check if host is active
-                ClientData dataUserWithFile = activeUsers.findUser(result.getString(1));
-                if(dataUserWithFile != null) {
-                    response.add(result.getString(2));
-                    response.add(result.getString(3));
-                    response.add(result.getString(4));
+            for (String[] row : rows) {
+                // check if host is active, a host with several copies of the content is returned once
+                ClientData dataUserWithFile = activeUsers.findUser(row[0]);
+                if(dataUserWithFile != null && hostNames.add(row[0])) {
+                    response.add(row[1]);
+                    response.add(row[2]);
+                    response.add(row[3] + row[4] + "." + row[5]);
                 }
-            }while (result.next());
+            }
             // check if any files were found
             if(response.size() < 2){
                 response = new ArrayList<>();
@@ -1121,10 +1508,6 @@ public class P2PServiceImpl implements P2PServiceImplSEI {
                 response.add("No active file hosts were found. Or file was removed.");
                 return response;
             }
-            // close resources
-            result.close();
-            statement.close();
-            // parse result
             return response;
         } catch (SQLException e) {
             outputManager.printToTextArea("SQL ERROR: occurred when completing host search request for " + userName + ": " +
@@ -1141,14 +1524,101 @@ public class P2PServiceImpl implements P2PServiceImplSEI {
         }
     }
 
+    /**
+     * <p> This WebMethod implementation is used by Clients to get content hashes of a file they are about to
+     * download. It verifies the user via provided token and username and returns the hashes registered with the
+     * file.</p>
+     *
+     * <p> Called by: {@link serviceClient.ClientGUI}</p>
+     *
+     * <p> Calls: {@link Server.P2PServiceImpl#isActiveUsersReady}, {@link Server.P2PServiceImpl#verifyActiveUser},
+     * {@link Server.P2PDatabase#getFileHashes}, {@link Server.OutputManager#printToTextArea}</p>
+     *
+     * @param token token provided by user.
+     * @param userName username provided by user.
+     * @param fileID ID of the file to be downloaded.
+     *
+     * @return <p><b> List <String> with two or more elements: </b></p>
+     * <p> If request completed successfully method returns an OK string followed by three more string elements:</p>
+     *      <p> ["OK"] - if hashes were found.</p>
+     *      <p> [Root_Hash] - hex Merkle root of the piece hashes. </p>
+     *      <p> [Piece_Size] - size of the hashed pieces in bytes. </p>
+     *      <p> [Piece_Hashes] - hex SHA-256 hashes of all pieces in order. </p>
+     * <p></p>
+     * <p> If request failed one of the error code strings followed by short string description element:</p>
+     *      <p> ["404"] - if file was registered without hashes.</p>
+     *      <p> ["ERROR"] - if there was a server error when fulfilling the request.</p>
+     *      <p> ["CRED"] - if token/username combination is incorrect. </p>
+     *      <p> [description] - short string describing the error. </p>
+     */
+    public List <String> getFileHashes ( String token,  String userName,  int fileID){
+        List <String> response = new ArrayList<>();
+        if(!isActiveUsersReady()){
+            response.add("ERROR");
+            response.add("Server is not ready for requests. Try again later.");
+            return response;
+        }
+        // verify user
+        if(!verifyActiveUser(token, userName)){
+            response.add("CRED");
+            response.add("Could not return file hashes. Token/Username mismatch.");
+            return response;
+        }
+        try {
+            String[] hashes = database.getFileHashes(fileID);
+            if (hashes == null) {
+                response.add("404");
+                response.add("File was registered without hashes.");
+                return response;
+            }
+            response.add("OK");
+            response.addAll(Arrays.asList(hashes));
+            return response;
+        } catch (SQLException e) {
+            outputManager.printToTextArea("SQL ERROR: occurred when reading file hashes for " + userName + ": " +
+                    "\n" + e);
+            response.add("ERROR");
+            response.add("Could not read file hashes. Try again later.");
+            return response;
+        } catch (Exception e) {
+            outputManager.printToTextArea("ERROR: occurred when reading file hashes for " + userName + ": " +
+                    "\n" + e);
+            response.add("ERROR");
+            response.add("Could not read file hashes. Try again later.");
+            return response;
+        }
+    }
+
+    /**
+     * <p> This method checks that the hashes sent with a file have the expected format: a 64 digit hex root hash
+     * and one 64 digit hex hash for every piece of the file.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl#registerHashedFile}, {@link Server.P2PServiceImpl#registerFiles}</p>
+     *
+     * @param fileSize size of the file.
+     * @param rootHash hex Merkle root of the piece hashes.
+     * @param pieceSize size of the hashed pieces in bytes.
+     * @param pieceHashes hex SHA-256 hashes of all pieces in order.
+     * @return boolean true if hashes are well formed.
+     */
+    private boolean isValidHashes(long fileSize, String rootHash, int pieceSize, String pieceHashes) {
+        if (rootHash == null || pieceHashes == null || pieceSize <= 0 || fileSize < 0) {
+            return false;
+        }
+        long pieces = Math.max(1, (fileSize + pieceSize - 1) / pieceSize);
+        return rootHash.length() == 64 && rootHash.matches("[0-9a-fA-F]+")
+                && pieceHashes.length() == pieces * 64 && pieceHashes.matches("[0-9a-fA-F]+");
+    }
+
     /**
      * <p> This method is used by this class methods to verify identity of the user making a request to the server.
      * This provides authentication and prevents unauthorized access to the server resources.</p>
      *
-     * <p> Called by: {@link Server.P2PServiceImpl#disconnectFromServer}, {@link Server.P2PServiceImpl#sendHeartBeat},
+     * <p> Called by: {@link Server.P2PServiceImpl#disconnectFromServer},
      * {@link Server.P2PServiceImpl#registerFile}, {@link Server.P2PServiceImpl#deregisterFile},
      * {@link Server.P2PServiceImpl#getUserFiles}, {@link Server.P2PServiceImpl#searchFile},
-     * {@link Server.P2PServiceImpl#getFileHostInfo}</p>
+     * {@link Server.P2PServiceImpl#searchFilePage}, {@link Server.P2PServiceImpl#getFileHostInfo},
+     * {@link Server.P2PServiceImpl#registerHashedFile}, {@link Server.P2PServiceImpl#getFileHashes}</p>
      *
      * <p> Calls: {@link Server.ActiveUsers#findUser}, {@link Server.OutputManager#printToTextArea},
      * {@link Server.ClientData#getName}, {@link Server.ClientData#getToken}, {@link Server.ActiveUsers#getNumOfUsers}</p>
@@ -1177,63 +1647,13 @@ public class P2PServiceImpl implements P2PServiceImplSEI {
         return false;
     }
 
-    /**
-     * <p> This method is used by this class methods to execute a query on the database using executeQuery method.
-     * It acquires a dbLock used to manage database access and to prevent multiple threads from accessing it at
-     * the same time. </p>
-     *
-     * <p> Called by: {@link Server.P2PServiceImpl#getUserInformation}, {@link Server.P2PServiceImpl#registerFile},
-     * {@link Server.P2PServiceImpl#getUserFiles}, {@link Server.P2PServiceImpl#searchFile},
-     * {@link Server.P2PServiceImpl#getFileHostInfo}</p>
-     *
-     * @param query query to be executed.
-     * @param statement statement to be executed.
-     *
-     * @return ResultSet result of the query being executed.
-     *
-     * @throws SQLException if there is a problem with the SQL connection.
-     */
-    private ResultSet sqlExecuteQuery(String query, Statement statement) throws SQLException {
-        try {
-            dbLock.lock();
-            return statement.executeQuery(query);
-        }finally {
-            dbLock.unlock();
-        }
-    }
-
-    /**
-     * <p> This method is used by this class methods to execute a query on the database using executeUpdate method. It
-     * acquires a dbLock used to manage database access and to prevent multiple threads from accessing it at the same
-     * time. </p>
-     *
-     * <p> Called by: {@link Server.P2PServiceImpl#connectToServer}, {@link Server.P2PServiceImpl#updateUserIp},
-     * {@link Server.P2PServiceImpl#updateUserPort}, {@link Server.P2PServiceImpl#registerFile},
-     * {@link Server.P2PServiceImpl#deregisterFile}</p>
-     *
-     * @param query query to be executed.
-     * @param statement statement to be executed.
-     *
-     * @return int result of the query being executed.
-     *
-     * @throws SQLException if there is a problem with the SQL connection.
-     */
-    private int sqlExecuteUpdate(String query, Statement statement) throws SQLException {
-        try {
-            dbLock.lock();
-            return statement.executeUpdate(query);
-        }finally {
-            dbLock.unlock();
-        }
-    }
-
     /**
      * <p> This method is used to generate a token for user authentication. It generates a long integer that gets
      * converted to string. Additionally it verifies that no duplicate token is created.</p>
      *
      * <p> Called by: {@link Server.P2PServiceImpl#connectToServer}, {@link Server.P2PServiceImpl#resumeSession}</p>
      *
-     * <p> Calls: {@link Server.ActiveUsers#getNumOfUsers()}, {@link Server.ActiveUsers#listActiveUsers()}</p>
+     * <p> Calls: {@link Server.ActiveUsers#findUserByToken}</p>
      *
      * @return String token to be used for user authentication.
      */
@@ -1243,10 +1663,9 @@ public class P2PServiceImpl implements P2PServiceImplSEI {
         long longToken;
         do {
             longToken = Math.abs(random.nextLong());
-            for(int i = 0; i<activeUsers.getNumOfUsers(); i++){
-                if(activeUsers.listActiveUsers()[i].getToken().equals(Long.toString(longToken, 16))){
-                    longToken = -1;
-                }
+            // make sure token is not used by another active user
+            if(activeUsers.findUserByToken(Long.toString(longToken, 16)) != null){
+                longToken = -1;
             }
         } while (longToken < 0);
         return Long.toString(longToken, 16);
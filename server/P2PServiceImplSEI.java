@@ -185,7 +185,7 @@ public interface P2PServiceImplSEI {
 	 * <p> If request failed one of the error code strings followed by short string description element:</p>
 	 *      <p> ["ERROR"] - if there was a server error when fulfilling the request.</p>
 	 *      <p> ["CRED"] - if token/username combination is incorrect.</p>
-	 *      <p> ["FULL"] - if user has reached maximum number of files (10).</p>
+	 *      <p> ["FULL"] - if user has reached maximum number of files (10 by default).</p>
 	 *      <p> ["COPY"] - if file already exists.</p>
 	 *      <p><i>and</i></p>
 	 *      <p> [description] - short string describing the error.</p>
@@ -271,7 +271,8 @@ public interface P2PServiceImplSEI {
 	 * <p> This WebMethod implementation is used by Clients to search for a file on the server. It verifies the user
 	 * via provided token and username. Then it searches the database for the files matching the search string and
 	 * makes sure that only files registered by currently active users are returned not including files registered by
-	 * the searching user.</p>
+	 * the searching user. Files with the same content hashes are returned once, with the number of active users
+	 * hosting that content. At most <i>p2p.search.maxResults</i> results are returned, most relevant first.</p>
 	 *
 	 * <p> Called by: {@link serviceClient.ClientGUI}</p>
 	 *
@@ -284,13 +285,15 @@ public interface P2PServiceImplSEI {
 	 * @param searchQuery String used to search for files in the database.
 	 *
 	 * @return <p><b> List <String> with two or more elements: </b></p>
-	 * <p> If request completed successfully method returns an OK string followed by four more string elements:</p>
+	 * <p> If request completed successfully method returns an OK string followed by five more string elements for
+	 * every distinct content found:</p>
 	 *      <p> ["OK"] - if file was found.</p>
 	 *      <p><i>and</i></p>
-	 *      <p> [File_ID] - ID of the file.</p>
+	 *      <p> [File_ID] - ID of one of the files with the content.</p>
 	 *      <p> [File_Name] - name of the file.</p>
 	 *      <p> [File_Type] - type of the file.</p>
 	 *      <p> [File_Size] - size of the file.</p>
+	 *      <p> [Host_Count] - number of active users hosting the content.</p>
 	 * <p></p>
 	 * <p> If request failed one of the error code strings followed by short string description element:</p>
 	 *      <p> ["404"] - if no file was found.</p>
@@ -305,11 +308,51 @@ public interface P2PServiceImplSEI {
 	public List<String> searchFile(@WebParam(name = "token", partName = "token") String token, @WebParam(name = "userName", partName = "userName") String userName,
 			@WebParam(name = "searchQuery", partName = "searchQuery") String searchQuery);
 
+	/**
+	 * <p> This WebMethod implementation is used by Clients to search for a file on the server one page at a time.
+	 * It finds the same results as searchFile, sorts them in the requested order and returns the page that starts
+	 * after the cursor. Results are ranked by relevance by default: exact name matches first, then name prefix
+	 * matches, then other matches, each group ordered by number of hosts.</p>
+	 *
+	 * <p> Called by: {@link serviceClient.ClientGUI}</p>
+	 *
+	 * @param token token provided by user.
+	 * @param userName username provided by user.
+	 * @param searchQuery String used to search for files in the database.
+	 * @param limit maximum number of results in the page, values below one select the default page size.
+	 * @param cursor cursor returned with the previous page, empty for the first page. It holds the sort key of the
+	 *               last result of that page, so the next page starts strictly after it.
+	 * @param sort order of the results: "relevance", "name", "size" or "hosts".
+	 *
+	 * @return <p><b> List <String> with two or more elements: </b></p>
+	 * <p> If request completed successfully method returns an OK string followed by the cursor of the next page,
+	 * the number of results and five more string elements for every result in the page, same as searchFile:</p>
+	 *      <p> ["OK"] - if file was found.</p>
+	 *      <p><i>and</i></p>
+	 *      <p> [cursor] - cursor of the next page, empty if this is the last page.</p>
+	 *      <p> [total] - number of results of the search.</p>
+	 *      <p> [File_ID], [File_Name], [File_Type], [File_Size], [Host_Count] - for every result.</p>
+	 * <p></p>
+	 * <p> If request failed one of the error code strings followed by short string description element:</p>
+	 *      <p> ["404"] - if no file was found.</p>
+	 *      <p> ["ERROR"] - if there was a server error when fulfilling the request or the cursor is invalid.</p>
+	 *      <p> ["CRED"] - if token/username combination is incorrect. </p>
+	 *      <p><i>and</i></p>
+	 *      <p> [description] - short string describing the error. </p>
+	 */
+	@WebMethod(operationName = "searchFilePage", action = "urn:SearchFilePage")
+	@WebResult(name = "return")
+	@WSDLDocumentation("Searches server records for files matching the query and returns one page of results.")
+	public List<String> searchFilePage(@WebParam(name = "token", partName = "token") String token, @WebParam(name = "userName", partName = "userName") String userName,
+			@WebParam(name = "searchQuery", partName = "searchQuery") String searchQuery, @WebParam(name = "limit", partName = "limit") int limit,
+			@WebParam(name = "cursor", partName = "cursor") String cursor, @WebParam(name = "sort", partName = "sort") String sort);
+
 	/**
 	 * <p> This WebMethod implementation is used by Clients to get information about the host of a file they are looking
 	 * to download. It verifies the user via provided token and username and makes sure that the server is ready for interaction.
-	 * Then it searches the database for the users that match the file ID provided and makes sure that only active
-	 * users are returned. If an error occurs, method returns an error code and a short description.</p>
+	 * Then it searches the database for the users that host the content of the file with the ID provided and makes
+	 * sure that only active users are returned. If an error occurs, method returns an error code and a short
+	 * description.</p>
 	 *
 	 * <p> Called by: {@link serviceClient.ClientGUI}</p>
 	 *
@@ -322,11 +365,13 @@ public interface P2PServiceImplSEI {
 	 * @param fileID ID of the file to be downloaded.
 	 *
 	 * @return <p><b> List <String> with two or more elements: </b></p>
-	 * <p> If request completed successfully method returns an OK string followed by three more string elements:</p>
+	 * <p> If request completed successfully method returns an OK string followed by three more string elements for
+	 * every active host:</p>
 	 *      <p> ["OK"] - if host was found.</p>
 	 *      <p> [User_IP] - IP address of the active user with the file. </p>
 	 *      <p> [User_Port] - port number of the active user with the file. </p>
-	 *      <p> [File_Path] - path of the file on the active user's machine. </p>
+	 *      <p> [File_Path] - full path of the file, including its name and type, on the active user's machine. Hosts
+	 *      may have the same content under a different name.</p>
 	 * <p></p>
 	 * <p> If request failed one of the error code strings followed by short string description element:</p>
 	 *      <p> ["404"] - if no available host was found.</p>
@@ -340,5 +385,166 @@ public interface P2PServiceImplSEI {
 	public List<String> getFileHostInfo(@WebParam(name = "token", partName = "token") String token, @WebParam(name = "userName", partName = "userName") String userName,
 			@WebParam(name = "fileID", partName = "fileID") int fileID);
 
+	/**
+	 * <p> This WebMethod implementation is used by Clients to register a new file together with its content hashes.
+	 * The file is split into pieces of the given size, the piece hashes are SHA-256 hashes of the pieces in order
+	 * written as one string of hex digits, and the root hash is the Merkle root computed from the piece hashes.
+	 * Downloading clients use the hashes to verify every piece they receive. Apart from checking the format of
+	 * the hashes it works like registerFile.</p>
+	 *
+	 * <p> Called by: {@link serviceClient.ClientGUI}</p>
+	 *
+	 * @param token token provided by user.
+	 * @param userName username provided by user.
+	 * @param fileName name of the file to be registered.
+	 * @param fileType type of the file to be registered.
+	 * @param filePath path of the file to be registered.
+	 * @param fileSize size of the file to be registered.
+	 * @param rootHash hex Merkle root of the piece hashes.
+	 * @param pieceSize size of the hashed pieces in bytes.
+	 * @param pieceHashes hex SHA-256 hashes of all pieces in order.
+	 *
+	 * @return <p><b> List <String> with two elements: </b></p>
+	 * <p> Same as registerFile, with one more error code:</p>
+	 *      <p> ["HASH"] - if the hashes do not match the size of the file.</p>
+	 *      <p><i>and</i></p>
+	 *      <p> [description] - short string describing the result.</p>
+	 */
+	@WebMethod(operationName = "registerHashedFile", action = "urn:RegisterHashedFile")
+	@WebResult(name = "return")
+	@WSDLDocumentation("Registers user's file together with its content hashes in the database.")
+	public List<String> registerHashedFile(@WebParam(name = "token", partName = "token") String token, @WebParam(name = "userName", partName = "userName") String userName,
+			@WebParam(name = "fileName", partName = "fileName") String fileName, @WebParam(name = "fileType", partName = "fileType") String fileType,
+			@WebParam(name = "filePath", partName = "filePath") String filePath, @WebParam(name = "fileSize", partName = "fileSize") long fileSize,
+			@WebParam(name = "rootHash", partName = "rootHash") String rootHash, @WebParam(name = "pieceSize", partName = "pieceSize") int pieceSize,
+			@WebParam(name = "pieceHashes", partName = "pieceHashes") String pieceHashes);
+
+	/**
+	 * <p> This WebMethod implementation is used by Clients to get content hashes of a file they are about to
+	 * download. It verifies the user via provided token and username and returns the hashes registered with the
+	 * file.</p>
+	 *
+	 * <p> Called by: {@link serviceClient.ClientGUI}</p>
+	 *
+	 * @param token token provided by user.
+	 * @param userName username provided by user.
+	 * @param fileID ID of the file to be downloaded.
+	 *
+	 * @return <p><b> List <String> with two or more elements: </b></p>
+	 * <p> If request completed successfully method returns an OK string followed by three more string elements:</p>
+	 *      <p> ["OK"] - if hashes were found.</p>
+	 *      <p> [Root_Hash] - hex Merkle root of the piece hashes. </p>
+	 *      <p> [Piece_Size] - size of the hashed pieces in bytes. </p>
+	 *      <p> [Piece_Hashes] - hex SHA-256 hashes of all pieces in order. </p>
+	 * <p></p>
+	 * <p> If request failed one of the error code strings followed by short string description element:</p>
+	 *      <p> ["404"] - if file was registered without hashes.</p>
+	 *      <p> ["ERROR"] - if there was a server error when fulfilling the request.</p>
+	 *      <p> ["CRED"] - if token/username combination is incorrect. </p>
+	 *      <p> [description] - short string describing the error. </p>
+	 */
+	@WebMethod(operationName = "getFileHashes", action = "urn:GetFileHashes")
+	@WebResult(name = "return")
+	@WSDLDocumentation("Aquires content hashes of the file.")
+	public List<String> getFileHashes(@WebParam(name = "token", partName = "token") String token, @WebParam(name = "userName", partName = "userName") String userName,
+			@WebParam(name = "fileID", partName = "fileID") int fileID);
+
+	/**
+	 * <p> This WebMethod implementation is used by Clients to register many files in one request, for example all
+	 * files of a shared folder. It verifies the user via provided token and username, then registers the files in
+	 * one database transaction. Every file is checked like in registerFile and registerHashedFile, and the result
+	 * of every file is returned.</p>
+	 *
+	 * <p> Called by: {@link serviceClient.ClientGUI}</p>
+	 *
+	 * @param token token provided by user.
+	 * @param userName username provided by user.
+	 * @param files seven string elements for every file to be registered: File_Name, File_Type, File_Path,
+	 *              File_Size, Root_Hash, Piece_Size and Piece_Hashes. Root_Hash, Piece_Size and Piece_Hashes
+	 *              are empty for a file registered without hashes. At most <i>p2p.batch.maxFiles</i> files (1000
+	 *              by default) are accepted in one request.
+	 *
+	 * @return <p><b> List <String> with two or more elements: </b></p>
+	 * <p> If request completed successfully method returns an OK string followed by one string element for every
+	 * file in order:</p>
+	 *      <p> ["OK"] - if request was processed.</p>
+	 *      <p><i>and</i></p>
+	 *      <p> [status] - "OK" if file was registered, "FULL" if user reached maximum number of files, "COPY" if
+	 *      file already exists, "HASH" if the hashes do not match the size of the file and "ERROR" if file size
+	 *      or piece size is not a number.</p>
+	 * <p></p>
+	 * <p> If request failed one of the error code strings followed by short string description element:</p>
+	 *      <p> ["ERROR"] - if there was a server error when fulfilling the request or the list of files is
+	 *      malformed, no file is registered then.</p>
+	 *      <p> ["CRED"] - if token/username combination is incorrect.</p>
+	 *      <p><i>and</i></p>
+	 *      <p> [description] - short string describing the error.</p>
+	 */
+	@WebMethod(operationName = "registerFiles", action = "urn:RegisterFiles")
+	@WebResult(name = "return")
+	@WSDLDocumentation("Registers many user's files in the database in one request.")
+	public List<String> registerFiles(@WebParam(name = "token", partName = "token") String token, @WebParam(name = "userName", partName = "userName") String userName,
+			@WebParam(name = "files", partName = "files") List<String> files);
+
+	/**
+	 * <p> This WebMethod implementation is used by Clients to remove many files from the database in one request.
+	 * It verifies the user via provided token and username, then removes the files in one database transaction
+	 * and returns the result of every file.</p>
+	 *
+	 * <p> Called by: {@link serviceClient.ClientGUI}</p>
+	 *
+	 * @param token token provided by user.
+	 * @param userName username provided by user.
+	 * @param files three string elements for every file to be removed: File_Name, File_Type and File_Path. At most
+	 *              <i>p2p.batch.maxFiles</i> files (1000 by default) are accepted in one request.
+	 *
+	 * @return <p><b> List <String> with two or more elements: </b></p>
+	 * <p> If request completed successfully method returns an OK string followed by one string element for every
+	 * file in order:</p>
+	 *      <p> ["OK"] - if request was processed.</p>
+	 *      <p><i>and</i></p>
+	 *      <p> [status] - "OK" if file was removed, "404" if user has no such file.</p>
+	 * <p></p>
+	 * <p> If request failed one of the error code strings followed by short string description element:</p>
+	 *      <p> ["ERROR"] - if there was a server error when fulfilling the request or the list of files is
+	 *      malformed, no file is removed then.</p>
+	 *      <p> ["CRED"] - if token/username combination is incorrect.</p>
+	 *      <p><i>and</i></p>
+	 *      <p> [description] - short string describing the error.</p>
+	 */
+	@WebMethod(operationName = "deregisterFiles", action = "urn:DeregisterFiles")
+	@WebResult(name = "return")
+	@WSDLDocumentation("Deregisters many user's files from the database in one request.")
+	public List<String> deregisterFiles(@WebParam(name = "token", partName = "token") String token, @WebParam(name = "userName", partName = "userName") String userName,
+			@WebParam(name = "files", partName = "files") List<String> files);
+
+	/**
+	 * <p> This WebMethod implementation is used by Clients to find out if heartbeats can be sent as UDP datagrams
+	 * instead of calling sendHeartBeat. It verifies the user via provided token and username and returns the port
+	 * heartbeats are received on, on the host of this service.</p>
+	 *
+	 * <p> Called by: {@link serviceClient.HeartbeatSender}</p>
+	 *
+	 * @param token token provided by user.
+	 * @param userName username provided by user.
+	 *
+	 * @return <p><b> List <String> with two elements: </b></p>
+	 * <p> If request completed successfully method returns an OK string followed by the port:</p>
+	 *      <p> ["OK"] - if UDP heartbeats are accepted.</p>
+	 *      <p><i>and</i></p>
+	 *      <p> [port] - UDP port heartbeats are sent to.</p>
+	 * <p></p>
+	 * <p> If request failed one of the error code strings followed by short string description element:</p>
+	 *      <p> ["404"] - if UDP heartbeats are not enabled on this server.</p>
+	 *      <p> ["ERROR"] - if there was a server error when fulfilling the request.</p>
+	 *      <p> ["CRED"] - if token/username combination is incorrect.</p>
+	 *      <p><i>and</i></p>
+	 *      <p> [description] - short string describing the error.</p>
+	 */
+	@WebMethod(operationName = "getHeartbeatChannel", action = "urn:GetHeartbeatChannel")
+	@WebResult(name = "return")
+	@WSDLDocumentation("Aquires the UDP port heartbeats can be sent to.")
+	public List<String> getHeartbeatChannel(@WebParam(name = "token", partName = "token") String token, @WebParam(name = "userName", partName = "userName") String userName);
+
 
 }
\ No newline at end of file
@@ -0,0 +1,217 @@
+/*
+ * 2023/10/13
+ * Anton Mishchenko
+ */
+
+package server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p> PooledConnection class wraps a single JDBC connection owned by SQLConnectionPool. It keeps track of when the
+ * connection was last used and who borrowed it, which allows the pool to skip validation of recently used
+ * connections and to report connections that were not returned.</p>
+ * <p> Each connection also keeps a cache of its prepared statements, so the database parses every query once per
+ * connection instead of once per request. The cache is only used by the thread that borrowed the connection.</p>
+ */
+public class PooledConnection {
+    private static final int STATEMENT_CACHE_SIZE = 32;
+    private final Connection connection;
+    private final SQLConnectionPool pool;
+    private volatile long lastUsed;
+    private volatile long borrowedAt;
+    private volatile String borrowedBy;
+    private volatile boolean leakReported;
+    private long borrowWaitNanos;
+    private final Map<String, PreparedStatement> statementCache =
+            new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() > STATEMENT_CACHE_SIZE) {
+                        closeStatement(eldest.getValue());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    /**
+     * <p> Constructor for PooledConnection class. Wraps the physical connection and marks it as just used.</p>
+     *
+     * <p> Called by: {@link Server.SQLConnectionPool}</p>
+     *
+     * @param connection physical connection to the SQL database.
+     * @param pool pool that owns this connection.
+     */
+    PooledConnection(Connection connection, SQLConnectionPool pool) {
+        this.connection = connection;
+        this.pool = pool;
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * <p> Returns the physical connection to the SQL database.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl}, {@link Server.SQLConnectionPool}</p>
+     *
+     * @return Connection physical connection to the SQL database.
+     */
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * <p> Returns a prepared statement for the given SQL. Statements are compiled once per connection and reused
+     * by later requests, parameters left from the previous use are cleared.</p>
+     *
+     * <p> Called by: {@link Server.P2PDatabase}</p>
+     *
+     * @param sql parameterized SQL query.
+     * @return PreparedStatement ready for parameters to be set.
+     * @throws SQLException if statement could not be prepared.
+     */
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        PreparedStatement statement = statementCache.get(sql);
+        if (statement == null || statement.isClosed()) {
+            statement = connection.prepareStatement(sql);
+            statementCache.put(sql, statement);
+        } else {
+            statement.clearParameters();
+        }
+        return statement;
+    }
+
+    /**
+     * <p> Closes a cached statement that was evicted from the cache.</p>
+     *
+     * @param statement statement to close.
+     */
+    private void closeStatement(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            // statement is discarded either way
+        }
+    }
+
+    /**
+     * <p> Returns the pool that owns this connection. Connections borrowed before the database was reconnected
+     * have to go back to their original pool.</p>
+     *
+     * <p> Called by: {@link Server.SQLConnectionManager#returnConnection}</p>
+     *
+     * @return SQLConnectionPool owner of this connection.
+     */
+    SQLConnectionPool getPool() {
+        return pool;
+    }
+
+    /**
+     * <p> Marks the connection as borrowed by the current thread.</p>
+     *
+     * <p> Called by: {@link Server.SQLConnectionPool#borrowConnection}</p>
+     */
+    void markBorrowed() {
+        borrowedAt = System.currentTimeMillis();
+        borrowedBy = Thread.currentThread().getName();
+        leakReported = false;
+    }
+
+    /**
+     * <p> Marks the connection as returned to the pool and updates its last used time.</p>
+     *
+     * <p> Called by: {@link Server.SQLConnectionPool#returnConnection}</p>
+     */
+    void markReturned() {
+        lastUsed = System.currentTimeMillis();
+        borrowedAt = 0;
+        borrowedBy = null;
+    }
+
+    /**
+     * <p> Sets how long the thread that borrowed the connection waited for it.</p>
+     *
+     * <p> Called by: {@link Server.SQLConnectionManager#borrowConnection}</p>
+     *
+     * @param borrowWaitNanos wait time in nanoseconds.
+     */
+    void setBorrowWait(long borrowWaitNanos) {
+        this.borrowWaitNanos = borrowWaitNanos;
+    }
+
+    /**
+     * <p> Returns how long the thread that borrowed the connection waited for it, the first time it is called
+     * after the connection was borrowed, and 0 afterwards. Used to count the wait towards the first statement.</p>
+     *
+     * <p> Called by: {@link Server.P2PDatabase}</p>
+     *
+     * @return long wait time in nanoseconds.
+     */
+    long takeBorrowWait() {
+        long wait = borrowWaitNanos;
+        borrowWaitNanos = 0;
+        return wait;
+    }
+
+    /**
+     * <p> Returns the time the connection was last returned to the pool.</p>
+     *
+     * @return long time in milliseconds.
+     */
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * <p> Returns the time the connection was borrowed, 0 if it is idle.</p>
+     *
+     * @return long time in milliseconds.
+     */
+    long getBorrowedAt() {
+        return borrowedAt;
+    }
+
+    /**
+     * <p> Returns name of the thread that borrowed the connection.</p>
+     *
+     * @return String thread name or <i>null</i> if connection is idle.
+     */
+    String getBorrowedBy() {
+        return borrowedBy;
+    }
+
+    /**
+     * <p> Returns true if the leak of this connection was already reported.</p>
+     *
+     * @return boolean true if leak was reported.
+     */
+    boolean isLeakReported() {
+        return leakReported;
+    }
+
+    /**
+     * <p> Sets the leak reported flag so that the same leak is printed only once.</p>
+     *
+     * @param leakReported boolean true if leak was reported.
+     */
+    void setLeakReported(boolean leakReported) {
+        this.leakReported = leakReported;
+    }
+
+    /**
+     * <p> Closes the physical connection, ignoring errors since the connection is being discarded.</p>
+     *
+     * <p> Called by: {@link Server.SQLConnectionPool}</p>
+     */
+    void closeQuietly() {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            // connection is discarded either way
+        }
+    }
+}
@@ -5,7 +5,6 @@
 
 package server;
 
-import java.sql.Connection;
 import java.sql.Driver;
 import java.sql.DriverManager;
 import java.sql.SQLException;
@@ -13,9 +12,16 @@ import java.sql.SQLException;
 /**
  * <p> This class is responsible for managing the connection to the SQL database. It is used to establish
  * connection to the database, close it and monitor its status.</p>
+ * <p> Connections are kept in a SQLConnectionPool. Pool size, borrow timeout and leak threshold can be adjusted
+ * with the <i>p2p.sql.pool.minSize</i>, <i>p2p.sql.pool.maxSize</i>, <i>p2p.sql.pool.borrowTimeout</i> and
+ * <i>p2p.sql.pool.leakThreshold</i> system properties (timeouts in milliseconds).</p>
  */
 public class SQLConnectionManager {
-    private Connection sqlConnection;
+    private static final int DEFAULT_MIN_POOL_SIZE = 2;
+    private static final int DEFAULT_MAX_POOL_SIZE = 10;
+    private static final long DEFAULT_BORROW_TIMEOUT = 5000;
+    private static final long DEFAULT_LEAK_THRESHOLD = 30000;
+    private volatile SQLConnectionPool connectionPool;
     private OutputManager outputManager;
 
     /**
@@ -30,11 +36,12 @@ public class SQLConnectionManager {
     }
 
     /**
-     * <p> This method is responsible for establishing connection to the SQL database.</p>
+     * <p> This method is responsible for establishing connection to the SQL database. It replaces any previous
+     * connection pool with a new one and opens its minimum number of connections.</p>
      *
      * <p> Called by: {@link Server.ServerGUI}</p>
      *
-     * <p> Calls: {@link OutputManager#printToTextArea}</p>
+     * <p> Calls: {@link OutputManager#printToTextArea}, {@link Server.SQLConnectionPool#start}</p>
      *
      * @param url SQL database access URL.
      * @param userName SQL database administrator username.
@@ -42,41 +49,83 @@ public class SQLConnectionManager {
      * @return true if connection worked, false otherwise.
      */
     public boolean connectToDatabase(String url, String userName, String password) {
+        outputManager.printToTextArea("Connecting to SQL database...");
+        SQLConnectionPool newPool = new SQLConnectionPool(url, userName, password,
+                Integer.getInteger("p2p.sql.pool.minSize", DEFAULT_MIN_POOL_SIZE),
+                Integer.getInteger("p2p.sql.pool.maxSize", DEFAULT_MAX_POOL_SIZE),
+                Long.getLong("p2p.sql.pool.borrowTimeout", DEFAULT_BORROW_TIMEOUT),
+                Long.getLong("p2p.sql.pool.leakThreshold", DEFAULT_LEAK_THRESHOLD),
+                outputManager);
         try {
-            outputManager.printToTextArea("Connecting to SQL database...");
-            sqlConnection = DriverManager.getConnection(url, userName, password);
-            return true;
+            newPool.start();
         } catch (SQLException e) {
+            newPool.close();
             outputManager.printToTextArea("Error connecting to SQL database: " + e.getMessage());
             return false;
         }
+        SQLConnectionPool oldPool = connectionPool;
+        connectionPool = newPool;
+        if (oldPool != null) {
+            oldPool.close();
+        }
+        return true;
+    }
+
+    /**
+     * <p> Borrows a connection to the SQL database from the connection pool. Every borrowed connection has to be
+     * given back with {@link SQLConnectionManager#returnConnection}.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl} </p>
+     *
+     * @return PooledConnection connection to the SQL database.
+     * <p> Time spent waiting for the connection is recorded in ServiceMetrics.</p>
+     *
+     * @throws SQLException if database is not connected or no connection became available in time.
+     */
+    public PooledConnection borrowConnection() throws SQLException {
+        SQLConnectionPool pool = connectionPool;
+        if (pool == null) {
+            throw new SQLException("Not connected to SQL database.");
+        }
+        long start = System.nanoTime();
+        PooledConnection connection = null;
+        try {
+            connection = pool.borrowConnection();
+            return connection;
+        } finally {
+            long wait = System.nanoTime() - start;
+            ServiceMetrics.getShared().recordTimer(ServiceMetrics.DB_WAIT, wait);
+            if (connection != null) {
+                connection.setBorrowWait(wait);
+            }
+        }
     }
 
     /**
-     * <p> Returns the current connection to the SQL database.</p>
+     * <p> Returns a previously borrowed connection to the connection pool.</p>
      *
      * <p> Called by: {@link Server.P2PServiceImpl} </p>
      *
-     * @return sqlConnection current connection to the SQL database.
+     * @param pooledConnection connection to return, <i>null</i> is ignored.
      */
-    public Connection getSqlConnection() {
-        return sqlConnection;
+    public void returnConnection(PooledConnection pooledConnection) {
+        if (pooledConnection != null) {
+            // connection goes back to the pool it came from, even if the database was reconnected since
+            pooledConnection.getPool().returnConnection(pooledConnection);
+        }
     }
 
     /**
-     * <p> This method is responsible for closing connection to the SQL database.</p>
+     * <p> This method is responsible for closing connections to the SQL database.</p>
      *
      * <p> Called by: {@link Server.ServerGUI}</p>
      *
-     * <p> Calls: {@link Server.OutputManager#printToTextArea}</p>
+     * <p> Calls: {@link Server.SQLConnectionPool#close}</p>
      */
     public void closeSqlConnection() {
-        try {
-            if (sqlConnection != null) {
-                sqlConnection.close();
-            }
-        } catch (SQLException e) {
-            outputManager.printToTextArea("Error closing SQL connection: " + e.getMessage());
+        SQLConnectionPool pool = connectionPool;
+        if (pool != null) {
+            pool.close();
         }
     }
 
@@ -108,11 +157,13 @@ public class SQLConnectionManager {
 
     /**
      * <p> This blocking method tests if the SQL connection is working. It is intended for a worker thread from
-     * ServerGUI to continuously be testing status of the connection to the database.</p>
+     * ServerGUI to continuously be testing status of the connection to the database. Broken pooled connections
+     * are replaced by the pool, connections held for too long are reported as leaks.</p>
      *
      * <p> Called by: {@link Server.ServerGUI}</p>
      *
-     * <p> Calls: {@link Server.OutputManager#printToTextArea}</p>
+     * <p> Calls: {@link Server.OutputManager#printToTextArea}, {@link Server.SQLConnectionPool#checkHealth},
+     * {@link Server.SQLConnectionPool#detectLeaks}</p>
      *
      * @param url SQL database access URL.
      * @param userName SQL database administrator username.
@@ -122,13 +173,14 @@ public class SQLConnectionManager {
     public boolean checkSQLConnection(String url, String userName, String password) {
         while (true) {
             try {
-                // test connection
-                DriverManager.getConnection(url, userName, password);
-                if(sqlConnection.isClosed()) {
-                    sqlConnection = DriverManager.getConnection(url, userName, password);
-                    outputManager.printToTextArea("Connection to database reestablished.");
+                SQLConnectionPool pool = connectionPool;
+                if (pool == null) {
+                    throw new SQLException("Not connected to SQL database.");
                 }
-                Thread.sleep(100); // wait 100ms before trying again
+                // test connection, pool replaces connections that were closed by the database
+                pool.checkHealth();
+                pool.detectLeaks();
+                Thread.sleep(1000); // wait 1s before trying again
             } catch (SQLException | InterruptedException e) {
                 outputManager.printToTextArea("Lost connection to SQL database");
                 break;
@@ -0,0 +1,279 @@
+/*
+ * 2023/10/13
+ * Anton Mishchenko
+ */
+
+package server;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> SQLConnectionPool class keeps a bounded set of connections to the SQL database so that web service requests
+ * can run their queries in parallel instead of sharing one connection. The pool opens the minimum amount of
+ * connections up front and grows up to the maximum on demand.</p>
+ * <p> Connections that were idle for longer than the validation interval are validated before being handed out,
+ * broken connections are replaced. Connections held for longer than the leak threshold are reported to the
+ * Server GUI.</p>
+ */
+public class SQLConnectionPool {
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+    private static final long VALIDATION_INTERVAL_MILLIS = 1000;
+    private final String url;
+    private final String userName;
+    private final String password;
+    private final int minSize;
+    private final int maxSize;
+    private final long borrowTimeoutMillis;
+    private final long leakThresholdMillis;
+    private final OutputManager outputManager;
+    private final LinkedBlockingDeque<PooledConnection> idleConnections = new LinkedBlockingDeque<>();
+    private final Set<PooledConnection> borrowedConnections =
+            Collections.newSetFromMap(new ConcurrentHashMap<PooledConnection, Boolean>());
+    private final Semaphore permits;
+    private volatile boolean closed = false;
+
+    /**
+     * <p> Constructor for SQLConnectionPool class. Stores database credentials and pool limits. Connections are
+     * opened by {@link SQLConnectionPool#start}.</p>
+     *
+     * <p> Called by: {@link Server.SQLConnectionManager#connectToDatabase}</p>
+     *
+     * @param url SQL database access URL.
+     * @param userName SQL database administrator username.
+     * @param password SQL database administrator password.
+     * @param minSize number of connections kept open at all times.
+     * @param maxSize maximum number of connections open at the same time.
+     * @param borrowTimeoutMillis how long a request waits for a free connection.
+     * @param leakThresholdMillis how long a connection can be borrowed before it is reported as leaked.
+     * @param outputManager manager object used for printing messages to the GUI.
+     */
+    public SQLConnectionPool(String url, String userName, String password, int minSize, int maxSize,
+                             long borrowTimeoutMillis, long leakThresholdMillis, OutputManager outputManager) {
+        this.url = url;
+        this.userName = userName;
+        this.password = password;
+        this.maxSize = Math.max(1, maxSize);
+        this.minSize = Math.max(0, Math.min(minSize, this.maxSize));
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.leakThresholdMillis = leakThresholdMillis;
+        this.outputManager = outputManager;
+        this.permits = new Semaphore(this.maxSize, true);
+    }
+
+    /**
+     * <p> Opens the minimum number of connections. Fails if the first connection can not be opened so that the
+     * caller can report that the database is unreachable.</p>
+     *
+     * <p> Called by: {@link Server.SQLConnectionManager#connectToDatabase}</p>
+     *
+     * @throws SQLException if a connection to the database could not be opened.
+     */
+    public void start() throws SQLException {
+        for (int i = 0; i < Math.max(1, minSize); i++) {
+            idleConnections.offerLast(openConnection());
+        }
+    }
+
+    /**
+     * <p> Borrows a connection from the pool. Waits up to the borrow timeout if all connections are in use.
+     * Connections idle for longer than the validation interval are validated and replaced if broken.</p>
+     *
+     * <p> Called by: {@link Server.SQLConnectionManager#borrowConnection}</p>
+     *
+     * @return PooledConnection connection ready to be used.
+     * @throws SQLException if pool is closed, no connection became available in time or a new connection
+     * could not be opened.
+     */
+    public PooledConnection borrowConnection() throws SQLException {
+        return borrowConnection(false);
+    }
+
+    /**
+     * <p> Borrows a connection from the pool, optionally forcing validation regardless of when the connection was
+     * last used.</p>
+     *
+     * @param forceValidation true if the connection should always be validated.
+     * @return PooledConnection connection ready to be used.
+     * @throws SQLException if pool is closed, no connection became available in time or a new connection
+     * could not be opened.
+     */
+    private PooledConnection borrowConnection(boolean forceValidation) throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed.");
+        }
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out after " + borrowTimeoutMillis + " ms waiting for SQL connection.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for SQL connection.");
+        }
+        PooledConnection pooledConnection = null;
+        try {
+            // reuse the most recently returned connection first, it is the least likely to be stale
+            while ((pooledConnection = idleConnections.pollFirst()) != null) {
+                if (isUsable(pooledConnection, forceValidation)) {
+                    break;
+                }
+                pooledConnection.closeQuietly();
+            }
+            if (pooledConnection == null) {
+                pooledConnection = openConnection();
+            }
+            pooledConnection.markBorrowed();
+            borrowedConnections.add(pooledConnection);
+            return pooledConnection;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * <p> Returns a borrowed connection to the pool. Connections that are broken or returned after the pool was
+     * closed are discarded.</p>
+     *
+     * <p> Called by: {@link Server.SQLConnectionManager#returnConnection}</p>
+     *
+     * @param pooledConnection connection to return, <i>null</i> is ignored.
+     */
+    public void returnConnection(PooledConnection pooledConnection) {
+        if (pooledConnection == null || !borrowedConnections.remove(pooledConnection)) {
+            return;
+        }
+        pooledConnection.markReturned();
+        boolean keep = !closed;
+        if (keep) {
+            try {
+                Connection connection = pooledConnection.getConnection();
+                if (connection.isClosed()) {
+                    keep = false;
+                } else if (!connection.getAutoCommit()) {
+                    // never hand out a connection with an unfinished transaction
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                keep = false;
+            }
+        }
+        if (keep) {
+            idleConnections.offerFirst(pooledConnection);
+        } else {
+            pooledConnection.closeQuietly();
+        }
+        permits.release();
+    }
+
+    /**
+     * <p> Verifies that the database can be reached by borrowing a connection with forced validation. If every
+     * connection is currently in use the database is evidently reachable and the check is skipped.</p>
+     *
+     * <p> Called by: {@link Server.SQLConnectionManager#checkSQLConnection}</p>
+     *
+     * @throws SQLException if no valid connection could be acquired.
+     */
+    public void checkHealth() throws SQLException {
+        if (permits.availablePermits() == 0) {
+            return;
+        }
+        PooledConnection pooledConnection = borrowConnection(true);
+        returnConnection(pooledConnection);
+    }
+
+    /**
+     * <p> Reports connections that were borrowed for longer than the leak threshold. Each leak is reported once.</p>
+     *
+     * <p> Called by: {@link Server.SQLConnectionManager#checkSQLConnection}</p>
+     */
+    public void detectLeaks() {
+        long now = System.currentTimeMillis();
+        for (PooledConnection pooledConnection : borrowedConnections) {
+            long borrowedAt = pooledConnection.getBorrowedAt();
+            if (borrowedAt != 0 && now - borrowedAt > leakThresholdMillis && !pooledConnection.isLeakReported()) {
+                pooledConnection.setLeakReported(true);
+                outputManager.printToTextArea("WARNING: SQL connection held by " + pooledConnection.getBorrowedBy()
+                        + " for " + (now - borrowedAt) / 1000 + " s. Possible connection leak.");
+            }
+        }
+    }
+
+    /**
+     * <p> Closes the pool and all idle connections. Borrowed connections are closed when they are returned.</p>
+     *
+     * <p> Called by: {@link Server.SQLConnectionManager}</p>
+     */
+    public void close() {
+        closed = true;
+        PooledConnection pooledConnection;
+        while ((pooledConnection = idleConnections.pollFirst()) != null) {
+            pooledConnection.closeQuietly();
+        }
+    }
+
+    /**
+     * <p> Returns the number of connections currently borrowed from the pool.</p>
+     *
+     * @return int number of borrowed connections.
+     */
+    public int getBorrowedCount() {
+        return borrowedConnections.size();
+    }
+
+    /**
+     * <p> Returns the number of idle connections in the pool.</p>
+     *
+     * @return int number of idle connections.
+     */
+    public int getIdleCount() {
+        return idleConnections.size();
+    }
+
+    /**
+     * <p> Checks if an idle connection can be handed out. Connections used within the validation interval are
+     * trusted without a round trip to the database.</p>
+     *
+     * @param pooledConnection connection to check.
+     * @param forceValidation true if the connection should always be validated.
+     * @return boolean true if connection can be used.
+     */
+    private boolean isUsable(PooledConnection pooledConnection, boolean forceValidation) {
+        try {
+            Connection connection = pooledConnection.getConnection();
+            if (connection.isClosed()) {
+                return false;
+            }
+            if (!forceValidation && System.currentTimeMillis() - pooledConnection.getLastUsed() < VALIDATION_INTERVAL_MILLIS) {
+                return true;
+            }
+            return connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * <p> Opens a new physical connection to the database. Server side prepared statements are requested so that
+     * statements cached by PooledConnection are parsed by the database only once.</p>
+     *
+     * @return PooledConnection wrapping the new connection.
+     * @throws SQLException if connection could not be opened.
+     */
+    private PooledConnection openConnection() throws SQLException {
+        Properties properties = new Properties();
+        properties.setProperty("user", userName);
+        properties.setProperty("password", password);
+        properties.setProperty("useServerPrepStmts", "true");
+        return new PooledConnection(DriverManager.getConnection(url, properties), this);
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * 2023/10/13
+ * Anton Mishchenko
+ */
+
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p> SearchResult class is one distinct content found by a file search, together with the active users hosting
+ * it. Rows returned by the search index are merged into results by root hash and size, files registered without
+ * hashes each form their own result. Results include files of every active user so they can be cached and shared
+ * between searching users, the searching user is left out when the response is built.</p>
+ * <p> Results are ranked by relevance to the query: files whose name is the query come first, then files whose
+ * name starts with it, then all other matches, and within each group content with more hosts comes first. Results
+ * can also be sorted by name, size or number of hosts. Ties are broken by File_ID, so no two results are
+ * equal.</p>
+ * <p> Pages of results are addressed by a keyset cursor holding the sort key of the last result of the previous
+ * page, and the next page starts strictly after that key. Results added or removed between two requests therefore
+ * do not shift the following pages, unlike with a position in the list.</p>
+ */
+public class SearchResult {
+    private final String fileId;
+    private final String fileName;
+    private final String fileType;
+    private final String fileSize;
+    private final Set<String> hosts = new HashSet<>();
+    private int rank;
+    private int hostCount;
+
+    /**
+     * <p> Constructor for SearchResult class.</p>
+     *
+     * @param fileId ID of the first file found with the content.
+     * @param fileName name of the file.
+     * @param fileType type of the file.
+     * @param fileSize size of the file.
+     */
+    private SearchResult(String fileId, String fileName, String fileType, String fileSize) {
+        this.fileId = fileId;
+        this.fileName = fileName;
+        this.fileType = fileType;
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * <p> Merges search rows of active hosts into results and sorts them.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl#findSearchResults}</p>
+     *
+     * <p> Calls: {@link Server.ActiveUsers#findUser}</p>
+     *
+     * @param rows rows with File_ID, File_Name, File_Type, File_Size, User_Name of the owner and Root_Hash.
+     * @param activeUsers list of active users, files of other users are skipped.
+     * @param searchQuery String searched for, used for ranking.
+     * @param sort order of the results: "relevance", "name", "size" or "hosts", anything else is treated as
+     *             "relevance".
+     * @return List of results in order.
+     */
+    public static List<SearchResult> merge(List<String[]> rows, ActiveUsers activeUsers, String searchQuery,
+                                           String sort) {
+        Map<String, SearchResult> results = new LinkedHashMap<>();
+        for (String[] row : rows) {
+            // check if host is active
+            String userWithFile = row[4];
+            if (activeUsers.findUser(userWithFile) == null) {
+                continue;
+            }
+            // files registered without hashes can only be matched to themselves
+            String content = row[5] != null ? row[5] + ":" + row[3] : "#" + row[0];
+            SearchResult result = results.get(content);
+            if (result == null) {
+                result = new SearchResult(row[0], row[1], row[2], row[3]);
+                results.put(content, result);
+            }
+            result.hosts.add(userWithFile);
+        }
+        String query = searchQuery == null ? "" : searchQuery.toLowerCase(Locale.ROOT);
+        List<SearchResult> sorted = new ArrayList<>(results.values());
+        for (SearchResult result : sorted) {
+            result.rank = rank(result, query);
+            result.hostCount = result.hosts.size();
+        }
+        Collections.sort(sorted, comparator(sortOrder(sort)));
+        return sorted;
+    }
+
+    /**
+     * <p> Returns the sort order results are sorted in, unknown orders are sorted by relevance.</p>
+     *
+     * <p> Called by: {@link Server.SearchResultCache}</p>
+     *
+     * @param sort requested order of the results.
+     * @return String "relevance", "name", "size" or "hosts".
+     */
+    public static String sortOrder(String sort) {
+        if ("name".equals(sort) || "size".equals(sort) || "hosts".equals(sort)) {
+            return sort;
+        }
+        return "relevance";
+    }
+
+    /**
+     * <p> Returns relevance group of the result, lower is more relevant.</p>
+     *
+     * @param result result to rank.
+     * @param query lower case search query.
+     * @return int 0 for an exact name match, 1 for a prefix match, 2 otherwise.
+     */
+    private static int rank(SearchResult result, String query) {
+        String name = result.fileName == null ? "" : result.fileName.toLowerCase(Locale.ROOT);
+        String fullName = name + "." + (result.fileType == null ? "" : result.fileType.toLowerCase(Locale.ROOT));
+        if (name.equals(query) || fullName.equals(query)) {
+            return 0;
+        }
+        return name.startsWith(query) ? 1 : 2;
+    }
+
+    /**
+     * <p> Returns comparator for the requested order.</p>
+     *
+     * @param sort order of the results.
+     * @return Comparator of results.
+     */
+    private static Comparator<SearchResult> comparator(final String sort) {
+        return new Comparator<SearchResult>() {
+            @Override
+            public int compare(SearchResult a, SearchResult b) {
+                int order;
+                if ("name".equals(sort)) {
+                    order = compareText(a.fileName, b.fileName);
+                    if (order == 0) {
+                        order = compareText(a.fileType, b.fileType);
+                    }
+                } else if ("size".equals(sort)) {
+                    order = Long.compare(parseNumber(b.fileSize), parseNumber(a.fileSize));
+                } else if ("hosts".equals(sort)) {
+                    order = Integer.compare(b.hostCount, a.hostCount);
+                } else {
+                    order = Integer.compare(a.rank, b.rank);
+                    if (order == 0) {
+                        order = Integer.compare(b.hostCount, a.hostCount);
+                    }
+                    if (order == 0) {
+                        order = compareText(a.fileName, b.fileName);
+                    }
+                }
+                return order != 0 ? order : Long.compare(parseNumber(a.fileId), parseNumber(b.fileId));
+            }
+        };
+    }
+
+    /**
+     * <p> Returns the cursor of the page following this result. It holds every field the results can be sorted by:
+     * relevance group, host count, size, File_ID, name and type.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl#searchFilePage}</p>
+     *
+     * @return String cursor of the next page.
+     */
+    public String cursor() {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return rank + "." + hostCount + "." + parseNumber(fileSize) + "." + parseNumber(fileId) + "."
+                + encoder.encodeToString((fileName == null ? "" : fileName).getBytes(StandardCharsets.UTF_8)) + "."
+                + encoder.encodeToString((fileType == null ? "" : fileType).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * <p> Finds the position of the first result after a cursor in results sorted in the given order.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl#searchFilePage}</p>
+     *
+     * @param results results sorted by {@link SearchResult#merge}.
+     * @param cursor cursor returned by {@link SearchResult#cursor}, empty or <i>null</i> for the first page.
+     * @param sort order the results are sorted in.
+     * @return int position of the first result sorting strictly after the cursor, -1 if the cursor is invalid.
+     */
+    public static int pageStart(List<SearchResult> results, String cursor, String sort) {
+        if (cursor == null || cursor.isEmpty()) {
+            return 0;
+        }
+        String[] fields = cursor.split("\\.", -1);
+        if (fields.length != 6) {
+            return -1;
+        }
+        SearchResult key;
+        try {
+            Base64.Decoder decoder = Base64.getUrlDecoder();
+            key = new SearchResult(Long.toString(Long.parseLong(fields[3])),
+                    new String(decoder.decode(fields[4]), StandardCharsets.UTF_8),
+                    new String(decoder.decode(fields[5]), StandardCharsets.UTF_8),
+                    Long.toString(Long.parseLong(fields[2])));
+            key.rank = Integer.parseInt(fields[0]);
+            key.hostCount = Integer.parseInt(fields[1]);
+        } catch (IllegalArgumentException e) {
+            // also thrown for malformed numbers
+            return -1;
+        }
+        int position = Collections.binarySearch(results, key, comparator(sortOrder(sort)));
+        return position >= 0 ? position + 1 : -(position + 1);
+    }
+
+    /**
+     * <p> Compares text ignoring case, <i>null</i> sorts first.</p>
+     *
+     * @param a first text.
+     * @param b second text.
+     * @return int comparison result.
+     */
+    private static int compareText(String a, String b) {
+        return (a == null ? "" : a).compareToIgnoreCase(b == null ? "" : b);
+    }
+
+    /**
+     * <p> Parses a number stored as text, malformed values sort as zero.</p>
+     *
+     * @param value text to parse.
+     * @return long parsed number.
+     */
+    private static long parseNumber(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * <p> Returns number of hosts of the content other than the searching user.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl#searchFile}, {@link Server.P2PServiceImpl#searchFilePage}</p>
+     *
+     * @param userName username of the searching user.
+     * @return int number of other hosts, the result is not shown to the user if it is 0.
+     */
+    public int countHosts(String userName) {
+        return hosts.contains(userName) ? hosts.size() - 1 : hosts.size();
+    }
+
+    /**
+     * <p> Adds the fields of the result to a response: File_ID, File_Name, File_Type, File_Size and Host_Count.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl#searchFile}, {@link Server.P2PServiceImpl#searchFilePage}</p>
+     *
+     * @param response response to add the fields to.
+     * @param userName username of the searching user, who is not counted as a host.
+     */
+    public void addTo(List<String> response, String userName) {
+        response.add(fileId);
+        response.add(fileName);
+        response.add(fileType);
+        response.add(fileSize);
+        response.add(Integer.toString(countHosts(userName)));
+    }
+}
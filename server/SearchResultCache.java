@@ -0,0 +1,246 @@
+/*
+ * 2023/10/13
+ * Anton Mishchenko
+ */
+
+package server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * <p> SearchResultCache class keeps merged and sorted results of recent searches, keyed by the normalized search
+ * query and sort order, so repeated searches skip the search index and the merging of its rows. Results are shared
+ * by all searching users, files of the searching user are skipped when the response is built.</p>
+ * <p> The cache holds at most <i>p2p.search.cacheSize</i> results in total (10000 by default) and evicts the least
+ * recently used searches first. Entries are removed selectively: registering or deregistering a file removes the
+ * searches whose query is part of the file name and type, and a user logging in, logging out or expiring removes
+ * the searches that found files of that user.</p>
+ * <p> Every removal moves the cache to a new version, and results computed from an older version are not stored,
+ * so a search running concurrently with a change never caches results that miss the change.</p>
+ */
+public class SearchResultCache {
+    private static final int DEFAULT_MAX_RESULTS = 10000;
+    private final long maxWeight = Math.max(1, Long.getLong("p2p.search.cacheSize", DEFAULT_MAX_RESULTS));
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight = 0;
+    private long version = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+
+    /**
+     * <p> Returns the current version of the cache, taken before results are computed.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl#findSearchResults}</p>
+     *
+     * @return long version of the cache.
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * <p> Returns cached results of a search and counts a hit or a miss.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl#findSearchResults}</p>
+     *
+     * @param searchQuery String searched for.
+     * @param sort order of the results.
+     * @return List of results, <i>null</i> if the search is not cached.
+     */
+    public synchronized List<SearchResult> get(String searchQuery, String sort) {
+        Entry entry = entries.get(key(searchQuery, sort));
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.results;
+    }
+
+    /**
+     * <p> Stores results of a search, unless the cache changed since the results were computed. Least recently used
+     * searches are evicted until the results fit.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl#findSearchResults}</p>
+     *
+     * @param searchQuery String searched for.
+     * @param sort order of the results.
+     * @param results merged and sorted results, not modified afterwards.
+     * @param owners usernames of the owners of all files the search found, active or not.
+     * @param version version of the cache taken before the results were computed.
+     */
+    public synchronized void put(String searchQuery, String sort, List<SearchResult> results, Set<String> owners,
+                                 long version) {
+        long resultWeight = results.size() + 1L;
+        if (version != this.version || resultWeight > maxWeight) {
+            return;
+        }
+        String key = key(searchQuery, sort);
+        Entry previous = entries.put(key, new Entry(normalize(searchQuery), results, owners, resultWeight));
+        if (previous != null) {
+            weight -= previous.weight;
+        }
+        weight += resultWeight;
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (weight > maxWeight && eldest.hasNext()) {
+            Entry entry = eldest.next();
+            eldest.remove();
+            weight -= entry.weight;
+            evictions++;
+        }
+    }
+
+    /**
+     * <p> Removes searches whose results may change because a file was registered or deregistered, which are the
+     * searches whose query is part of the file name and type.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl#registerFile}, {@link Server.P2PServiceImpl#deregisterFile}</p>
+     *
+     * @param fileName name of the file.
+     * @param fileType type of the file.
+     */
+    public synchronized void invalidateFile(String fileName, String fileType) {
+        // same text the search index matches queries against
+        String searchText = normalize(fileName) + normalize(fileType);
+        version++;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (searchText.contains(entry.query)) {
+                remove(iterator, entry);
+            }
+        }
+    }
+
+    /**
+     * <p> Removes searches whose results may change because the user logged in, logged out or expired, which are
+     * the searches that found files of the user.</p>
+     *
+     * <p> Called by: {@link Server.ActiveUsers#addUser}, {@link Server.ActiveUsers#removeUser}</p>
+     *
+     * @param userName username of the user.
+     */
+    public synchronized void invalidateUser(String userName) {
+        version++;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.owners.contains(userName)) {
+                remove(iterator, entry);
+            }
+        }
+    }
+
+    /**
+     * <p> Removes all searches.</p>
+     *
+     * <p> Called by: {@link Server.ActiveUsers#setSearchCache}, {@link Server.ServerGUI#loadFileSearchIndex}</p>
+     */
+    public synchronized void clear() {
+        version++;
+        invalidations += entries.size();
+        entries.clear();
+        weight = 0;
+    }
+
+    /**
+     * <p> Removes an entry through the iterator and counts the invalidation. Caller holds the lock.</p>
+     *
+     * @param iterator iterator positioned at the entry.
+     * @param entry entry to remove.
+     */
+    private void remove(Iterator<Entry> iterator, Entry entry) {
+        iterator.remove();
+        weight -= entry.weight;
+        invalidations++;
+    }
+
+    /**
+     * <p> Returns number of searches answered from the cache.</p>
+     *
+     * @return long number of hits.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * <p> Returns number of searches that were not cached.</p>
+     *
+     * @return long number of misses.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * <p> Returns number of searches evicted to make room for newer ones.</p>
+     *
+     * @return long number of evictions.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * <p> Returns number of searches removed because their results changed.</p>
+     *
+     * @return long number of invalidations.
+     */
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * <p> Returns number of cached searches.</p>
+     *
+     * @return int number of entries.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * <p> Returns key of a search.</p>
+     *
+     * @param searchQuery String searched for.
+     * @param sort order of the results.
+     * @return String cache key.
+     */
+    private static String key(String searchQuery, String sort) {
+        return SearchResult.sortOrder(sort) + "\u0000" + normalize(searchQuery);
+    }
+
+    /**
+     * <p> Converts text to the form used for matching, like the search index does.</p>
+     *
+     * @param text text to convert, <i>null</i> is treated as empty.
+     * @return String lower case text.
+     */
+    private static String normalize(String text) {
+        return text == null ? "" : text.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * <p> Cached search: normalized query, results, owners of the found files and weight of the entry.</p>
+     */
+    private static class Entry {
+        private final String query;
+        private final List<SearchResult> results;
+        private final Set<String> owners;
+        private final long weight;
+
+        private Entry(String query, List<SearchResult> results, Set<String> owners, long weight) {
+            this.query = query;
+            this.results = results;
+            this.owners = owners;
+            this.weight = weight;
+        }
+    }
+}
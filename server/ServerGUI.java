@@ -9,6 +9,7 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.sql.SQLException;
 
 /**
  * <p> This class is responsible for creating and managing the Server GUI.
@@ -43,6 +44,9 @@ public class ServerGUI extends JFrame {
     private JScrollPane serverOutputAreaScroll;
     private JButton exitServer;
     private OutputManager outputManager;
+    private P2PDatabase database;
+    private SearchResultCache searchCache;
+    private SessionExpiryWheel expiryWheel;
     private SwingWorker<String,Void> worker;
 
     /**
@@ -222,7 +226,8 @@ public class ServerGUI extends JFrame {
      *
      * <p> Calls: {@link Server.OutputManager#printToTextArea}, {@link Server.SQLConnectionManager#testSQLDriver},
      * {@link Server.SQLConnectionManager#connectToDatabase}, {@link Server.SQLConnectionManager#checkSQLConnection},
-     * {@link Server.ServerGUI#setSqlUi}, {@link Server.ServerGUI#getSqlConnectStatusLabel}</p>
+     * {@link Server.ServerGUI#setSqlUi}, {@link Server.ServerGUI#getSqlConnectStatusLabel},
+     * {@link Server.ServerGUI#loadFileSearchIndex}, {@link Server.ServerGUI#createTables}</p>
      *
      * @param sqlConnectionManager manager for sql connection.
      */
@@ -256,6 +261,8 @@ public class ServerGUI extends JFrame {
             // start by verifying driver, then connect to database and check connection
             if(sqlConnectionManager.testSQLDriver()) {
                 if(sqlConnectionManager.connectToDatabase(url, username, password)){
+                    createTables();
+                    loadFileSearchIndex();
                     setSqlUi(false,Color.GREEN, "Connected");
                     // check if SQL service is still active, thread blocks here
                     if(!sqlConnectionManager.checkSQLConnection(url, username, password)) {
@@ -270,6 +277,49 @@ public class ServerGUI extends JFrame {
         }
     }
 
+    /**
+     * <p> Method creates database tables that are missing, such as the table of file hashes.</p>
+     *
+     * <p> Called by: {@link Server.ServerGUI#sqlConnect}</p>
+     *
+     * <p> Calls: {@link Server.P2PDatabase#createTables}, {@link Server.OutputManager#printToTextArea}</p>
+     */
+    private void createTables(){
+        if(database == null){
+            return;
+        }
+        try {
+            database.createTables();
+        } catch (SQLException e) {
+            outputManager.printToTextArea("Error creating database tables: " + e.getMessage());
+        }
+    }
+
+    /**
+     * <p> Method loads registered files into the file search index. If loading fails searches are answered by
+     * the database. Cached search results are cleared since the database may have changed.</p>
+     *
+     * <p> Called by: {@link Server.ServerGUI#sqlConnect}</p>
+     *
+     * <p> Calls: {@link Server.P2PDatabase#loadSearchIndex}, {@link Server.SearchResultCache#clear},
+     * {@link Server.OutputManager#printToTextArea}</p>
+     */
+    private void loadFileSearchIndex(){
+        if(database == null){
+            return;
+        }
+        outputManager.printToTextArea("Loading file search index...");
+        try {
+            int files = database.loadSearchIndex();
+            outputManager.printToTextArea("File search index loaded (" + files + " files).");
+        } catch (SQLException e) {
+            outputManager.printToTextArea("Error loading file search index, searches will use the database: " + e.getMessage());
+        }
+        if(searchCache != null){
+            searchCache.clear();
+        }
+    }
+
     /**
      * <p> Method responsible for setting maximum number of users allowed on the server at the same time. Starts by
      * verifying user input.</p>
@@ -277,7 +327,7 @@ public class ServerGUI extends JFrame {
      * <p> Called by: {@link Server.ServerGUI}</p>
      *
      * <p> Calls: {@link Server.OutputManager#printToTextArea}, {@link Server.ActiveUsers#ActiveUsers},
-     * {@link Server.ServerGUI#setSqlUi}, {@link Server.ServerGUI#setUserCountUi}, {@link Server.ServerGUI#activityTest},
+     * {@link Server.ActiveUsers#setSearchCache}, {@link Server.ServerGUI#setSqlUi}, {@link Server.ServerGUI#setUserCountUi}, {@link Server.ServerGUI#activityTest},
      */
     private void maxUsersListener(){
         String maxUsers = txtMaxUsers.getText();
@@ -294,6 +344,9 @@ public class ServerGUI extends JFrame {
                     return;
                 }
                 activeUsers = new ActiveUsers(maxUsersInt, txaUserCount);
+                if(searchCache != null){
+                    activeUsers.setSearchCache(searchCache);
+                }
                 outputManager.printToTextArea("Max users set to " + maxUsersInt + ".");
                 setSqlUi(true,Color.RED, "Not Connected");
                 setUserCountUi(false);
@@ -336,6 +389,29 @@ public class ServerGUI extends JFrame {
         this.outputManager = outputManager;
     }
 
+    /**
+     * <p> This method sets P2PDatabase object whose file search index is loaded after connecting to the database.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl}</p>
+     *
+     * @param database data access object of the server.
+     */
+    public void setDatabase(P2PDatabase database){
+        this.database = database;
+    }
+
+    /**
+     * <p> This method sets the cache of search results, which is passed to every new active users list and
+     * cleared when the file search index is loaded.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl}</p>
+     *
+     * @param searchCache cache of search results.
+     */
+    public void setSearchCache(SearchResultCache searchCache){
+        this.searchCache = searchCache;
+    }
+
 
     /**
      * <p> Method allows to set SQL GUI elements enabled or disabled, set text and
@@ -406,51 +482,24 @@ public class ServerGUI extends JFrame {
     }
 
     /**
-     * <p> This method is used to test which users are active. It runs in a separate thread, every minute it checks
-     * a list of active users and removes users that have been inactive for more than 2 minutes. It outputs results to
-     * server GUI.</p>
+     * <p> This method is used to test which users are active. It starts a SessionExpiryWheel that removes users
+     * that have been inactive for longer than the session timeout (<i>p2p.session.timeout</i> seconds, 2 minutes by
+     * default). The wheel outputs results to server GUI.</p>
      *
      * <p> Called by: {@link Server.ServerGUI}</p>
      *
-     * <p> Calls: {@link Server.ActiveUsers#listActiveUsers}, {@link Server.ActiveUsers#removeUser},
-     * {@link Server.OutputManager#printToTextArea}, {@link Server.ClientData#getLastActive},
-     * {@link Server.ClientData#getName}, {@link Server.ClientData#getToken} </p>
+     * <p> Calls: {@link Server.SessionExpiryWheel#start}, {@link Server.SessionExpiryWheel#stop},
+     * {@link Server.ActiveUsers#setExpiryWheel}, {@link Server.OutputManager#printToTextArea}</p>
      */
     protected void activityTest () {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                while (true) {
-                    try{
-                        // get current time in seconds
-                        long currentTime = System.currentTimeMillis() / 1000L;
-                        // get list of active users
-                        ClientData[] users = activeUsers.listActiveUsers();
-                        // check if there are any active users
-                        if (!(users == null)) {
-                            // for each active user, check if they are inactive
-                            for (ClientData user : users) {
-                                long lastActive = user.getLastActive();
-                                long difference = currentTime - lastActive;
-                                // remove users inactive for more than 2 minutes
-                                if (difference > 120) {
-                                    String userName = user.getName();
-                                    activeUsers.removeUser(user.getToken(), user.getName());
-                                    outputManager.printToTextArea("- Removed: " + userName + " inactive for " + difference + " s. -");
-                                }
-                            }
-                        }
-                    }catch (Exception e){
-                        outputManager.printToTextArea("ERROR: During activity test: " + "\n" + e);
-                    }
-                    // wait 1 minute
-                    try {
-                        Thread.sleep(60000);
-                    } catch (InterruptedException e) {
-                        outputManager.printToTextArea("ERROR: During activity test sleep: " + "\n" + e);
-                    }
-                }
-            }
-        }).start();
+        // stop wheel of the previous active users list
+        if(expiryWheel != null){
+            expiryWheel.stop();
+        }
+        int timeout = Integer.getInteger("p2p.session.timeout", SessionExpiryWheel.DEFAULT_TIMEOUT_SECONDS);
+        expiryWheel = new SessionExpiryWheel(timeout, activeUsers, outputManager);
+        activeUsers.setExpiryWheel(expiryWheel);
+        expiryWheel.start();
+        outputManager.printToTextArea("Session timeout set to " + expiryWheel.getTimeoutSeconds() + " s.");
     }
 }
\ No newline at end of file
@@ -0,0 +1,553 @@
+/*
+ * 2023/10/13
+ * Anton Mishchenko
+ */
+
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.cxf.message.Exchange;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.phase.AbstractPhaseInterceptor;
+import org.apache.cxf.phase.Phase;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p> ServiceMetrics class collects metrics of the P2P service: for every WebMethod the number of calls, the
+ * number of responses with every response code and a latency histogram, and latency histograms of waiting for
+ * an SQL connection, executing SQL statements and looking up active users. Further values, such as the search
+ * cache counters, are added as gauges.</p>
+ * <p> WebMethods are measured by the RequestInterceptor and ResponseInterceptor CXF interceptors set on
+ * P2PServiceImpl, from the moment a request is received until its response is ready to be written, so every
+ * operation is covered without changing it. The response code is the first element of the response.</p>
+ * <p> Histograms are log-linear like HDR histograms: values are counted in buckets whose width is 1/16 of their
+ * power of two, so every percentile is exact to about 6%, with a fixed size and lock-free recording.</p>
+ * <p> Metrics are exposed through JMX as the <i>server:type=ServiceMetrics</i> MBean and, when
+ * <i>p2p.metrics.port</i> is set, as plain text in the Prometheus format at <i>/metrics</i> on that port of
+ * <i>p2p.metrics.host</i> (127.0.0.1 by default).</p>
+ */
+public class ServiceMetrics {
+    public static final String DB_WAIT = "db_wait";
+    public static final String DB_EXECUTE = "db_execute";
+    public static final String USER_LOOKUP = "active_users_lookup";
+    private static final ServiceMetrics SHARED = new ServiceMetrics();
+    private static final String START_KEY = ServiceMetrics.class.getName() + ".start";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private final ConcurrentMap<String, Operation> operations = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, Histogram> timers = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+    private boolean started = false;
+
+    /**
+     * <p> Value read when metrics are exposed.</p>
+     */
+    public interface Gauge {
+        long value();
+    }
+
+    /**
+     * <p> Constructor for ServiceMetrics class. Creates the timers so they are exposed before their first use.</p>
+     */
+    private ServiceMetrics() {
+        timers.put(DB_WAIT, new Histogram());
+        timers.put(DB_EXECUTE, new Histogram());
+        timers.put(USER_LOOKUP, new Histogram());
+    }
+
+    /**
+     * <p> Returns metrics shared by the whole server.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl}, {@link Server.P2PDatabase}, {@link Server.SQLConnectionManager},
+     * {@link Server.ActiveUsers}</p>
+     *
+     * @return ServiceMetrics shared metrics.
+     */
+    public static ServiceMetrics getShared() {
+        return SHARED;
+    }
+
+    /**
+     * <p> Registers the MBean and starts the scrape endpoint if <i>p2p.metrics.port</i> is set. Only the first
+     * call has an effect.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl}</p>
+     *
+     * @param outputManager manager used to report where metrics are available.
+     */
+    public synchronized void start(OutputManager outputManager) {
+        if (started) {
+            return;
+        }
+        started = true;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsBean(),
+                    new ObjectName("server:type=ServiceMetrics"));
+        } catch (InstanceAlreadyExistsException e) {
+            // registered by an earlier instance of the service in the same JVM
+        } catch (JMException e) {
+            outputManager.printToTextArea("ERROR: metrics could not be registered with JMX: " + e);
+        }
+        int port = Integer.getInteger("p2p.metrics.port", 0);
+        if (port <= 0) {
+            return;
+        }
+        String host = System.getProperty("p2p.metrics.host", "127.0.0.1");
+        try {
+            HttpServer httpServer = HttpServer.create(new InetSocketAddress(host, port), 0);
+            httpServer.createContext("/metrics", new HttpHandler() {
+                @Override
+                public void handle(HttpExchange exchange) throws IOException {
+                    byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream outputStream = exchange.getResponseBody();
+                    try {
+                        outputStream.write(body);
+                    } finally {
+                        outputStream.close();
+                    }
+                }
+            });
+            httpServer.start();
+            outputManager.printToTextArea("Metrics available at http://" + host + ":" + port + "/metrics");
+        } catch (IOException | RuntimeException e) {
+            outputManager.printToTextArea("ERROR: metrics endpoint could not be started: " + e);
+        }
+    }
+
+    /**
+     * <p> Records a completed call of a WebMethod.</p>
+     *
+     * <p> Called by: {@link Server.ServiceMetrics.ResponseInterceptor}</p>
+     *
+     * @param operation name of the WebMethod.
+     * @param responseCode first element of the response, "FAULT" if the call failed with a fault.
+     * @param nanos time the call took in nanoseconds.
+     */
+    public void recordOperation(String operation, String responseCode, long nanos) {
+        Operation metrics = operations.get(operation);
+        if (metrics == null) {
+            Operation created = new Operation();
+            metrics = operations.putIfAbsent(operation, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        metrics.latency.record(nanos);
+        LongAdder responses = metrics.responses.get(responseCode);
+        if (responses == null) {
+            LongAdder created = new LongAdder();
+            responses = metrics.responses.putIfAbsent(responseCode, created);
+            if (responses == null) {
+                responses = created;
+            }
+        }
+        responses.increment();
+    }
+
+    /**
+     * <p> Records the duration of a timed step.</p>
+     *
+     * <p> Called by: {@link Server.P2PDatabase}, {@link Server.SQLConnectionManager#borrowConnection},
+     * {@link Server.ActiveUsers#findUser}, {@link Server.ActiveUsers#findUserByToken}</p>
+     *
+     * @param timer DB_WAIT, DB_EXECUTE or USER_LOOKUP.
+     * @param nanos time the step took in nanoseconds.
+     */
+    public void recordTimer(String timer, long nanos) {
+        timers.get(timer).record(nanos);
+    }
+
+    /**
+     * <p> Adds a value exposed with the metrics, replacing a gauge with the same name.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl}</p>
+     *
+     * @param name name of the gauge in lower case with underscores.
+     * @param gauge source of the value.
+     */
+    public void addGauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * <p> Returns all metrics as plain text in the Prometheus format. Latencies are in seconds.</p>
+     *
+     * @return String metrics text.
+     */
+    public String scrape() {
+        StringBuilder text = new StringBuilder();
+        text.append("# TYPE p2p_operation_responses_total counter\n");
+        for (Map.Entry<String, Operation> operation : operations.entrySet()) {
+            for (Map.Entry<String, LongAdder> responses : operation.getValue().responses.entrySet()) {
+                text.append("p2p_operation_responses_total{operation=\"").append(operation.getKey())
+                        .append("\",code=\"").append(escape(responses.getKey())).append("\"} ")
+                        .append(responses.getValue().sum()).append('\n');
+            }
+        }
+        text.append("# TYPE p2p_operation_latency_seconds summary\n");
+        for (Map.Entry<String, Operation> operation : operations.entrySet()) {
+            appendSummary(text, "p2p_operation_latency_seconds", "operation", operation.getKey(),
+                    operation.getValue().latency);
+        }
+        for (Map.Entry<String, Histogram> timer : timers.entrySet()) {
+            text.append("# TYPE p2p_").append(timer.getKey()).append("_seconds summary\n");
+            appendSummary(text, "p2p_" + timer.getKey() + "_seconds", null, null, timer.getValue());
+        }
+        for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+            text.append("# TYPE p2p_").append(gauge.getKey()).append(" gauge\n");
+            text.append("p2p_").append(gauge.getKey()).append(' ').append(readGauge(gauge.getValue())).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * <p> Appends quantiles, count and sum of a histogram.</p>
+     *
+     * @param text text to append to.
+     * @param name name of the metric.
+     * @param label name of the label, <i>null</i> if the metric has no label.
+     * @param value value of the label.
+     * @param histogram histogram to append.
+     */
+    private static void appendSummary(StringBuilder text, String name, String label, String value,
+                                      Histogram histogram) {
+        String labels = label == null ? "" : label + "=\"" + value + "\",";
+        long[] counts = histogram.snapshot();
+        for (double quantile : QUANTILES) {
+            text.append(name).append('{').append(labels).append("quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(histogram.valueAt(counts, quantile))).append('\n');
+        }
+        String plainLabels = label == null ? "" : "{" + label + "=\"" + value + "\"}";
+        text.append(name).append("_max").append(plainLabels).append(' ').append(seconds(histogram.max.get()))
+                .append('\n');
+        text.append(name).append("_count").append(plainLabels).append(' ').append(Histogram.total(counts))
+                .append('\n');
+        text.append(name).append("_sum").append(plainLabels).append(' ').append(seconds(histogram.sum.sum()))
+                .append('\n');
+    }
+
+    /**
+     * <p> Returns all metrics as named numbers for JMX. Latencies are in microseconds.</p>
+     *
+     * @return Map of attribute names to values in a stable order.
+     */
+    private Map<String, Long> snapshot() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Map.Entry<String, Operation> operation : operations.entrySet()) {
+            long[] counts = operation.getValue().latency.snapshot();
+            values.put(operation.getKey() + ".calls", Histogram.total(counts));
+            for (Map.Entry<String, LongAdder> responses : operation.getValue().responses.entrySet()) {
+                values.put(operation.getKey() + ".responses." + responses.getKey(), responses.getValue().sum());
+            }
+            putLatencies(values, operation.getKey(), operation.getValue().latency, counts);
+        }
+        for (Map.Entry<String, Histogram> timer : timers.entrySet()) {
+            long[] counts = timer.getValue().snapshot();
+            values.put(timer.getKey() + ".count", Histogram.total(counts));
+            putLatencies(values, timer.getKey(), timer.getValue(), counts);
+        }
+        for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+            values.put(gauge.getKey(), readGauge(gauge.getValue()));
+        }
+        return values;
+    }
+
+    /**
+     * <p> Puts quantiles and maximum of a histogram in microseconds.</p>
+     *
+     * @param values values to put into.
+     * @param prefix name of the histogram.
+     * @param histogram histogram to read.
+     * @param counts snapshot of the histogram.
+     */
+    private static void putLatencies(Map<String, Long> values, String prefix, Histogram histogram, long[] counts) {
+        values.put(prefix + ".p50Micros", histogram.valueAt(counts, 0.5) / 1000);
+        values.put(prefix + ".p90Micros", histogram.valueAt(counts, 0.9) / 1000);
+        values.put(prefix + ".p99Micros", histogram.valueAt(counts, 0.99) / 1000);
+        values.put(prefix + ".p999Micros", histogram.valueAt(counts, 0.999) / 1000);
+        values.put(prefix + ".maxMicros", histogram.max.get() / 1000);
+    }
+
+    /**
+     * <p> Reads a gauge, a failing gauge reads as -1.</p>
+     *
+     * @param gauge gauge to read.
+     * @return long value of the gauge.
+     */
+    private static long readGauge(Gauge gauge) {
+        try {
+            return gauge.value();
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * <p> Converts nanoseconds to seconds as text.</p>
+     *
+     * @param nanos duration in nanoseconds.
+     * @return String duration in seconds.
+     */
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    /**
+     * <p> Escapes a label value of the Prometheus format.</p>
+     *
+     * @param value label value.
+     * @return String escaped value.
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * <p> Metrics of one WebMethod.</p>
+     */
+    private static class Operation {
+        private final Histogram latency = new Histogram();
+        private final ConcurrentMap<String, LongAdder> responses = new ConcurrentSkipListMap<>();
+    }
+
+    /**
+     * <p> Log-linear histogram of durations in nanoseconds. Values below 32 have a bucket each, larger values
+     * share a bucket with the values that agree in their five highest bits.</p>
+     */
+    static class Histogram {
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int HALF_BUCKETS = SUB_BUCKETS / 2;
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * HALF_BUCKETS;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * <p> Records a value, negative values are recorded as 0.</p>
+         *
+         * @param nanos value to record.
+         */
+        void record(long nanos) {
+            long value = Math.max(0, nanos);
+            counts.incrementAndGet(index(value));
+            sum.add(value);
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+
+        /**
+         * <p> Copies the bucket counts, so that all values read from one snapshot are consistent.</p>
+         *
+         * @return long[] count of every bucket.
+         */
+        long[] snapshot() {
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+            }
+            return snapshot;
+        }
+
+        /**
+         * <p> Returns the number of values in a snapshot.</p>
+         *
+         * @param snapshot bucket counts.
+         * @return long number of values.
+         */
+        static long total(long[] snapshot) {
+            long total = 0;
+            for (long count : snapshot) {
+                total += count;
+            }
+            return total;
+        }
+
+        /**
+         * <p> Returns the value at a quantile: the upper end of the bucket holding it, capped at the maximum.</p>
+         *
+         * @param snapshot bucket counts.
+         * @param quantile quantile between 0 and 1.
+         * @return long value at the quantile, 0 if there are no values.
+         */
+        long valueAt(long[] snapshot, double quantile) {
+            long total = total(snapshot);
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        /**
+         * <p> Returns the bucket of a value.</p>
+         *
+         * @param value non negative value.
+         * @return int index of the bucket.
+         */
+        static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+            return (shift + 1) * HALF_BUCKETS + (int) (value >>> shift) - HALF_BUCKETS;
+        }
+
+        /**
+         * <p> Returns the largest value of a bucket.</p>
+         *
+         * @param index index of the bucket.
+         * @return long largest value counted in the bucket.
+         */
+        static long upperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / HALF_BUCKETS - 1;
+            long subBucket = index % HALF_BUCKETS + HALF_BUCKETS;
+            long upper = ((subBucket + 1) << shift) - 1;
+            // the last bucket ends at the largest long
+            return upper < 0 ? Long.MAX_VALUE : upper;
+        }
+    }
+
+    /**
+     * <p> CXF interceptor that stores the time a request was received in its exchange.</p>
+     */
+    public static class RequestInterceptor extends AbstractPhaseInterceptor<Message> {
+        public RequestInterceptor() {
+            super(Phase.RECEIVE);
+        }
+
+        @Override
+        public void handleMessage(Message message) {
+            message.getExchange().put(START_KEY, System.nanoTime());
+        }
+    }
+
+    /**
+     * <p> CXF interceptor that records a call once its response or fault is ready. Set as out interceptor and as
+     * out fault interceptor of the service.</p>
+     */
+    public static class ResponseInterceptor extends AbstractPhaseInterceptor<Message> {
+        public ResponseInterceptor() {
+            super(Phase.SETUP);
+        }
+
+        @Override
+        public void handleMessage(Message message) {
+            Exchange exchange = message.getExchange();
+            Object start = exchange.get(START_KEY);
+            if (!(start instanceof Long) || exchange.getBindingOperationInfo() == null) {
+                return;
+            }
+            // a fault message never carries the response list
+            String responseCode = "FAULT";
+            if (message == exchange.getOutMessage()) {
+                List<?> contents = message.getContent(List.class);
+                if (contents != null && !contents.isEmpty() && contents.get(0) instanceof List
+                        && !((List<?>) contents.get(0)).isEmpty()) {
+                    responseCode = String.valueOf(((List<?>) contents.get(0)).get(0));
+                }
+            }
+            SHARED.recordOperation(exchange.getBindingOperationInfo().getName().getLocalPart(), responseCode,
+                    System.nanoTime() - (Long) start);
+        }
+    }
+
+    /**
+     * <p> MBean exposing the metrics as read-only attributes. Attributes are listed from the current metrics, so
+     * operations appear after their first call.</p>
+     */
+    private class MetricsBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read only.");
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Long> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, values.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            if ("scrape".equals(actionName)) {
+                return scrape();
+            }
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String name : snapshot().keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, "java.lang.Long", name, true, false, false));
+            }
+            MBeanOperationInfo scrape = new MBeanOperationInfo("scrape", "Returns all metrics as text.",
+                    new MBeanParameterInfo[0], "java.lang.String", MBeanOperationInfo.INFO);
+            return new MBeanInfo(ServiceMetrics.class.getName(), "Metrics of the P2P service.",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[]{scrape}, null);
+        }
+    }
+}
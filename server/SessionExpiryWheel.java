@@ -0,0 +1,191 @@
+/*
+ * 2023/10/13
+ * Anton Mishchenko
+ */
+
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <p> SessionExpiryWheel class removes users whose session timed out. It is a hashed timing wheel: every active
+ * user has one entry placed in the slot of the tick its session expires on, and a single thread visits one slot
+ * per tick, so the work done per tick depends only on the sessions due in that tick.</p>
+ * <p> Heartbeats do not touch the wheel, they only update the last active time of the user. When an entry becomes
+ * due the wheel checks the last active time and, if the user was active since, moves the entry to the tick of the
+ * new deadline. Sessions therefore expire within one tick of the timeout, which is set with the
+ * <i>p2p.session.timeout</i> system property (seconds).</p>
+ */
+public class SessionExpiryWheel {
+    public static final int DEFAULT_TIMEOUT_SECONDS = 120;
+    private static final long TICK_MILLIS = 1000;
+    private static final int WHEEL_SIZE = 256;
+    private final long timeoutMillis;
+    private final ActiveUsers activeUsers;
+    private final OutputManager outputManager;
+    private final List<List<Entry>> wheel = new ArrayList<>(WHEEL_SIZE);
+    private final ConcurrentLinkedQueue<Entry> scheduledEntries = new ConcurrentLinkedQueue<>();
+    private final long startTime = System.currentTimeMillis();
+    private long currentTick = 0;
+    private volatile boolean running = false;
+    private Thread thread;
+
+    /**
+     * <p> Constructor for SessionExpiryWheel class. Creates empty slots of the wheel.</p>
+     *
+     * <p> Called by: {@link Server.ServerGUI#activityTest}</p>
+     *
+     * @param timeoutSeconds how long a user can stay inactive before their session is removed.
+     * @param activeUsers active users whose sessions are tracked.
+     * @param outputManager manager object used for printing messages to the GUI.
+     */
+    public SessionExpiryWheel(int timeoutSeconds, ActiveUsers activeUsers, OutputManager outputManager) {
+        this.timeoutMillis = Math.max(1, timeoutSeconds) * 1000L;
+        this.activeUsers = activeUsers;
+        this.outputManager = outputManager;
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel.add(new ArrayList<Entry>());
+        }
+    }
+
+    /**
+     * <p> Starts the thread that advances the wheel.</p>
+     *
+     * <p> Called by: {@link Server.ServerGUI#activityTest}</p>
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWheel();
+            }
+        }, "session-expiry");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * <p> Stops the thread that advances the wheel.</p>
+     *
+     * <p> Called by: {@link Server.ServerGUI#activityTest}</p>
+     */
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * <p> Starts tracking the session of a user. The entry is placed in the wheel by the wheel thread on its
+     * next tick.</p>
+     *
+     * <p> Called by: {@link Server.ActiveUsers#addUser}, {@link Server.ActiveUsers#setExpiryWheel}</p>
+     *
+     * @param user newly added user.
+     */
+    public void schedule(ClientData user) {
+        scheduledEntries.add(new Entry(user));
+    }
+
+    /**
+     * <p> Returns session timeout in seconds.</p>
+     *
+     * @return long session timeout in seconds.
+     */
+    public long getTimeoutSeconds() {
+        return timeoutMillis / 1000L;
+    }
+
+    /**
+     * <p> Main loop of the wheel thread. Sleeps until the next tick, places newly scheduled entries and processes
+     * the entries of the current slot.</p>
+     */
+    private void runWheel() {
+        while (running) {
+            try {
+                long nextTickTime = startTime + (currentTick + 1) * TICK_MILLIS;
+                long sleepTime = nextTickTime - System.currentTimeMillis();
+                if (sleepTime > 0) {
+                    Thread.sleep(sleepTime);
+                }
+                currentTick++;
+                Entry entry;
+                while ((entry = scheduledEntries.poll()) != null) {
+                    place(entry, entry.user.getLastActiveMillis() + timeoutMillis);
+                }
+                expireSlot();
+            } catch (InterruptedException e) {
+                if (running) {
+                    outputManager.printToTextArea("ERROR: During activity test sleep: " + "\n" + e);
+                }
+            } catch (Exception e) {
+                outputManager.printToTextArea("ERROR: During activity test: " + "\n" + e);
+            }
+        }
+    }
+
+    /**
+     * <p> Processes entries in the slot of the current tick. Entries of removed users are dropped, entries of
+     * users that were active since they were placed are moved to their new deadline and the rest expire.</p>
+     */
+    private void expireSlot() {
+        List<Entry> slot = wheel.get((int) (currentTick % WHEEL_SIZE));
+        if (slot.isEmpty()) {
+            return;
+        }
+        List<Entry> due = new ArrayList<>(slot);
+        slot.clear();
+        long now = System.currentTimeMillis();
+        for (Entry entry : due) {
+            if (entry.deadlineTick > currentTick) {
+                // deadline is in a later rotation of the wheel
+                slot.add(entry);
+                continue;
+            }
+            ClientData user = entry.user;
+            if (activeUsers.findUserByToken(user.getToken()) != user) {
+                continue;
+            }
+            long deadline = user.getLastActiveMillis() + timeoutMillis;
+            if (deadline > now) {
+                place(entry, deadline);
+                continue;
+            }
+            if (activeUsers.removeUser(user.getToken(), user.getName()) != null) {
+                long difference = (now - user.getLastActiveMillis()) / 1000L;
+                outputManager.printToTextArea("- Removed: " + user.getName() + " inactive for " + difference + " s. -");
+            }
+        }
+    }
+
+    /**
+     * <p> Places an entry in the slot of the tick its deadline falls on, at least one tick after the current.</p>
+     *
+     * @param entry entry to place.
+     * @param deadline time in milliseconds the session expires at.
+     */
+    private void place(Entry entry, long deadline) {
+        long tick = (deadline - startTime + TICK_MILLIS - 1) / TICK_MILLIS;
+        entry.deadlineTick = Math.max(tick, currentTick + 1);
+        wheel.get((int) (entry.deadlineTick % WHEEL_SIZE)).add(entry);
+    }
+
+    /**
+     * <p> Session of a user tracked by the wheel.</p>
+     */
+    private static class Entry {
+        private final ClientData user;
+        private long deadlineTick;
+
+        private Entry(ClientData user) {
+            this.user = user;
+        }
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ * 2023/10/13
+ * Anton Mishchenko
+ */
+
+package server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p> SlowQueryLog class records every SQL statement run by P2PDatabase: the shape of the query, the number of
+ * bound parameters, the time spent waiting for an SQL connection, the execution time and the number of rows read
+ * or changed. Statements are grouped by their shape, the query text with literals replaced by <i>?</i> and
+ * whitespace collapsed, and every shape keeps totals of its calls, times and rows.</p>
+ * <p> Statements executing longer than <i>p2p.db.slowQueryMillis</i> (200 by default, a negative value turns
+ * logging off) are written to the log file <i>p2p.db.slowQueryLog</i> (slow-queries.log by default) by a writer
+ * thread of its own, so a slow database never also waits for the disk. The file is rolled once it grows over
+ * <i>p2p.db.slowQueryLog.maxBytes</i>, keeping <i>p2p.db.slowQueryLog.files</i> older files. Every
+ * <i>p2p.db.slowQueryLog.reportSeconds</i> the totals of all shapes, slowest first, are added to the file and the
+ * number of slow queries since the last report is printed to the Server GUI.</p>
+ * <p> The connection wait is counted towards the first statement run on a borrowed connection.</p>
+ */
+public class SlowQueryLog {
+    private static final SlowQueryLog SHARED = new SlowQueryLog();
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    private static final int QUEUE_CAPACITY = 1024;
+    private final long thresholdNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("p2p.db.slowQueryMillis", 200));
+    private final String logPath = System.getProperty("p2p.db.slowQueryLog", "slow-queries.log");
+    private final long maxLogBytes = Math.max(1024, Long.getLong("p2p.db.slowQueryLog.maxBytes", 10L << 20));
+    private final int logFiles = Math.max(0, Integer.getInteger("p2p.db.slowQueryLog.files", 3));
+    private final long reportMillis =
+            TimeUnit.SECONDS.toMillis(Math.max(1, Long.getLong("p2p.db.slowQueryLog.reportSeconds", 60)));
+    private final ConcurrentMap<String, Shape> statements = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Shape> shapes = new ConcurrentHashMap<>();
+    private final BlockingQueue<String> entries = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final LongAdder slowQueries = new LongAdder();
+    private final AtomicLong droppedEntries = new AtomicLong();
+    private volatile boolean started = false;
+    private OutputManager outputManager;
+    private BufferedWriter writer;
+    private long writtenBytes;
+    private boolean writeFailed = false;
+
+    /**
+     * <p> Constructor for SlowQueryLog class, the log is shared by the whole server.</p>
+     */
+    private SlowQueryLog() {
+    }
+
+    /**
+     * <p> Returns the slow query log shared by the whole server.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl}, {@link Server.P2PDatabase}</p>
+     *
+     * @return SlowQueryLog shared log.
+     */
+    public static SlowQueryLog getShared() {
+        return SHARED;
+    }
+
+    /**
+     * <p> Starts the writer thread. Slow queries recorded before are counted but not written. Only the first call
+     * has an effect.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl}</p>
+     *
+     * @param outputManager manager used to print reports and errors to the Server GUI.
+     */
+    public synchronized void start(OutputManager outputManager) {
+        if (started || thresholdNanos < 0) {
+            return;
+        }
+        this.outputManager = outputManager;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeEntries();
+            }
+        }, "slow-query-log");
+        thread.setDaemon(true);
+        thread.start();
+        started = true;
+    }
+
+    /**
+     * <p> Records a statement that was run, and queues it for the log file if it was slow.</p>
+     *
+     * <p> Called by: {@link Server.P2PDatabase}</p>
+     *
+     * @param sql parameterized SQL of the statement.
+     * @param parameters number of parameters bound, over all statements of a batch.
+     * @param batchSize number of statements sent together, 1 if the statement was not part of a batch.
+     * @param waitNanos time spent waiting for the SQL connection in nanoseconds.
+     * @param executeNanos time the statement took, including reading its rows, in nanoseconds.
+     * @param rows number of rows read or changed.
+     */
+    public void record(String sql, int parameters, int batchSize, long waitNanos, long executeNanos, long rows) {
+        Shape shape = getShape(sql);
+        shape.calls.increment();
+        shape.statements.add(batchSize);
+        shape.waitNanos.add(waitNanos);
+        shape.executeNanos.add(executeNanos);
+        shape.rows.add(rows);
+        long max = shape.maxExecuteNanos.get();
+        while (executeNanos > max && !shape.maxExecuteNanos.compareAndSet(max, executeNanos)) {
+            max = shape.maxExecuteNanos.get();
+        }
+        if (thresholdNanos < 0 || executeNanos < thresholdNanos) {
+            return;
+        }
+        shape.slowCalls.increment();
+        slowQueries.increment();
+        if (!started) {
+            return;
+        }
+        String entry = TIME_FORMAT.format(Instant.now()) + " execute=" + millis(executeNanos) +
+                " wait=" + millis(waitNanos) + " parameters=" + parameters + " batch=" + batchSize +
+                " rows=" + rows + " shape=" + shape.text + "\n";
+        if (!entries.offer(entry)) {
+            droppedEntries.incrementAndGet();
+        }
+    }
+
+    /**
+     * <p> Returns the number of statements that took longer than the threshold.</p>
+     *
+     * <p> Called by: {@link Server.P2PServiceImpl}</p>
+     *
+     * @return long number of slow queries.
+     */
+    public long getSlowQueries() {
+        return slowQueries.sum();
+    }
+
+    /**
+     * <p> Returns totals of every query shape, the one with the highest total execution time first.</p>
+     *
+     * @return String one line per shape.
+     */
+    public String report() {
+        List<Shape> sorted = new ArrayList<>(shapes.values());
+        Collections.sort(sorted, new Comparator<Shape>() {
+            @Override
+            public int compare(Shape first, Shape second) {
+                return Long.compare(second.executeNanos.sum(), first.executeNanos.sum());
+            }
+        });
+        StringBuilder text = new StringBuilder();
+        for (Shape shape : sorted) {
+            long calls = shape.calls.sum();
+            long executeNanos = shape.executeNanos.sum();
+            text.append("  calls=").append(calls)
+                    .append(" slow=").append(shape.slowCalls.sum())
+                    .append(" statements=").append(shape.statements.sum())
+                    .append(" total=").append(millis(executeNanos))
+                    .append(" avg=").append(millis(calls == 0 ? 0 : executeNanos / calls))
+                    .append(" max=").append(millis(shape.maxExecuteNanos.get()))
+                    .append(" wait=").append(millis(shape.waitNanos.sum()))
+                    .append(" rows=").append(shape.rows.sum())
+                    .append(" shape=").append(shape.text).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * <p> Returns the shape of a statement. The shape of every SQL text is normalized once and shared by all
+     * statements with the same normalized text.</p>
+     *
+     * @param sql parameterized SQL of the statement.
+     * @return Shape totals of the query shape.
+     */
+    private Shape getShape(String sql) {
+        Shape shape = statements.get(sql);
+        if (shape != null) {
+            return shape;
+        }
+        String text = normalize(sql);
+        Shape created = new Shape(text);
+        shape = shapes.putIfAbsent(text, created);
+        if (shape == null) {
+            shape = created;
+        }
+        statements.putIfAbsent(sql, shape);
+        return shape;
+    }
+
+    /**
+     * <p> Replaces string and number literals with <i>?</i>, lists of placeholders with <i>(?+)</i> and runs of
+     * whitespace with a single space, so statements differing only in their values have the same shape.</p>
+     *
+     * @param sql SQL text.
+     * @return String normalized SQL text.
+     */
+    private static String normalize(String sql) {
+        StringBuilder shape = new StringBuilder(sql.length());
+        int length = sql.length();
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (c == '\'' || c == '"') {
+                // skip the literal, a doubled or escaped quote does not end it
+                i++;
+                while (i < length) {
+                    char next = sql.charAt(i);
+                    if (next == '\\') {
+                        i += 2;
+                    } else if (next == c && i + 1 < length && sql.charAt(i + 1) == c) {
+                        i += 2;
+                    } else if (next == c) {
+                        i++;
+                        break;
+                    } else {
+                        i++;
+                    }
+                }
+                shape.append('?');
+            } else if (Character.isDigit(c) && !isIdentifierPart(shape)) {
+                while (i < length && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                shape.append('?');
+            } else if (Character.isWhitespace(c)) {
+                while (i < length && Character.isWhitespace(sql.charAt(i))) {
+                    i++;
+                }
+                if (shape.length() > 0) {
+                    shape.append(' ');
+                }
+            } else {
+                shape.append(c);
+                i++;
+            }
+        }
+        return shape.toString().trim().replaceAll("\\(\\s?\\?(\\s?,\\s?\\?)+\\s?\\)", "(?+)");
+    }
+
+    /**
+     * <p> Checks if the text ends inside an identifier, so a digit that follows is part of it.</p>
+     *
+     * @param text normalized text so far.
+     * @return boolean true if the last character is part of an identifier.
+     */
+    private static boolean isIdentifierPart(StringBuilder text) {
+        if (text.length() == 0) {
+            return false;
+        }
+        char last = text.charAt(text.length() - 1);
+        return Character.isLetterOrDigit(last) || last == '_' || last == '`';
+    }
+
+    /**
+     * <p> Formats nanoseconds as milliseconds.</p>
+     *
+     * @param nanos time in nanoseconds.
+     * @return String time in milliseconds with three decimals.
+     */
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3fms", nanos / 1e6);
+    }
+
+    /**
+     * <p> Loop of the writer thread. Writes queued slow queries to the log file and adds the report of all shapes
+     * every <i>p2p.db.slowQueryLog.reportSeconds</i> if there were any statements since the last one.</p>
+     */
+    private void writeEntries() {
+        long nextReport = System.currentTimeMillis() + reportMillis;
+        long reportedCalls = 0;
+        long reportedSlow = 0;
+        long reportedDropped = 0;
+        List<String> batch = new ArrayList<>();
+        while (true) {
+            try {
+                String entry = entries.poll(Math.max(1, nextReport - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS);
+                if (entry != null) {
+                    batch.add(entry);
+                    entries.drainTo(batch);
+                    write(batch);
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (System.currentTimeMillis() < nextReport) {
+                continue;
+            }
+            nextReport = System.currentTimeMillis() + reportMillis;
+            long calls = 0;
+            for (Shape shape : shapes.values()) {
+                calls += shape.calls.sum();
+            }
+            if (calls == reportedCalls) {
+                continue;
+            }
+            reportedCalls = calls;
+            long slow = slowQueries.sum();
+            long dropped = droppedEntries.get();
+            write(Collections.singletonList(TIME_FORMAT.format(Instant.now()) + " totals of " + calls +
+                    " queries since start, " + (dropped - reportedDropped) + " slow queries not logged since" +
+                    " last report:\n" + report()));
+            if (slow != reportedSlow) {
+                outputManager.printToTextArea((slow - reportedSlow) + " SQL queries took longer than " +
+                        millis(thresholdNanos) + " in the last " + TimeUnit.MILLISECONDS.toSeconds(reportMillis) +
+                        " s, see " + logPath);
+            }
+            reportedSlow = slow;
+            reportedDropped = dropped;
+        }
+    }
+
+    /**
+     * <p> Appends entries to the log file, rolling it first if it would grow over the limit. The log file is no
+     * longer written after an error, which is printed once.</p>
+     *
+     * @param lines entries to write.
+     */
+    private void write(List<String> lines) {
+        if (writeFailed) {
+            return;
+        }
+        try {
+            for (String line : lines) {
+                if (writer == null || writtenBytes + line.length() > maxLogBytes) {
+                    roll();
+                }
+                writer.write(line);
+                writtenBytes += line.length();
+            }
+            writer.flush();
+        } catch (IOException e) {
+            writeFailed = true;
+            outputManager.printToTextArea("ERROR: slow query log " + logPath + " could not be written: " + e);
+        }
+    }
+
+    /**
+     * <p> Opens the log file. A file that is already over the limit is first renamed to <i>.1</i>, older files
+     * are shifted up by one and the oldest is deleted.</p>
+     *
+     * @throws IOException if the file could not be renamed or opened.
+     */
+    private void roll() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+        Path path = Paths.get(logPath);
+        if (Files.exists(path) && Files.size(path) > 0 && (writtenBytes > 0 || Files.size(path) >= maxLogBytes)) {
+            if (logFiles == 0) {
+                Files.delete(path);
+            } else {
+                Files.deleteIfExists(Paths.get(logPath + "." + logFiles));
+                for (int i = logFiles - 1; i >= 1; i--) {
+                    Path older = Paths.get(logPath + "." + i);
+                    if (Files.exists(older)) {
+                        Files.move(older, Paths.get(logPath + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                Files.move(path, Paths.get(logPath + ".1"), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        writtenBytes = Files.size(path);
+    }
+
+    /**
+     * <p> Totals of all statements with the same shape.</p>
+     */
+    private static class Shape {
+        private final String text;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder slowCalls = new LongAdder();
+        private final LongAdder statements = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+        private final LongAdder executeNanos = new LongAdder();
+        private final LongAdder rows = new LongAdder();
+        private final AtomicLong maxExecuteNanos = new AtomicLong();
+
+        private Shape(String text) {
+            this.text = text;
+        }
+    }
+}
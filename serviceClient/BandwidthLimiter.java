@@ -0,0 +1,101 @@
+/*
+ * 2023/10/13
+ * Anton Mishchenko
+ */
+
+package serviceClient;
+
+/**
+ * <p> BandwidthLimiter class is a token bucket used to limit the speed of downloads. Tokens are added at the
+ * configured rate and every received byte takes one token. When the bucket runs out the downloading thread sleeps
+ * only as long as needed for the missing tokens, so throughput follows the limit smoothly.</p>
+ * <p> The limit of each download is set with the <i>p2p.download.limit</i> system property and the limit of all
+ * downloads together with <i>p2p.download.globalLimit</i>, both in bytes per second. Downloads are not limited when
+ * the properties are not set or are 0.</p>
+ */
+public class BandwidthLimiter {
+    private static final long MIN_BURST_BYTES = 16 * 1024;
+    private static final BandwidthLimiter GLOBAL_LIMITER = create(Long.getLong("p2p.download.globalLimit", 0));
+    private final long bytesPerSecond;
+    private final long burstBytes;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * <p> Constructor for BandwidthLimiter class. The bucket holds at most 50 ms worth of tokens so that bursts
+     * stay short.</p>
+     *
+     * @param bytesPerSecond maximum average speed in bytes per second.
+     */
+    public BandwidthLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.burstBytes = Math.max(MIN_BURST_BYTES, bytesPerSecond / 20);
+        this.tokens = burstBytes;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * <p> Returns limiter shared by all downloads.</p>
+     *
+     * <p> Called by: {@link serviceClient.FileTransferHandler#requestFile}</p>
+     *
+     * @return BandwidthLimiter shared limiter or <i>null</i> if total speed is not limited.
+     */
+    public static BandwidthLimiter getGlobalLimiter() {
+        return GLOBAL_LIMITER;
+    }
+
+    /**
+     * <p> Creates limiter for a single download.</p>
+     *
+     * <p> Called by: {@link serviceClient.FileTransferHandler#requestFile}</p>
+     *
+     * @return BandwidthLimiter new limiter or <i>null</i> if download speed is not limited.
+     */
+    public static BandwidthLimiter forDownload() {
+        return create(Long.getLong("p2p.download.limit", 0));
+    }
+
+    /**
+     * <p> Creates limiter with the given rate.</p>
+     *
+     * @param bytesPerSecond maximum average speed in bytes per second.
+     * @return BandwidthLimiter new limiter or <i>null</i> if rate is not positive.
+     */
+    private static BandwidthLimiter create(long bytesPerSecond) {
+        return bytesPerSecond > 0 ? new BandwidthLimiter(bytesPerSecond) : null;
+    }
+
+    /**
+     * <p> Takes tokens for the received bytes and sleeps if there were not enough of them. The bucket can go into
+     * debt, threads that take tokens later wait for the debt to be paid off first.</p>
+     *
+     * <p> Called by: {@link serviceClient.FileTransferHandler#downloadFile}</p>
+     *
+     * @param bytes number of bytes received.
+     * @throws InterruptedException if thread was interrupted while waiting.
+     */
+    public void acquire(int bytes) throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(burstBytes, tokens + (now - lastRefill) * bytesPerSecond / 1e9);
+            lastRefill = now;
+            tokens -= bytes;
+            if (tokens >= 0) {
+                return;
+            }
+            waitNanos = (long) (-tokens * 1e9 / bytesPerSecond);
+        }
+        Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+    }
+
+    /**
+     * <p> Returns the configured rate.</p>
+     *
+     * @return long rate in bytes per second.
+     */
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+}
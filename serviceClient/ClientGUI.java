@@ -8,6 +8,7 @@ package serviceClient;
 import com.sun.xml.internal.ws.client.ClientTransportException;
 import server.P2PServiceImplSEI;
 import server.P2PServiceImplService;
+import server.StringArray;
 import javax.swing.*;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
@@ -16,13 +17,17 @@ import javax.xml.ws.WebServiceException;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.AdjustmentEvent;
+import java.awt.event.AdjustmentListener;
 import java.io.File;
+import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.ServerSocket;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -38,10 +43,16 @@ public class ClientGUI extends JFrame {
     private List<ProgressBar> progressBarList = new ArrayList<>();
     private volatile boolean sendHeartBeats = true;
     private ConnectionListener connectionListener;
+    private SharedFolderManager sharedFolderManager;
     private P2PServiceImplSEI P2PServiceImpl;
     protected static final Lock uiLock = new ReentrantLock();
     private static final Lock tblDownloadLock = new ReentrantLock();
     private static final Lock tblUserFilesLock = new ReentrantLock();
+    private static final int SEARCH_PAGE_SIZE = 50;
+    private static final String SEARCH_SORT = "relevance";
+    private static final int REGISTER_BATCH_SIZE = 1000;
+    private static final int REGISTER_FIELDS = 7;
+    private static final int MAX_UDP_HEARTBEAT_FAILURES = 3;
     private String userName;
     private String token = "";
     private JTabbedPane tabbedPane;
@@ -65,6 +76,9 @@ public class ClientGUI extends JFrame {
     private JPanel downloadProgressPanel;
     private volatile SelectedFile fileToRemove;
     private SelectedFile fileToDownload;
+    private String searchQuery = "";
+    private String searchCursor = "";
+    private final AtomicBoolean searchPageLoading = new AtomicBoolean(false);
     private int portNumber;
     private String ip;
     private File fileToRegister;
@@ -232,6 +246,28 @@ public class ClientGUI extends JFrame {
         foundFilesScrollPane.setPreferredSize(new Dimension(450, 200));
         tblDownloadFiles = new JTable();
         foundFilesScrollPane.setViewportView(tblDownloadFiles);
+        // load further search results when the table is scrolled near its end
+        final JScrollBar foundFilesScrollBar = foundFilesScrollPane.getVerticalScrollBar();
+        foundFilesScrollBar.addAdjustmentListener(new AdjustmentListener() {
+            @Override
+            public void adjustmentValueChanged(AdjustmentEvent e) {
+                int rowsLeft = (foundFilesScrollBar.getMaximum() - foundFilesScrollBar.getValue()
+                        - foundFilesScrollBar.getVisibleAmount()) / Math.max(1, tblDownloadFiles.getRowHeight());
+                if (rowsLeft < SEARCH_PAGE_SIZE / 5 && searchPageLoading.compareAndSet(false, true)) {
+                    new SwingWorker<String, Void>() {
+                        @Override
+                        protected String doInBackground() throws Exception {
+                            try {
+                                searchNextPageListener();
+                            } finally {
+                                searchPageLoading.set(false);
+                            }
+                            return null;
+                        }
+                    }.execute();
+                }
+            }
+        });
         btnExitDownload = new JButton("Exit");
         serverDownloadText = new JTextArea(5, 20);
         serverDownloadText.setEditable(false);
@@ -274,7 +310,7 @@ public class ClientGUI extends JFrame {
         // disable column reordering
         tblUserFiles.getTableHeader().setReorderingAllowed(false);
 
-        tableModel2 = new DefaultTableModel(null, new String[]{"File ID", "File Name", "File Type", "File Size"});
+        tableModel2 = new DefaultTableModel(null, new String[]{"File ID", "File Name", "File Type", "File Size", "Hosts"});
         tblDownloadFiles.setModel(tableModel2);
         tblDownloadFiles.setDefaultEditor(Object.class, null);
         tblDownloadFiles.getTableHeader().setReorderingAllowed(false);
@@ -712,13 +748,14 @@ public class ClientGUI extends JFrame {
 
     /**
      * <p> This method is responsible for creating a dialog window
-     * for the user to select a file that they want to register on the server.</p>
+     * for the user to select a file or a folder that they want to register on the server.</p>
      *
      * <p> Called by: {@link serviceClient.ClientGUI#setButtonActionListeners()}</p>
      */
     private void chooseFileListener (){
         // open file chooser dialogue
         JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
         int result = fileChooser.showOpenDialog(this);
         // if file is chosen, get its information
         if (result == JFileChooser.APPROVE_OPTION) {
@@ -734,7 +771,12 @@ public class ClientGUI extends JFrame {
      *
      * <p> Called by: {@link serviceClient.ClientGUI#setButtonActionListeners()}</p>
      *
+     * <p> The file is hashed before it is registered, so peers downloading it can verify every piece. If the file
+     * can not be read it is registered without hashes. If a folder is chosen, its files are registered by
+     * {@link serviceClient.ClientGUI#registerFolderListener}.</p>
+     *
      * <p> Calls: {@link serviceClient.ClientOutputManager#printToManageTextArea}, {@link serviceClient.ClientGUI#updateListListener},
+     * {@link serviceClient.FileHasher#hash}, {@link server.P2PServiceImplSEI#registerHashedFile},
      * {@link server.P2PServiceImplSEI#registerFile}, {@link serviceClient.ClientGUI#returnToLoginTab}</p>
      */
     private void registerFileListener (){
@@ -746,9 +788,9 @@ public class ClientGUI extends JFrame {
             clientOutputManager.printToManageTextArea("File does not exist");
             return;
         }
-        // check if file is not a folder
+        // register all files of a folder at once
         if (fileToRegister.isDirectory()) {
-            clientOutputManager.printToManageTextArea("Directory registration is not allowed.");
+            registerFolderListener(fileToRegister);
             return;
         }
         // get file information
@@ -766,10 +808,24 @@ public class ClientGUI extends JFrame {
             clientOutputManager.printToManageTextArea("File path cannot be longer than 300 characters");
             return;
         }
+        // hash file contents
+        FileHasher.Hashes hashes = null;
+        try {
+            clientOutputManager.printToManageTextArea("Hashing file ...");
+            hashes = FileHasher.hash(fileToRegister);
+        } catch (IOException ex) {
+            clientOutputManager.printToManageTextArea("File could not be hashed, registering it without hashes.");
+        }
         // register file
         try {
-            response = P2PServiceImpl.registerFile(
-                    token, userName, fileName, fileType ,filePath , fileToRegister.length()).getItem();
+            if (hashes != null) {
+                response = P2PServiceImpl.registerHashedFile(token, userName, fileName, fileType, filePath,
+                        fileToRegister.length(), hashes.getRootHash(), hashes.getPieceSize(),
+                        hashes.getPieceHashes()).getItem();
+            } else {
+                response = P2PServiceImpl.registerFile(
+                        token, userName, fileName, fileType ,filePath , fileToRegister.length()).getItem();
+            }
             arrayResponse = response.toArray(new String[0]);
         } catch (WebServiceException | NullPointerException ex ){
             clientOutputManager.printToLoginTextArea("Server communication error.");
@@ -787,6 +843,8 @@ public class ClientGUI extends JFrame {
                 clientOutputManager.printToManageTextArea(arrayResponse[1]);
             }else if (arrayResponse[0].equals("COPY")){
                 clientOutputManager.printToManageTextArea(arrayResponse[1]);
+            }else if (arrayResponse[0].equals("HASH")){
+                clientOutputManager.printToManageTextArea(arrayResponse[1]);
             }else if (arrayResponse[0].equals("ERROR")){
                 clientOutputManager.printToLoginTextArea(arrayResponse[1]);
                 returnToLoginTab();
@@ -794,11 +852,99 @@ public class ClientGUI extends JFrame {
         }
     }
 
+    /**
+     * <p> This method is responsible for registering all files of a user chosen folder. Files are hashed like in
+     * {@link serviceClient.ClientGUI#registerFileListener} and sent to the server in batches of up to
+     * REGISTER_BATCH_SIZE files, one request per batch. Sub folders, files without a type and files whose name,
+     * type or path are too long are skipped.</p>
+     *
+     * <p> Called by: {@link serviceClient.ClientGUI#registerFileListener()}</p>
+     *
+     * <p> Calls: {@link serviceClient.ClientOutputManager#printToManageTextArea}, {@link serviceClient.FileHasher#hash},
+     * {@link serviceClient.SharedFolderManager#fileFields}, {@link serviceClient.SharedFolderManager#addRegisterFields},
+     * {@link server.P2PServiceImplSEI#registerFiles}, {@link serviceClient.ClientGUI#updateListListener},
+     * {@link serviceClient.ClientGUI#returnToLoginTab}</p>
+     *
+     * @param folder folder chosen by the user.
+     */
+    private void registerFolderListener (File folder){
+        File[] folderFiles = folder.listFiles();
+        if (folderFiles == null) {
+            clientOutputManager.printToManageTextArea("Folder could not be read.");
+            return;
+        }
+        // get information and hashes of every file
+        List<String> fields = new ArrayList<>();
+        int skipped = 0;
+        clientOutputManager.printToManageTextArea("Hashing files ...");
+        for (File file : folderFiles) {
+            if (!file.isFile() || SharedFolderManager.fileFields(file) == null) {
+                skipped++;
+                continue;
+            }
+            FileHasher.Hashes hashes = null;
+            try {
+                hashes = FileHasher.hash(file);
+            } catch (IOException ex) {
+                // file is registered without hashes
+            }
+            SharedFolderManager.addRegisterFields(fields, file, hashes);
+        }
+        if (fields.isEmpty()) {
+            clientOutputManager.printToManageTextArea("Folder has no files that can be registered.");
+            return;
+        }
+        // register files, one batch per request
+        int files = fields.size() / REGISTER_FIELDS;
+        int registered = 0;
+        int full = 0;
+        int failed = 0;
+        for (int start = 0; start < fields.size(); start += REGISTER_BATCH_SIZE * REGISTER_FIELDS) {
+            String[] arrayResponse = null;
+            try {
+                StringArray batch = new StringArray();
+                batch.getItem().addAll(fields.subList(start,
+                        Math.min(fields.size(), start + REGISTER_BATCH_SIZE * REGISTER_FIELDS)));
+                arrayResponse = P2PServiceImpl.registerFiles(token, userName, batch).getItem().toArray(new String[0]);
+            } catch (WebServiceException | NullPointerException ex ){
+                clientOutputManager.printToLoginTextArea("Server communication error.");
+                returnToLoginTab();
+                return;
+            }
+            if (arrayResponse[0].equals("CRED") || arrayResponse[0].equals("ERROR")) {
+                clientOutputManager.printToLoginTextArea(arrayResponse[1]);
+                returnToLoginTab();
+                return;
+            }
+            for (int i = 1; i < arrayResponse.length; i++) {
+                if (arrayResponse[i].equals("OK")) {
+                    registered++;
+                } else if (arrayResponse[i].equals("FULL")) {
+                    full++;
+                } else if (!arrayResponse[i].equals("COPY")) {
+                    failed++;
+                }
+            }
+        }
+        clientOutputManager.printToManageTextArea("Registered " + registered + " of " + files + " files from folder.");
+        if (full > 0) {
+            clientOutputManager.printToManageTextArea(full + " files were not registered. User has reached maximum number of files.");
+        }
+        if (failed > 0) {
+            clientOutputManager.printToManageTextArea(failed + " files could not be registered.");
+        }
+        if (skipped > 0) {
+            clientOutputManager.printToManageTextArea(skipped + " folder entries were skipped.");
+        }
+        // update table of user files
+        updateListListener();
+    }
+
     /**
      * <p> This method is responsible for acquiring a list of user files and updating the manage tqb table.</p>
      *
      * <p> Called by: {@link serviceClient.ClientGUI#setButtonActionListeners()},
-     * {@link serviceClient.ClientGUI#registerFileListener()}</p>
+     * {@link serviceClient.ClientGUI#registerFileListener()}, {@link serviceClient.ClientGUI#registerFolderListener}</p>
      *
      * <p> Calls: {@link serviceClient.ClientOutputManager#printToManageTextArea},{@link server.P2PServiceImplSEI#getUserFiles},
      * {@link serviceClient.ClientGUI#returnToLoginTab}, {@link serviceClient.ClientGUI#updateTable}</p>
@@ -821,7 +967,7 @@ public class ClientGUI extends JFrame {
                     tblUserFilesLock.lock();
                     String[] tableColumns = new String[]{"File ID", "File Name", "File Type", "File Path", "File Size"};
                     String[] tableData = Arrays.copyOfRange(arrayResponse, 1, arrayResponse.length);
-                    tableModel = new DefaultTableModel(updateTable(tableData, tableColumns.length), tableColumns);
+                    tableModel = new DefaultTableModel(updateTable(tableData, tableColumns.length, true), tableColumns);
                     tblUserFiles.setModel(tableModel);
                     return;
                 } catch (Exception ex) {
@@ -913,12 +1059,14 @@ public class ClientGUI extends JFrame {
     }
 
     /**
-     * <p> This method is responsible for searching for files on the server that match user query.</p>
+     * <p> This method is responsible for searching for files on the server that match user query. Only the first
+     * page of results is requested, further pages are loaded by
+     * {@link serviceClient.ClientGUI#searchNextPageListener} as the table is scrolled.</p>
      *
      * <p> Called by: {@link serviceClient.ClientGUI#setButtonActionListeners()}</p>
      *
      * <p> Calls: {@link serviceClient.ClientOutputManager#printToDownloadTextArea}, {@link serviceClient.ClientGUI#updateTable},
-     * {@link server.P2PServiceImplSEI#searchFile}, {@link serviceClient.ClientGUI#returnToLoginTab}</p>
+     * {@link server.P2PServiceImplSEI#searchFilePage}, {@link serviceClient.ClientGUI#returnToLoginTab}</p>
      */
     private void searchFileListener(){
         List <String> response =null;
@@ -932,8 +1080,9 @@ public class ClientGUI extends JFrame {
                 clientOutputManager.printToDownloadTextArea("Search string cannot be longer than 100 characters.");
                 return;
             }
-            // get files from server that meet user criteria
-            response = P2PServiceImpl.searchFile(token, userName, fileName).getItem();
+            // get first page of files from server that meet user criteria
+            response = P2PServiceImpl.searchFilePage(token, userName, fileName, SEARCH_PAGE_SIZE, "", SEARCH_SORT)
+                    .getItem();
             arrayResponse = response.toArray(new String[0]);
         }catch (WebServiceException | NullPointerException e){
             clientOutputManager.printToLoginTextArea("Server communication error.");
@@ -944,9 +1093,12 @@ public class ClientGUI extends JFrame {
             if(arrayResponse[0].equals("OK")) {
                 try {
                     tblDownloadLock.lock();
-                    String[] tableColumns = new String[]{"File ID", "File Name", "File Type", "File Size"};
-                    String[] tableData = Arrays.copyOfRange(arrayResponse, 1, arrayResponse.length);
-                    tableModel2 = new DefaultTableModel(updateTable(tableData, tableColumns.length), tableColumns);
+                    // remember where the next page starts
+                    searchQuery = fileName;
+                    searchCursor = arrayResponse[1];
+                    String[] tableColumns = new String[]{"File ID", "File Name", "File Type", "File Size", "Hosts"};
+                    String[] tableData = Arrays.copyOfRange(arrayResponse, 3, arrayResponse.length);
+                    tableModel2 = new DefaultTableModel(updateTable(tableData, tableColumns.length, false), tableColumns);
                     tblDownloadFiles.setModel(tableModel2);
                 } catch (Exception ex) {
                     clientOutputManager.printToDownloadTextArea("Error: When updating table : " + "\n" +
@@ -967,7 +1119,8 @@ public class ClientGUI extends JFrame {
             // show empty table
             try {
                 tblDownloadLock.lock();
-                String[] tableColumns = new String[]{"File ID", "File Name", "File Type", "File Size"};
+                searchCursor = "";
+                String[] tableColumns = new String[]{"File ID", "File Name", "File Type", "File Size", "Hosts"};
                 tableModel2 = new DefaultTableModel(null, tableColumns);
                 tblDownloadFiles.setModel(tableModel2);
             }finally {
@@ -976,6 +1129,70 @@ public class ClientGUI extends JFrame {
         }
     }
 
+
+    /**
+     * <p> This method is responsible for loading the next page of search results and adding it to the end of the
+     * table in the Download tab. Pages of an earlier search are discarded if a new search was started meanwhile.</p>
+     *
+     * <p> Called by: {@link serviceClient.ClientGUI#createUI()}</p>
+     *
+     * <p> Calls: {@link server.P2PServiceImplSEI#searchFilePage}, {@link serviceClient.ClientOutputManager#printToDownloadTextArea},
+     * {@link serviceClient.ClientGUI#returnToLoginTab}</p>
+     */
+    private void searchNextPageListener(){
+        String query;
+        String cursor;
+        String[] arrayResponse = null;
+        try {
+            tblDownloadLock.lock();
+            query = searchQuery;
+            cursor = searchCursor;
+        } finally {
+            tblDownloadLock.unlock();
+        }
+        // check if there are more results
+        if (cursor == null || cursor.isEmpty()) {
+            return;
+        }
+        try {
+            arrayResponse = P2PServiceImpl.searchFilePage(token, userName, query, SEARCH_PAGE_SIZE, cursor, SEARCH_SORT)
+                    .getItem().toArray(new String[0]);
+        } catch (WebServiceException | NullPointerException e) {
+            clientOutputManager.printToLoginTextArea("Server communication error.");
+            returnToLoginTab();
+            return;
+        }
+        if (arrayResponse[0].equals("OK")) {
+            try {
+                tblDownloadLock.lock();
+                // skip page if a new search was started
+                if (!query.equals(searchQuery) || !cursor.equals(searchCursor)) {
+                    return;
+                }
+                searchCursor = arrayResponse[1];
+                int columns = tableModel2.getColumnCount();
+                for (int i = 3; i + columns <= arrayResponse.length; i += columns) {
+                    tableModel2.addRow(Arrays.copyOfRange(arrayResponse, i, i + columns));
+                }
+            } finally {
+                tblDownloadLock.unlock();
+            }
+        } else if (arrayResponse[0].equals("CRED")) {
+            clientOutputManager.printToLoginTextArea(arrayResponse[1]);
+            returnToLoginTab();
+        } else {
+            // results changed since the first page, the search has to be repeated to see them
+            try {
+                tblDownloadLock.lock();
+                if (cursor.equals(searchCursor)) {
+                    searchCursor = "";
+                }
+            } finally {
+                tblDownloadLock.unlock();
+            }
+            clientOutputManager.printToDownloadTextArea(arrayResponse[1]);
+        }
+    }
     /**
      * <p> This method is responsible for initiating the download process for the file that user selected
      * from the search table.</p>
@@ -984,7 +1201,7 @@ public class ClientGUI extends JFrame {
      *
      * <p> Calls: {@link serviceClient.ClientOutputManager#printToDownloadTextArea}, {@link serviceClient.ProgressBar},
      * {@link serviceClient.ClientGUI#returnToLoginTab}, {@link server.P2PServiceImplSEI#getFileHostInfo},
-     * {@link serviceClient.FileTransferHandler#requestFile}</p>
+     * {@link serviceClient.ClientGUI#requestFileHashes}, {@link serviceClient.FileTransferHandler#requestFile}</p>
      */
     private void downloadFileListener (){
         List <String> response;
@@ -992,7 +1209,7 @@ public class ClientGUI extends JFrame {
         // create FileTransferHandler
         FileTransferHandler transferFile = new FileTransferHandler(clientOutputManager);
         String[] ownerData = null;
-        int fileID;
+        int fileID = 0;
         //
         try {
             fileID = fileToDownload.getId();
@@ -1028,8 +1245,11 @@ public class ClientGUI extends JFrame {
                     // add progress bar to the panel
                     downloadProgressPanel.add(progressBar);
                     downloadProgressPanel.revalidate();
+                    // get hashes to verify downloaded pieces
+                    FileHasher.Hashes hashes = requestFileHashes(fileID, fileToDownload.getSize());
                     // start file transfer
-                    transferFile.requestFile(progressBar, ownerData, fileToDownload.getName(), fileToDownload.getType(), fileToDownload.getSize());
+                    progressBar.setTransfer(transferFile.requestFile(progressBar, ownerData, fileToDownload.getName(),
+                            fileToDownload.getType(), fileToDownload.getSize(), hashes));
                 } catch (Exception ex) {
                     clientOutputManager.printToDownloadTextArea("Error: When downloading requested file : " + "\n" +
                             ex);
@@ -1049,6 +1269,37 @@ public class ClientGUI extends JFrame {
         }
     }
 
+
+    /**
+     * <p> This method is responsible for requesting content hashes of the file to be downloaded. Files registered
+     * without hashes, hashes that do not fit the file and servers that do not provide hashes all result in an
+     * unverified download.</p>
+     *
+     * <p> Called by: {@link serviceClient.ClientGUI#downloadFileListener()}</p>
+     *
+     * <p> Calls: {@link server.P2PServiceImplSEI#getFileHashes}, {@link serviceClient.FileHasher.Hashes#parse},
+     * {@link serviceClient.ClientOutputManager#printToDownloadTextArea}</p>
+     *
+     * @param fileID ID of the file.
+     * @param fileSize size of the file.
+     * @return FileHasher.Hashes hashes of the file or <i>null</i> if they are not available.
+     */
+    private FileHasher.Hashes requestFileHashes(int fileID, long fileSize) {
+        String[] hashResponse;
+        try {
+            hashResponse = P2PServiceImpl.getFileHashes(token, userName, fileID).getItem().toArray(new String[0]);
+        } catch (WebServiceException | NullPointerException e) {
+            return null;
+        }
+        if (hashResponse.length < 4 || !hashResponse[0].equals("OK")) {
+            return null;
+        }
+        FileHasher.Hashes hashes = FileHasher.Hashes.parse(hashResponse[1], hashResponse[2], hashResponse[3], fileSize);
+        if (hashes == null) {
+            clientOutputManager.printToDownloadTextArea("File hashes are invalid, downloading without verification.");
+        }
+        return hashes;
+    }
     /**
      * <p> This method takes care of updating login tab user interface elements by disabling, enabling, changing
      * text or colour. It uses uiLock to prevent multiple threads from changing the GUI at the same time.</p>
@@ -1076,12 +1327,14 @@ public class ClientGUI extends JFrame {
 
     /**
      * <p> This method is responsible for changing Client GUI once the user logs onto the server, allowing access to
-     * manage and download tabs. It also starts a separate thread to listen to incoming connections and a thread for
-     * heart beat. It uses the uiLock to prevent threads from changing the GUI at the same time.</p>
+     * manage and download tabs. It also starts a separate thread to listen to incoming connections, a thread for
+     * heart beat and the SharedFolderManager that keeps the shared folders registered. It uses the uiLock to
+     * prevent threads from changing the GUI at the same time.</p>
      *
      * <p> Called by: {@link serviceClient.ClientGUI#loginButtonListener()}, {@link serviceClient.ClientGUI#resumeSession()}</p>
      *
-     * <p> Calls: {@link #startConnectionListener}, {@link #heartBeat}</p>
+     * <p> Calls: {@link #startConnectionListener}, {@link #heartBeat}, {@link serviceClient.SharedFolderManager#start},
+     * {@link serviceClient.SharedFolderManager#close}</p>
      */
     private void guiLoggedIn(){
         try {
@@ -1104,6 +1357,11 @@ public class ClientGUI extends JFrame {
         startConnectionListener();
         // start heart beat
         heartBeat();
+        // register changes in shared folders with the token of the new session
+        if (sharedFolderManager != null) {
+            sharedFolderManager.close();
+        }
+        sharedFolderManager = SharedFolderManager.start(P2PServiceImpl, token, userName, clientOutputManager);
     }
 
     /**
@@ -1117,13 +1375,21 @@ public class ClientGUI extends JFrame {
      * {@link serviceClient.ClientGUI#searchFileListener}, {@link serviceClient.ClientGUI#heartBeat}</p>
      *
      * <p> Calls: {@link serviceClient.ClientOutputManager#printToLoginTextArea}, {@link serviceClient.ClientGUI#setSendHeartBeats},
-     * {@link serviceClient.ConnectionListener#closeConnectionListener}, {@link server.P2PServiceImplSEI#disconnectFromServer}</p>
+     * {@link serviceClient.ConnectionListener#closeConnectionListener}, {@link server.P2PServiceImplSEI#disconnectFromServer},
+     * {@link serviceClient.PeerConnectionPool#closeAll}, {@link serviceClient.SharedFolderManager#close}</p>
      */
     private void returnToLoginTab(){
         try {
             uiLock.lock();
             // close connectionListener
             connectionListener.closeConnectionListener();
+            // stop watching shared folders
+            if (sharedFolderManager != null) {
+                sharedFolderManager.close();
+                sharedFolderManager = null;
+            }
+            // close idle connections to peers
+            PeerConnectionPool.getShared().closeAll();
             // stop heart beat thread
             setSendHeartBeats(false);
             // reset GUI to login tab
@@ -1155,8 +1421,7 @@ public class ClientGUI extends JFrame {
 
     /**
      * <p> This method is responsible for updating tables in the Manage and Download tabs with data provided by the
-     * Server. Depending on amount of columns provided, it will either update the table in the Manage tab (4) or the
-     * table in the Download tab (3).</p>
+     * Server, either the table in the Manage tab or the table in the Download tab.</p>
      *
      * <p> Called by: {@link serviceClient.ClientGUI#updateListListener}, {@link serviceClient.ClientGUI#searchFileListener}</p>
      *
@@ -1164,16 +1429,17 @@ public class ClientGUI extends JFrame {
      *
      * @param data data to be added to the table.
      * @param dataColumns number of columns in the table.
+     * @param userFiles true if the table in the Manage tab is updated.
      * @return 2D array of data to be added to the table.
      */
-    private String[][] updateTable(String[] data, int dataColumns){
+    private String[][] updateTable(String[] data, int dataColumns, boolean userFiles){
         String[][] tableData = null;
         try{
             // create tableData with provided column number
             tableData = new String[data.length/dataColumns][dataColumns];
             // if data is empty, print message appropriate for the table
             if(data[0] == null || data[0].isEmpty()){
-                if(dataColumns==5) {
+                if(userFiles) {
                     clientOutputManager.printToManageTextArea("No files registered");
                 }else{
                     clientOutputManager.printToDownloadTextArea("No files found");
@@ -1199,21 +1465,28 @@ public class ClientGUI extends JFrame {
 
     /**
      * <p> This method is responsible for sending regular heart beats to the Server. It is started as a separate
-     * and sends heart beats every 30 seconds. If a server error occurs it attempts to send heart beat again. If
+     * task on the shared TransferExecutor and sends heart beats every 30 seconds. If a server error occurs it attempts to send heart beat again. If
      * COMM_FAILURE error occurs it attempts to reconnect to CORBA and send heart beat again. If attempts are not
      * successful, it returns user to the Login tab.</p>
+     * <p> If the server has a UDP heartbeat channel, heart beats are sent to it by a HeartbeatSender instead. A heart
+     * beat that is not acknowledged is sent with sendHeartBeat, and after MAX_UDP_HEARTBEAT_FAILURES such heart
+     * beats in a row only sendHeartBeat is used for the rest of the session.</p>
      *
      * <p> Called by: {@link serviceClient.ClientGUI#guiLoggedIn}</p>
      *
      * <p> Calls: {@link serviceClient.ClientOutputManager#printToLoginTextArea}, {@link serviceClient.ClientGUI#setSendHeartBeats},
      * {@link serviceClient.ClientGUI#returnToLoginTab}, {@link server.P2PServiceImplSEI#sendHeartBeat},
-     * {@link serviceClient.ClientGUI#getSendHeartBeats}</p>
+     * {@link serviceClient.ClientGUI#getSendHeartBeats}, {@link serviceClient.HeartbeatSender#open},
+     * {@link serviceClient.HeartbeatSender#send}</p>
      */
     private void heartBeat() {
-        new Thread(new Runnable() {
+        TransferExecutor.getShared().execute(new Runnable() {
             @Override
             public void run() {
                 setSendHeartBeats(true);
+                // use the UDP heartbeat channel if the server has one
+                HeartbeatSender udpSender = HeartbeatSender.open(P2PServiceImpl, token, userName);
+                int udpFailures = 0;
                 while (getSendHeartBeats()) {
                     List <String> response;
                     String[] arrayResponse = null;
@@ -1230,6 +1503,18 @@ public class ClientGUI extends JFrame {
                     if(!getSendHeartBeats()){
                         break;
                     }
+                    if (udpSender != null) {
+                        if (udpSender.send()) {
+                            udpFailures = 0;
+                            clientOutputManager.printToLoginTextArea("Heartbeat received by server.");
+                            continue;
+                        }
+                        // not acknowledged, the SOAP heart beat below refreshes the session or reports it expired
+                        if (++udpFailures >= MAX_UDP_HEARTBEAT_FAILURES) {
+                            udpSender.close();
+                            udpSender = null;
+                        }
+                    }
                     // send heart beat
                     try {
                         // attempt twice
@@ -1253,8 +1538,11 @@ public class ClientGUI extends JFrame {
                         break;
                     }
                 }
+                if (udpSender != null) {
+                    udpSender.close();
+                }
             }
-        }).start();
+        });
     }
 
     /**
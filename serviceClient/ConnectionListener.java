@@ -6,17 +6,23 @@
 package serviceClient;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 
 /**
  * <p> ConnectionListener class is responsible for listening for incoming connections from peers
  * without blocking the main thread. If it acquires a connection with peer it will attempt to
  * transfer files using FileTransferHandler class. Also contains a method to close the socket
  * used for listening for connections.</p>
+ * <p> By default connections are served by a PeerUploadServer, which multiplexes uploads on a fixed number of
+ * threads. Setting the <i>p2p.upload.mode</i> system property to <i>blocking</i> serves every connection on its
+ * own thread instead.</p>
  */
 public class ConnectionListener implements Runnable{
     private ServerSocket serverSocket;
+    private PeerUploadServer uploadServer;
     private boolean keepListening = true;
     ClientOutputManager clientOutputManager;
 
@@ -37,7 +43,9 @@ public class ConnectionListener implements Runnable{
     }
 
     /**
-     * <p> Method used to initialize port to listen on for incoming connections.</p>
+     * <p> Method used to initialize port to listen on for incoming connections. The server socket is opened
+     * through a ServerSocketChannel so that accepted sockets have channels, which FileTransferHandler uses to send
+     * files without copying them through the client.</p>
      *
      * <p> Called by: {@link serviceClient.ConnectionListener#ConnectionListener(int, ClientOutputManager)}</p>
      *
@@ -47,7 +55,17 @@ public class ConnectionListener implements Runnable{
      */
     private void openPort(int serverPort){
         try {
-            serverSocket = new ServerSocket(serverPort);
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            try {
+                serverChannel.socket().bind(new InetSocketAddress(serverPort));
+            } catch (IOException | IllegalArgumentException e) {
+                serverChannel.close();
+                throw e;
+            }
+            serverSocket = serverChannel.socket();
+            if(!"blocking".equals(System.getProperty("p2p.upload.mode"))){
+                uploadServer = new PeerUploadServer(serverChannel, clientOutputManager);
+            }
         } catch (IOException e) {
             clientOutputManager.printToLoginTextArea("ERROR: ConnectionListener failed to open server port."+"\n"
                     +"Please restart the Client and try again.");
@@ -89,11 +107,16 @@ public class ConnectionListener implements Runnable{
      *
      * <p> Called by: {@link serviceClient.ClientGUI}</p>
      *
-     * <p> Calls: {@link serviceClient.ConnectionListener#listenForPeer()}</p>
+     * <p> Calls: {@link serviceClient.PeerUploadServer#run()}, {@link serviceClient.ConnectionListener#listenForPeer()}</p>
      * <p> Calls: {@link serviceClient.FileTransferHandler#sendFile(Socket)}</p>
      */
     @Override
     public void run() {
+        if(uploadServer != null) {
+            // non blocking server, returns when the listener is closed
+            uploadServer.run();
+            return;
+        }
         while(keepListening) {
             Socket sendSocket = listenForPeer();
             // if an error caused sendSocket to be null, skip this iteration and wait for another connection
@@ -108,14 +131,21 @@ public class ConnectionListener implements Runnable{
 
     /**
      * <p> Method that closes the connection listener. Used by ClientGUI class to restart connection
-     * listener when issues result in client having to log back in.</p>
+     * listener when issues result in client having to log back in. Uploads that are still running are
+     * cancelled.</p>
      *
      * <p> Called by: {@link serviceClient.ClientGUI}</p>
+     *
+     * <p> Calls: {@link serviceClient.PeerUploadServer#close()}, {@link serviceClient.TransferExecutor#cancelAll}</p>
      */
     public void closeConnectionListener(){
         try {
             keepListening = false;
+            if(uploadServer != null) {
+                uploadServer.close();
+            }
             serverSocket.close();
+            TransferExecutor.getShared().cancelAll(TransferExecutor.Kind.UPLOAD);
         } catch (Exception e) {
             System.out.println("ERROR: Could not close connection listener.");
         }
@@ -0,0 +1,289 @@
+/*
+ * 2023/10/13
+ * Anton Mishchenko
+ */
+
+package serviceClient;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * <p> FileHasher class computes content hashes of shared files. A file is split into pieces of
+ * <i>p2p.hash.pieceSize</i> bytes (1 MB by default), every piece is hashed with SHA-256 and the piece hashes are
+ * combined into a Merkle root that identifies the content of the whole file. Pieces are hashed in parallel on the
+ * common fork join pool, each thread reading its pieces with positional reads, so large files are hashed at the
+ * speed of the disk rather than of one core.</p>
+ * <p> Downloads use the piece hashes to verify every piece as it arrives, so a corrupt piece is fetched again on
+ * its own instead of failing the whole file.</p>
+ */
+public class FileHasher {
+    private static final int DEFAULT_PIECE_SIZE = 1024 * 1024;
+    private static final int HASH_LENGTH = 32;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return newDigest();
+        }
+    };
+
+    /**
+     * <p> Utility class, not instantiated.</p>
+     */
+    private FileHasher() {
+    }
+
+    /**
+     * <p> Hashes all pieces of the file in parallel and computes the Merkle root.</p>
+     *
+     * <p> Called by: {@link serviceClient.ClientGUI}</p>
+     *
+     * @param file file to hash.
+     * @return Hashes hashes of the file.
+     * @throws IOException if the file could not be read.
+     */
+    public static Hashes hash(File file) throws IOException {
+        final int pieceSize = Math.max(16 * 1024, Integer.getInteger("p2p.hash.pieceSize", DEFAULT_PIECE_SIZE));
+        final long fileSize = file.length();
+        final int pieceCount = pieceCount(fileSize, pieceSize);
+        final byte[][] pieceHashes = new byte[pieceCount][];
+        FileInputStream fileInputStream = new FileInputStream(file);
+        try {
+            final FileChannel channel = fileInputStream.getChannel();
+            final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+                @Override
+                protected ByteBuffer initialValue() {
+                    return ByteBuffer.allocate(pieceSize);
+                }
+            };
+            IntStream.range(0, pieceCount).parallel().forEach(new IntConsumer() {
+                @Override
+                public void accept(int piece) {
+                    ByteBuffer buffer = buffers.get();
+                    buffer.clear();
+                    long start = (long) piece * pieceSize;
+                    buffer.limit((int) Math.min(pieceSize, fileSize - start));
+                    try {
+                        // positional reads do not move the shared channel position
+                        while (buffer.hasRemaining()) {
+                            if (channel.read(buffer, start + buffer.position()) == -1) {
+                                throw new IOException("File changed while it was hashed.");
+                            }
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    pieceHashes[piece] = sha256(buffer.array(), 0, buffer.limit());
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            fileInputStream.close();
+        }
+        return new Hashes(merkleRoot(pieceHashes), pieceSize, pieceHashes);
+    }
+
+    /**
+     * <p> Returns the number of pieces of a file, an empty file has one empty piece.</p>
+     *
+     * @param fileSize size of the file.
+     * @param pieceSize size of the pieces.
+     * @return int number of pieces.
+     */
+    private static int pieceCount(long fileSize, int pieceSize) {
+        return (int) Math.max(1, (fileSize + pieceSize - 1) / pieceSize);
+    }
+
+    /**
+     * <p> Computes SHA-256 hash of a part of a byte array.</p>
+     *
+     * @param data data to hash.
+     * @param offset first byte to hash.
+     * @param length number of bytes to hash.
+     * @return byte[] hash.
+     */
+    private static byte[] sha256(byte[] data, int offset, int length) {
+        MessageDigest digest = DIGEST.get();
+        digest.reset();
+        digest.update(data, offset, length);
+        return digest.digest();
+    }
+
+    /**
+     * <p> Computes the Merkle root of the piece hashes. Every level hashes pairs of nodes of the level below, a
+     * node without a pair is carried up unchanged.</p>
+     *
+     * @param pieceHashes hashes of the pieces in order.
+     * @return byte[] root hash.
+     */
+    private static byte[] merkleRoot(byte[][] pieceHashes) {
+        byte[][] level = pieceHashes;
+        byte[] pair = new byte[2 * HASH_LENGTH];
+        while (level.length > 1) {
+            byte[][] parents = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < parents.length; i++) {
+                if (2 * i + 1 < level.length) {
+                    System.arraycopy(level[2 * i], 0, pair, 0, HASH_LENGTH);
+                    System.arraycopy(level[2 * i + 1], 0, pair, HASH_LENGTH, HASH_LENGTH);
+                    parents[i] = sha256(pair, 0, pair.length);
+                } else {
+                    parents[i] = level[2 * i];
+                }
+            }
+            level = parents;
+        }
+        return level[0];
+    }
+
+    /**
+     * <p> Creates SHA-256 digest, which every Java platform has to provide.</p>
+     *
+     * @return MessageDigest new digest.
+     */
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    }
+
+    /**
+     * <p> Converts bytes to lower case hex digits.</p>
+     *
+     * @param bytes bytes to convert.
+     * @return String hex digits.
+     */
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * <p> Converts hex digits to bytes.</p>
+     *
+     * @param hex hex digits.
+     * @param offset first digit to convert.
+     * @param length number of bytes to produce.
+     * @return byte[] bytes.
+     * @throws NumberFormatException if the text contains other characters than hex digits.
+     */
+    private static byte[] fromHex(String hex, int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            int high = Character.digit(hex.charAt(offset + 2 * i), 16);
+            int low = Character.digit(hex.charAt(offset + 2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new NumberFormatException("Not a hex digit.");
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
+    /**
+     * <p> Content hashes of one file: piece size, SHA-256 hash of every piece and their Merkle root.</p>
+     */
+    public static class Hashes {
+        private final byte[] rootHash;
+        private final int pieceSize;
+        private final byte[][] pieceHashes;
+
+        private Hashes(byte[] rootHash, int pieceSize, byte[][] pieceHashes) {
+            this.rootHash = rootHash;
+            this.pieceSize = pieceSize;
+            this.pieceHashes = pieceHashes;
+        }
+
+        /**
+         * <p> Parses hashes returned by the server. The Merkle root is recomputed from the piece hashes, so hashes
+         * that were altered or do not fit the file are rejected.</p>
+         *
+         * <p> Called by: {@link serviceClient.ClientGUI}</p>
+         *
+         * @param rootHash hex root hash.
+         * @param pieceSize size of the pieces.
+         * @param pieceHashes hex hashes of all pieces in order.
+         * @param fileSize size of the file.
+         * @return Hashes parsed hashes or <i>null</i> if they are malformed.
+         */
+        public static Hashes parse(String rootHash, String pieceSize, String pieceHashes, long fileSize) {
+            try {
+                int size = Integer.parseInt(pieceSize);
+                if (size <= 0 || rootHash.length() != 2 * HASH_LENGTH
+                        || pieceHashes.length() != (long) pieceCount(fileSize, size) * 2 * HASH_LENGTH) {
+                    return null;
+                }
+                byte[][] pieces = new byte[pieceCount(fileSize, size)][];
+                for (int i = 0; i < pieces.length; i++) {
+                    pieces[i] = fromHex(pieceHashes, i * 2 * HASH_LENGTH, HASH_LENGTH);
+                }
+                byte[] root = fromHex(rootHash, 0, HASH_LENGTH);
+                return Arrays.equals(root, merkleRoot(pieces)) ? new Hashes(root, size, pieces) : null;
+            } catch (NumberFormatException | NullPointerException e) {
+                return null;
+            }
+        }
+
+        /**
+         * <p> Returns the Merkle root as hex digits.</p>
+         *
+         * @return String root hash.
+         */
+        public String getRootHash() {
+            return toHex(rootHash);
+        }
+
+        /**
+         * <p> Returns the size of the hashed pieces.</p>
+         *
+         * @return int piece size in bytes.
+         */
+        public int getPieceSize() {
+            return pieceSize;
+        }
+
+        /**
+         * <p> Returns hashes of all pieces in order as one string of hex digits.</p>
+         *
+         * @return String piece hashes.
+         */
+        public String getPieceHashes() {
+            StringBuilder builder = new StringBuilder(pieceHashes.length * 2 * HASH_LENGTH);
+            for (byte[] pieceHash : pieceHashes) {
+                builder.append(toHex(pieceHash));
+            }
+            return builder.toString();
+        }
+
+        /**
+         * <p> Checks a received piece against its hash.</p>
+         *
+         * <p> Called by: {@link serviceClient.SwarmDownload}</p>
+         *
+         * @param piece index of the piece.
+         * @param data buffer holding the piece.
+         * @param length length of the piece.
+         * @return boolean true if the piece matches its hash.
+         */
+        public boolean verifyPiece(int piece, byte[] data, int length) {
+            return piece >= 0 && piece < pieceHashes.length
+                    && MessageDigest.isEqual(pieceHashes[piece], sha256(data, 0, length));
+        }
+    }
+}
@@ -10,177 +10,321 @@ import java.net.ConnectException;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 
 /**
  * <p> FileTransferHandler class is responsible for handling file transfers between peers. It
  * contains two threaded methods sendFile and requestFile. sendFile is called when a peer
- * requests a file. requestFile is called when this client requests some file from a peer.</p>
+ * requests a file. requestFile is called when this client requests some file from a peer.
+ * Both run on the TransferExecutor shared by the client.</p>
  */
 public class FileTransferHandler{
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
     private ClientOutputManager clientOutputManager;
     public FileTransferHandler(ClientOutputManager clientOutputManager){
         this.clientOutputManager = clientOutputManager;
     }
     /**
      * <p> This method is called by ConnectionListener when a peer requests a file from this client.
-     * It parses the request and calls transferFile method to send the file to the requesting peer. </p>
+     * It parses the request and calls transferFile method to send the file to the requesting peer. The upload
+     * runs on the shared TransferExecutor. A peer sending versioned requests keeps the connection open and may
+     * send further requests over it, the connection is closed once it stays idle for the idle timeout.</p>
      *
      * <p> Called by: {@link serviceClient.ConnectionListener}</p>
      *
-     * <p> Calls: {@link serviceClient.FileTransferHandler#transferFile}</p>
+     * <p> Calls: {@link serviceClient.FileTransferHandler#transferFile}, {@link serviceClient.TransferExecutor#execute}</p>
      *
      * @param sendSocket Socket connection object of peer to which the file will be sent.
+     * @return Transfer handle of the upload.
      */
-    public void sendFile(final Socket sendSocket) {
-        new Thread(new Runnable() {
+    public TransferExecutor.Transfer sendFile(final Socket sendSocket) {
+        return TransferExecutor.getShared().execute(TransferExecutor.Kind.UPLOAD, new TransferExecutor.TransferTask() {
             @Override
-            public void run() {
-                File file = null;
-                BufferedReader dataInputStream = null;
-                OutputStream out = null;
+            public void run(TransferExecutor.Transfer transfer) {
+                // closing the socket stops the upload if it is cancelled
+                transfer.attach(sendSocket);
                 try {
                     // get requested file information from the peer
-                    dataInputStream = new BufferedReader(new InputStreamReader(sendSocket.getInputStream()));
-                    out = sendSocket.getOutputStream();
-                    String request = dataInputStream.readLine();
-                    // parse request string and get file form it
-                    request = request.split(" ")[1];
-                    String fileName = request.replace("%20", " ");
-                    file = new File(fileName);
-                    // check if such file exists
-                    if (!file.exists()) {
-                        out.write("HTTP/1.1 404 Not Found\n".getBytes());
-                        try {
-                            dataInputStream.close();
-                            sendSocket.close();
-                        } catch (IOException e) {
-                            System.out.println("ERROR: While closing streams.");
+                    InputStream dataInputStream = sendSocket.getInputStream();
+                    OutputStream out = sendSocket.getOutputStream();
+                    sendSocket.setSoTimeout(PeerProtocol.IDLE_TIMEOUT);
+                    while (true) {
+                        PeerProtocol.Request request = PeerProtocol.parseRequest(readRequest(dataInputStream));
+                        if (request == null) {
+                            return;
+                        }
+                        File file = new File(request.getPath());
+                        PeerProtocol.Response response = PeerProtocol.respond(request, file);
+                        out.write(response.getHeader());
+                        // check if such file exists
+                        if (response.getLength() > 0) {
+                            // create relevant streams and transfer file to peer
+                            FileInputStream fileInputStream = new FileInputStream(file);
+                            try {
+                                transferFile(fileInputStream, sendSocket, out, response.getStart(), response.getLength());
+                            } finally {
+                                fileInputStream.close();
+                            }
+                        }
+                        out.flush();
+                        if (!request.isKeepAlive()) {
+                            return;
                         }
-                        return;
                     }
+                }catch (SocketTimeoutException e) {
+                    // peer kept the connection idle for too long
+                }catch (SocketException e) {
+                    System.out.println("ERROR: While accessing socket during file transfer.");
                 }catch (IOException e) {
-                    System.out.println("ERROR: Input stream error while attempting to send file.");
-                }
-                try{
-                    // confirm that File file was created
-                    if(file==null){
-                        return;
-                    }
-                    // create relevant streams and transfer file to peer
-                    FileInputStream fileInputStream = new FileInputStream(file);
-                    transferFile(fileInputStream, out);
-                    // close streams
+                    System.out.println("ERROR: While accessing file during file transfer.");
+                }finally {
+                    // close socket
                     try {
-                        fileInputStream.close();
-                        out.close();
-                        dataInputStream.close();
                         sendSocket.close();
                     } catch (IOException e) {
                         System.out.println("ERROR: While closing streams after sending file.");
                     }
-                }catch (SocketException e) {
-                    System.out.println("ERROR: While accessing socket during file transfer.");
-                }catch (IOException e) {
-                    System.out.println("ERROR: While accessing file during file transfer.");
                 }
             }
-        }).start();
+
+            @Override
+            public void failed(TransferExecutor.Transfer transfer, RuntimeException e) {
+                clientOutputManager.printToLoginTextArea("ERROR: While sending file." + "\n" + e);
+            }
+        });
     }
 
     /**
-     * <p> This method takes cre of the actual transfer of bytes between streams. </p>
+     * <p> This method reads the request of a peer, which is either a single line or a versioned request ending
+     * with an empty line.</p>
+     *
+     * <p> Called by: {@link serviceClient.FileTransferHandler#sendFile}</p>
+     *
+     * @param in InputStream of the peer socket.
+     * @return String request text.
+     * @throws IOException If the request could not be read or is too long.
+     */
+    private String readRequest(InputStream in) throws IOException {
+        byte[] buffer = new byte[PeerProtocol.MAX_HEADER_LENGTH];
+        int length = 0;
+        // read byte by byte so that nothing after the request is consumed
+        while (length < buffer.length) {
+            int b = in.read();
+            if (b == -1) {
+                break;
+            }
+            buffer[length++] = (byte) b;
+            if (b == '\n' && PeerProtocol.requestLength(buffer, length) == length) {
+                break;
+            }
+        }
+        return new String(buffer, 0, length);
+    }
+
+    /**
+     * <p> This method takes care of the actual transfer of bytes to the peer. If the socket has a channel the
+     * file channel is transferred to it directly, which lets the operating system send the file without copying
+     * it through this process (sendfile). Otherwise the file is copied through a buffer.</p>
      *
      * <p> Called by: {@link serviceClient.FileTransferHandler#sendFile}</p>
      *
      * @param fileInputStream FileInputStream of the file to be sent to peer.
+     * @param sendSocket Socket of the peer to which the file is sent.
      * @param out OutputStream of peer socket to which the file is sent.
+     * @param start first byte of the file to send.
+     * @param length number of bytes to send.
      * @throws IOException If an I/O error occurs during transfer.
      */
-    private void transferFile( FileInputStream fileInputStream, OutputStream out ) throws IOException {
-        byte[] buffer = new byte[1024];
+    private void transferFile(FileInputStream fileInputStream, Socket sendSocket, OutputStream out, long start,
+                              long length) throws IOException {
+        FileChannel fileChannel = fileInputStream.getChannel();
+        long position = start;
+        long end = start + length;
+        SocketChannel socketChannel = sendSocket.getChannel();
+        if (socketChannel != null && socketChannel.isBlocking()) {
+            out.flush();
+            // transferTo may send less than requested, keep going until the whole range is sent
+            while (position < end) {
+                long transferred = fileChannel.transferTo(position, end - position, socketChannel);
+                if (transferred <= 0) {
+                    // channel accepted nothing, finish with the stream copy
+                    break;
+                }
+                position += transferred;
+            }
+            if (position >= end) {
+                return;
+            }
+        }
+        fileChannel.position(position);
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
         int bytesRead;
         // transfer data
-        while ((bytesRead = fileInputStream.read(buffer)) != -1) {
+        while (position < end
+                && (bytesRead = fileInputStream.read(buffer, 0, (int) Math.min(buffer.length, end - position))) != -1) {
             out.write(buffer, 0, bytesRead);
+            position += bytesRead;
         }
+        out.flush();
     }
 
     /**
      * <p> This method is called by when this client requests a file from a peer. It creates
      * relevant streams correctly names a new file and utilizes progress bar to display the
-     * progress of the file transfer.</p>
+     * progress of the file transfer. The download runs on the shared TransferExecutor and can be cancelled
+     * through the returned handle.</p>
+     * <p> Bytes are first written to a <i>.part</i> file that is renamed when the download completes. If the
+     * download breaks the part file is kept and the next request of the same file continues from its end with a
+     * ranged request. When content hashes of the file are known, several peers share the file, or
+     * <i>p2p.download.connections</i> is larger than one, pieces of the file are downloaded over separate
+     * connections by SwarmDownload instead, which verifies every piece against its hash. If no peer can send
+     * pieces because all of them run an older client, the whole file is requested from one of them. Connections
+     * to peers are taken from the PeerConnectionPool and kept open for the next download from the same peer.</p>
      *
      * <p> Called by: {@link serviceClient.ClientGUI}</p>
      *
      * <p> Calls: {@link FileTransferHandler#setFileCopyNumber}, {@link FileTransferHandler#downloadFile},
-     * {@link FileTransferHandler#displayError}</p>
+     * {@link FileTransferHandler#displayError}, {@link serviceClient.BandwidthLimiter#forDownload},
+     * {@link serviceClient.TransferExecutor#execute}, {@link serviceClient.SwarmDownload#download},
+     * {@link serviceClient.PeerConnectionPool#acquire}, {@link serviceClient.PeerConnectionPool#release}</p>
      *
      * @param progressBar Progress bar object to be updated during transfer.
-     * @param ownerData String array contains IP, port and path of the peer for request.
+     * @param ownerData String array contains IP, port and full file path of the peers for request. When several
+     *                  peers share the file, pieces of it are downloaded from all of them.
      * @param fileName Name of file to be requested.
      * @param fileType Type of file to be requested.
      * @param fileSize Size of file to be requested.
+     * @param hashes Content hashes of the file used to verify its pieces, <i>null</i> if they are not known.
+     * @return Transfer handle of the download.
      */
-    public void requestFile(final ProgressBar progressBar, final String[] ownerData, final String fileName, final String fileType, final long fileSize) {
-        new Thread(new Runnable() {
+    public TransferExecutor.Transfer requestFile(final ProgressBar progressBar, final String[] ownerData, final String fileName, final String fileType, final long fileSize,
+                                                 final FileHasher.Hashes hashes) {
+        final boolean parallel = hashes != null || ownerData.length / 3 > 1
+                || Integer.getInteger("p2p.download.connections", 1) > 1;
+        // without hashes only a part file written from the start can be continued
+        final boolean resumable = hashes != null || !parallel;
+        return TransferExecutor.getShared().execute(TransferExecutor.Kind.DOWNLOAD, new TransferExecutor.TransferTask() {
             @Override
-            public void run() {
+            public void run(TransferExecutor.Transfer transfer) {
                 // initialize variables
-                File newFile=null;
-                FileOutputStream fileOutputStream = null;
-                DataInputStream dataInputStream = null;
-                Socket requestSocket = null;
+                File partFile = new File(fileName + "." + fileType + ".part");
+                PeerConnectionPool.Connection connection = null;
                 try {
+                    showDownloading(progressBar, fileName, fileType);
+                    String[] owner = ownerData;
+                    boolean fallback = false;
+                    // download verified pieces or ranges over several connections
+                    if (parallel) {
+                        SwarmDownload swarmDownload = new SwarmDownload(ownerData, fileSize, partFile, progressBar,
+                                hashes);
+                        transfer.attach(swarmDownload);
+                        try {
+                            swarmDownload.download();
+                            progressBar.getProgressBar().setValue(100);
+                            completeDownload(partFile, fileName, fileType);
+                            return;
+                        } catch (PeerProtocolException e) {
+                            // no host can send pieces, request the whole file from a host running an older client
+                            transfer.attach(null);
+                            owner = e.getHost();
+                            fallback = true;
+                        }
+                    }
                     // parse file owner data
-                    String ownerIP = ownerData[0];
-                    int ownerPort = Integer.parseInt(ownerData[1]);
-                    String ownerPath = ownerData[2];
-                    // create request socket and adjust timeout to 10 seconds
-                    requestSocket = new Socket(ownerIP, ownerPort);
-                    requestSocket.setSoTimeout(10000);
-                    OutputStream out = requestSocket.getOutputStream();
-                    // write and send simple GET request
-                    String request = ownerPath + fileName + "." + fileType + "\n";
-                    request = "GET " + request.replaceAll(" ", "%20");
-                    out.write(request.getBytes());
+                    String ownerIP = owner[0];
+                    int ownerPort = Integer.parseInt(owner[1]);
+                    String ownerPath = owner[2];
+                    // continue from the end of an earlier broken download, pieces of a swarm are not in order
+                    long offset = !fallback && partFile.isFile() && partFile.length() < fileSize
+                            ? partFile.length() : 0;
+                    // reuse an idle connection to the peer or open a new one with 10 second timeout
+                    connection = PeerConnectionPool.getShared().acquire(ownerIP, ownerPort);
+                    // closing the connection stops the download if it is cancelled
+                    transfer.attach(connection);
+                    OutputStream out = connection.getOutputStream();
+                    // send GET request for the missing part of the file
+                    out.write(PeerProtocol.request(ownerPath, offset));
                     out.flush();
-                    // create file with correct name
-                    newFile = new File(fileName + "." + fileType);
-                    newFile = setFileCopyNumber(newFile, fileName, fileType);
-                    // create steams and adjust progressBar
-                    fileOutputStream = new FileOutputStream(newFile);
-                    dataInputStream = new DataInputStream(requestSocket.getInputStream());
-                    progressBar.getProgressBar().setStringPainted(true);
-                    // make sure progress bar is displayed correctly
-                    if(fileName.length()>30)
-                        progressBar.getProgressBar().setString("Downloading: " + fileName.substring(0,30) + "..." + "." + fileType);
-                    else
-                        progressBar.getProgressBar().setString("Downloading: " + fileName + "." + fileType);
-                    downloadFile(fileOutputStream, dataInputStream, progressBar, newFile, fileSize);
-                }catch (ConnectException e) {
-                    displayError("ERROR: Could not connect to peer", progressBar, fileOutputStream, newFile);
-                }catch (SocketTimeoutException e){
-                    displayError("ERROR: Peer timed out", progressBar, fileOutputStream, newFile);
-                }catch (SocketException e) {
-                    displayError("ERROR: Socket error", progressBar, fileOutputStream, newFile);
+                    if (downloadFile(partFile, connection, progressBar, fileSize, offset, BandwidthLimiter.forDownload())) {
+                        completeDownload(partFile, fileName, fileType);
+                    }
                 }catch (IOException e) {
-                    displayError("ERROR: IO error", progressBar, fileOutputStream, newFile);
+                    // the part file is kept so that the download can be continued later
+                    String hint = resumable ? ", request again to resume" : "";
+                    File brokenFile = resumable ? null : partFile;
+                    if (transfer.isCancelled()) {
+                        displayError("Download cancelled", progressBar, null, partFile);
+                    } else if (e instanceof ConnectException) {
+                        displayError("ERROR: Could not connect to peer" + hint, progressBar, null, brokenFile);
+                    } else if (e instanceof SocketTimeoutException) {
+                        displayError("ERROR: Peer timed out" + hint, progressBar, null, brokenFile);
+                    } else if (e instanceof SocketException) {
+                        displayError("ERROR: Socket error" + hint, progressBar, null, brokenFile);
+                    } else if (parallel) {
+                        displayError("ERROR: No peer could send the file" + hint, progressBar, null, brokenFile);
+                    } else {
+                        displayError("ERROR: IO error" + hint, progressBar, null, brokenFile);
+                    }
                 }finally {
-                    // close streams and socket
-                    try {
-                        if (fileOutputStream != null)
-                            fileOutputStream.close();
-                        if (dataInputStream != null)
-                            dataInputStream.close();
-                        if (requestSocket != null)
-                            requestSocket.close();
-                    } catch (IOException ex) {
-                        System.out.println("ERROR: When closing file transfer streams.");
+                    // keep the connection for the next request if the response was read completely
+                    if (connection != null) {
+                        transfer.attach(null);
+                        PeerConnectionPool.getShared().release(connection);
                     }
                 }
 
             }
-        }).start();
+
+            @Override
+            public void failed(TransferExecutor.Transfer transfer, RuntimeException e) {
+                // the part file is kept only if the download can be continued from it
+                File partFile = new File(fileName + "." + fileType + ".part");
+                displayError("ERROR: Download failed", progressBar, null, resumable ? null : partFile);
+                clientOutputManager.printToDownloadTextArea("ERROR: While downloading " + fileName + "." + fileType
+                        + "\n" + e);
+            }
+        });
+    }
+
+    /**
+     * <p> This method is called to show the name of the downloaded file on the progress bar.</p>
+     *
+     * <p> Called by: {@link serviceClient.FileTransferHandler#requestFile}</p>
+     *
+     * @param progressBar Progress bar to be updated.
+     * @param fileName Name of the downloaded file.
+     * @param fileType Type of the downloaded file.
+     */
+    private void showDownloading(ProgressBar progressBar, String fileName, String fileType){
+        progressBar.getProgressBar().setStringPainted(true);
+        // make sure progress bar is displayed correctly
+        if(fileName.length()>30)
+            progressBar.getProgressBar().setString("Downloading: " + fileName.substring(0,30) + "..." + "." + fileType);
+        else
+            progressBar.getProgressBar().setString("Downloading: " + fileName + "." + fileType);
+    }
+
+    /**
+     * <p> This method is called when all bytes of the file were downloaded. It renames the part file to the
+     * correctly numbered file name.</p>
+     *
+     * <p> Called by: {@link serviceClient.FileTransferHandler#requestFile}</p>
+     *
+     * <p> Calls: {@link serviceClient.FileTransferHandler#setFileCopyNumber}</p>
+     *
+     * @param partFile File holding the downloaded bytes.
+     * @param fileName Name of the downloaded file.
+     * @param fileType Type of the downloaded file.
+     * @throws IOException If the part file could not be renamed.
+     */
+    private void completeDownload(File partFile, String fileName, String fileType) throws IOException {
+        // create file with correct name
+        File newFile = setFileCopyNumber(new File(fileName + "." + fileType), fileName, fileType);
+        if (!partFile.renameTo(newFile)) {
+            throw new IOException("Could not rename " + partFile.getName());
+        }
+        clientOutputManager.printToDownloadTextArea("File download complete.");
     }
 
     /**
@@ -210,51 +354,102 @@ public class FileTransferHandler{
     }
 
     /**
-     * <p> This method facilitates the actual download the file from the peer. It reads bytes from
-     * input stream and writes them to file. It updates the progress bar during download.</p>
+     * <p> This method facilitates the actual download the file from the peer. It reads the response header and
+     * writes the received bytes to the part file, appending to it when the peer sent the requested range and
+     * overwriting it when the peer sent the whole file. Peers running older clients send the file without a
+     * header. It updates the progress bar during download. If a download or global speed limit is set, received
+     * bytes are passed through the corresponding BandwidthLimiter. When the whole response was read the
+     * connection is marked reusable.</p>
      *
      * <p> Called by: {@link serviceClient.FileTransferHandler#requestFile}</p>
      *
-     * <p> Calls: {@link serviceClient.FileTransferHandler#displayError}</p>
+     * <p> Calls: {@link serviceClient.FileTransferHandler#displayError}, {@link serviceClient.BandwidthLimiter#acquire},
+     * {@link serviceClient.PeerProtocol#readHeader}</p>
      *
-     * @param fileOutputStream FileOutputStream of file to be created.
-     * @param dataInputStream DataInputStream of the peer socket.
+     * @param partFile File the downloaded bytes are written to.
+     * @param connection connection to the peer the file was requested on.
      * @param progressBar Progress bar to update during download.
-     * @param newFile File to be created.
      * @param fileSize Size of the file to download.
+     * @param offset number of bytes already in the part file.
+     * @param downloadLimiter limiter of this download or <i>null</i> if its speed is not limited.
+     * @return true if the whole file was downloaded.
      * @throws IOException If I/O error happens while transferring data.
      */
-    private void downloadFile(FileOutputStream fileOutputStream, DataInputStream dataInputStream, ProgressBar progressBar, File newFile, long fileSize) throws IOException {
-        byte[] buffer = new byte[1024];
-        int bytesRead;
-        // read first line of response
-        if((bytesRead = dataInputStream.read(buffer)) != -1) {
-            String s = new String(buffer, 0, bytesRead);
-            // check if file exists on peer machine
-            if (s.contains("HTTP/1.1 404 Not Found")) {
-                displayError("ERROR: File not found on peer machine.", progressBar, fileOutputStream, newFile);
-                return;
-            } else {
-                fileOutputStream.write(buffer, 0, bytesRead);
-                progressBar.getProgressBar().setValue((int) (newFile.length() * 100 / fileSize));
+    private boolean downloadFile(File partFile, PeerConnectionPool.Connection connection, ProgressBar progressBar,
+                                 long fileSize, long offset, BandwidthLimiter downloadLimiter) throws IOException {
+        BandwidthLimiter globalLimiter = BandwidthLimiter.getGlobalLimiter();
+        InputStream in = connection.getInputStream();
+        long start = 0;
+        long length = -1;
+        // read response header
+        if (PeerProtocol.hasHeader(in)) {
+            String header = PeerProtocol.readHeader(in);
+            int status = PeerProtocol.statusCode(header);
+            String contentLength = PeerProtocol.headerValue(header, "Content-Length");
+            // error responses have no body
+            connection.setReusable("0".equals(contentLength));
+            if (status == 404) {
+                displayError("ERROR: File not found on peer machine.", progressBar, null, partFile);
+                return false;
+            } else if (status == 503) {
+                displayError("ERROR: Peer is busy, try again later.", progressBar, null, null);
+                return false;
+            } else if (status == 206) {
+                String contentRange = PeerProtocol.headerValue(header, "Content-Range");
+                if (contentRange == null || !contentRange.startsWith("bytes " + offset + "-")
+                        || !contentRange.endsWith("/" + fileSize)) {
+                    displayError("ERROR: File changed on peer machine.", progressBar, null, partFile);
+                    return false;
+                }
+                start = offset;
+            } else if (status == 416) {
+                displayError("ERROR: File changed on peer machine.", progressBar, null, partFile);
+                return false;
+            } else if (status != 200) {
+                displayError("ERROR: Unexpected response from peer.", progressBar, null, null);
+                return false;
+            }
+            try {
+                length = contentLength == null ? -1 : Long.parseLong(contentLength);
+            } catch (NumberFormatException e) {
+                length = -1;
             }
         }
-        // transfer data
-        while ((bytesRead = dataInputStream.read(buffer)) != -1) {
-            fileOutputStream.write(buffer, 0, bytesRead);
-            // update progress bar
-            progressBar.getProgressBar().setValue((int) (newFile.length() * 100 / fileSize));
-            // sleep here to mimic large file download
-            try{
-                Thread.sleep(10);
-            }catch (InterruptedException e){
-                System.out.println("ERROR: Download thread interrupted while sleeping.");
-                displayError("ERROR: Occurred during file transfer.", progressBar, fileOutputStream, newFile);
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        int bytesRead = 0;
+        long received = 0;
+        long bytesWritten = start;
+        FileOutputStream fileOutputStream = new FileOutputStream(partFile, start > 0);
+        try {
+            // transfer data
+            while ((length < 0 || received < length)
+                    && (bytesRead = in.read(buffer, 0, (int) (length < 0 ? buffer.length
+                    : Math.min(buffer.length, length - received)))) != -1) {
+                // wait until the speed limits allow these bytes
+                try{
+                    if(downloadLimiter != null){
+                        downloadLimiter.acquire(bytesRead);
+                    }
+                    if(globalLimiter != null){
+                        globalLimiter.acquire(bytesRead);
+                    }
+                }catch (InterruptedException e){
+                    throw new IOException("Download thread interrupted while waiting for bandwidth.");
+                }
+                fileOutputStream.write(buffer, 0, bytesRead);
+                received += bytesRead;
+                bytesWritten += bytesRead;
+                // update progress bar
+                progressBar.getProgressBar().setValue((int) (bytesWritten * 100 / Math.max(1, fileSize)));
             }
+        } finally {
+            fileOutputStream.close();
         }
-        if(bytesRead == -1){
-            clientOutputManager.printToDownloadTextArea("File download complete.");
+        if (length >= 0 && received < length) {
+            throw new IOException("Peer closed connection before the whole file was sent.");
         }
+        connection.setReusable(length >= 0);
+        return true;
     }
 
     /**
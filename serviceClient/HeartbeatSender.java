@@ -0,0 +1,191 @@
+/*
+ * 2023/10/13
+ * Anton Mishchenko
+ */
+
+package serviceClient;
+
+import server.P2PServiceImplSEI;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.ws.BindingProvider;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p> HeartbeatSender class sends heartbeats of a session to the UDP heartbeat channel of the server, which costs
+ * the server far less than a sendHeartBeat SOAP request. It is opened only if the server reports a channel through
+ * getHeartbeatChannel, and unless <i>p2p.heartbeat.soapOnly</i> is set.</p>
+ * <p> Every heartbeat carries a new sequence number and is authenticated with an HMAC-SHA256 keyed with the session
+ * token, the token itself is not sent. The server answers accepted heartbeats with an ack, which is checked the same
+ * way. A heartbeat is sent twice at most, waiting <i>p2p.heartbeat.ackTimeout</i> milliseconds (2000 by default)
+ * for the ack each time. When no valid ack arrives the caller falls back to sendHeartBeat, which also reports an
+ * expired session. The datagram format has to match the HeartbeatChannel class of the server.</p>
+ */
+public class HeartbeatSender {
+    private static final int MAGIC = 0x50325048;
+    private static final byte VERSION = 1;
+    private static final byte TYPE_HEARTBEAT = 1;
+    private static final byte TYPE_ACK = 2;
+    private static final int MAC_LENGTH = 16;
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final int ACK_LENGTH = 4 + 1 + 1 + 8 + MAC_LENGTH;
+    private static final int ATTEMPTS = 2;
+    private static final int ACK_TIMEOUT = Math.max(100, Integer.getInteger("p2p.heartbeat.ackTimeout", 2000));
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private final DatagramSocket socket;
+    private final Mac mac;
+    private final byte[] name;
+    private long sequence = System.currentTimeMillis();
+
+    /**
+     * <p> Constructor for HeartbeatSender class. Opens a socket connected to the heartbeat channel.</p>
+     *
+     * @param address address of the heartbeat channel.
+     * @param token session token, used as the HMAC key.
+     * @param name username in UTF-8.
+     * @throws IOException if the socket could not be opened.
+     * @throws GeneralSecurityException if HMAC-SHA256 is not available.
+     */
+    private HeartbeatSender(InetSocketAddress address, String token, byte[] name)
+            throws IOException, GeneralSecurityException {
+        this.name = name;
+        this.mac = Mac.getInstance(MAC_ALGORITHM);
+        this.mac.init(new SecretKeySpec(token.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM));
+        this.socket = new DatagramSocket();
+        this.socket.connect(address);
+    }
+
+    /**
+     * <p> Asks the server for its heartbeat channel and opens a sender for it. The channel is on the host of the
+     * SOAP endpoint.</p>
+     *
+     * <p> Called by: {@link serviceClient.ClientGUI#heartBeat}</p>
+     *
+     * <p> Calls: {@link server.P2PServiceImplSEI#getHeartbeatChannel}</p>
+     *
+     * @param service SOAP service of the server.
+     * @param token session token.
+     * @param userName name of the logged in user.
+     * @return HeartbeatSender open sender or <i>null</i> if heartbeats have to be sent with SOAP.
+     */
+    public static HeartbeatSender open(P2PServiceImplSEI service, String token, String userName) {
+        if (Boolean.getBoolean("p2p.heartbeat.soapOnly") || token == null || token.isEmpty()) {
+            return null;
+        }
+        byte[] name = userName.getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_NAME_LENGTH) {
+            return null;
+        }
+        try {
+            List<String> response = service.getHeartbeatChannel(token, userName).getItem();
+            if (response.size() < 2 || !response.get(0).equals("OK")) {
+                return null;
+            }
+            int port = Integer.parseInt(response.get(1));
+            Object endpoint = ((BindingProvider) service).getRequestContext()
+                    .get(BindingProvider.ENDPOINT_ADDRESS_PROPERTY);
+            String host = new URL(String.valueOf(endpoint)).getHost();
+            return new HeartbeatSender(new InetSocketAddress(host, port), token, name);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            // includes the WebServiceException of servers without the operation, heartbeats are sent with SOAP then
+            return null;
+        }
+    }
+
+    /**
+     * <p> Sends a heartbeat and waits for its ack.</p>
+     *
+     * <p> Called by: {@link serviceClient.ClientGUI#heartBeat}</p>
+     *
+     * @return boolean true if the server acknowledged the heartbeat, false if sendHeartBeat has to be used.
+     */
+    public boolean send() {
+        long firstSequence = sequence + 1;
+        byte[] ack = new byte[ACK_LENGTH + 1];
+        DatagramPacket response = new DatagramPacket(ack, ack.length);
+        for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+            // every attempt has a new number, the server rejects a repeated one as a replay
+            sequence++;
+            ByteBuffer heartbeat = ByteBuffer.allocate(4 + 1 + 1 + 8 + 2 + name.length + MAC_LENGTH);
+            heartbeat.putInt(MAGIC).put(VERSION).put(TYPE_HEARTBEAT).putLong(sequence)
+                    .putShort((short) name.length).put(name);
+            heartbeat.put(sign(heartbeat.array(), heartbeat.position()));
+            try {
+                socket.send(new DatagramPacket(heartbeat.array(), heartbeat.capacity()));
+                long deadline = System.currentTimeMillis() + ACK_TIMEOUT;
+                long remaining;
+                while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+                    socket.setSoTimeout((int) remaining);
+                    response.setLength(ack.length);
+                    socket.receive(response);
+                    // a late ack of an earlier attempt also means the session was refreshed
+                    if (isAck(ack, response.getLength(), firstSequence)) {
+                        return true;
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                // send again
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * <p> Closes the socket.</p>
+     *
+     * <p> Called by: {@link serviceClient.ClientGUI#heartBeat}</p>
+     */
+    public void close() {
+        socket.close();
+    }
+
+    /**
+     * <p> Checks that a datagram is a valid ack of an attempt of the current heartbeat.</p>
+     *
+     * @param data received datagram.
+     * @param length length of the datagram.
+     * @param firstSequence sequence number of the first attempt of the current heartbeat.
+     * @return boolean true if the datagram acknowledges one of the attempts.
+     */
+    private boolean isAck(byte[] data, int length, long firstSequence) {
+        if (length != ACK_LENGTH) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        if (buffer.getInt() != MAGIC || buffer.get() != VERSION || buffer.get() != TYPE_ACK) {
+            return false;
+        }
+        long acked = buffer.getLong();
+        if (acked < firstSequence || acked > sequence) {
+            return false;
+        }
+        int signedLength = length - MAC_LENGTH;
+        return MessageDigest.isEqual(sign(data, signedLength), Arrays.copyOfRange(data, signedLength, length));
+    }
+
+    /**
+     * <p> Computes the truncated HMAC-SHA256 of the start of a datagram.</p>
+     *
+     * @param data datagram.
+     * @param length number of bytes to sign.
+     * @return byte[] first MAC_LENGTH bytes of the HMAC.
+     */
+    private byte[] sign(byte[] data, int length) {
+        mac.update(data, 0, length);
+        return Arrays.copyOf(mac.doFinal(), MAC_LENGTH);
+    }
+}
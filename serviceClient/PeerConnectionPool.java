@@ -0,0 +1,229 @@
+/*
+ * 2023/10/13
+ * Anton Mishchenko
+ */
+
+package serviceClient;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * <p> PeerConnectionPool class keeps connections to peers open between downloads, keyed by the IP and port of
+ * the peer. A download takes an idle connection if there is one and returns it when the response was read
+ * completely, so downloading many files or pieces from the same peer does not open a new connection each time.</p>
+ * <p> Idle connections are closed before the peer's idle timeout would close them, and at most
+ * <i>p2p.peer.maxIdle</i> idle connections are kept per peer.</p>
+ */
+public class PeerConnectionPool {
+    private static final PeerConnectionPool SHARED = new PeerConnectionPool();
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 10000;
+    private final Map<String, ArrayDeque<Connection>> idleConnections = new HashMap<>();
+    private final long idleTimeout = PeerProtocol.IDLE_TIMEOUT * 2L / 3;
+    private final int maxIdlePerPeer = Math.max(0, Integer.getInteger("p2p.peer.maxIdle", 4));
+
+    /**
+     * <p> Returns pool shared by the whole client.</p>
+     *
+     * <p> Called by: {@link serviceClient.FileTransferHandler#requestFile}, {@link serviceClient.SwarmDownload}</p>
+     *
+     * @return PeerConnectionPool shared pool.
+     */
+    public static PeerConnectionPool getShared() {
+        return SHARED;
+    }
+
+    /**
+     * <p> Returns an idle connection to the peer or opens a new one. Idle connections the peer already closed are
+     * discarded.</p>
+     *
+     * <p> Called by: {@link serviceClient.FileTransferHandler#requestFile}, {@link serviceClient.SwarmDownload}</p>
+     *
+     * @param ip IP address of the peer.
+     * @param port port of the peer.
+     * @return Connection open connection.
+     * @throws IOException if a new connection could not be opened.
+     */
+    public Connection acquire(String ip, int port) throws IOException {
+        String key = ip + ":" + port;
+        while (true) {
+            Connection idle;
+            synchronized (this) {
+                closeExpired(System.currentTimeMillis());
+                ArrayDeque<Connection> connections = idleConnections.get(key);
+                idle = connections == null ? null : connections.pollLast();
+            }
+            if (idle == null) {
+                break;
+            }
+            if (idle.isOpen()) {
+                return idle;
+            }
+            idle.close();
+        }
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(ip, port), CONNECT_TIMEOUT);
+            socket.setSoTimeout(READ_TIMEOUT);
+            return new Connection(key, socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * <p> Returns a connection the caller no longer uses. It is kept for the next request if it was marked
+     * reusable after its last response was read completely, otherwise it is closed.</p>
+     *
+     * <p> Called by: {@link serviceClient.FileTransferHandler#requestFile}, {@link serviceClient.SwarmDownload}</p>
+     *
+     * @param connection connection to return.
+     */
+    public void release(Connection connection) {
+        synchronized (this) {
+            closeExpired(System.currentTimeMillis());
+            ArrayDeque<Connection> connections = idleConnections.get(connection.key);
+            if (connections == null) {
+                connections = new ArrayDeque<>();
+                idleConnections.put(connection.key, connections);
+            }
+            if (connection.reusable && connections.size() < maxIdlePerPeer && !connection.socket.isClosed()) {
+                connection.reusable = false;
+                connection.lastUsed = System.currentTimeMillis();
+                connections.addLast(connection);
+                return;
+            }
+        }
+        connection.close();
+    }
+
+    /**
+     * <p> Closes all idle connections.</p>
+     *
+     * <p> Called by: {@link serviceClient.ClientGUI}</p>
+     */
+    public void closeAll() {
+        synchronized (this) {
+            closeExpired(Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * <p> Closes idle connections that were not used within the idle timeout. Caller holds the lock.</p>
+     *
+     * @param now current time in milliseconds.
+     */
+    private void closeExpired(long now) {
+        Iterator<ArrayDeque<Connection>> peers = idleConnections.values().iterator();
+        while (peers.hasNext()) {
+            ArrayDeque<Connection> connections = peers.next();
+            // oldest connections are at the front
+            while (!connections.isEmpty() && now - connections.peekFirst().lastUsed > idleTimeout) {
+                connections.pollFirst().close();
+            }
+            if (connections.isEmpty()) {
+                peers.remove();
+            }
+        }
+    }
+
+    /**
+     * <p> Open connection to a peer with buffered input, so response headers can be read without reading into the
+     * file bytes that follow them.</p>
+     */
+    public static class Connection implements Closeable {
+        private final String key;
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private long lastUsed;
+        private boolean reusable = false;
+
+        private Connection(String key, Socket socket) throws IOException {
+            this.key = key;
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            this.out = socket.getOutputStream();
+        }
+
+        /**
+         * <p> Returns buffered stream of the connection, supports mark and reset.</p>
+         *
+         * @return InputStream input stream.
+         */
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        /**
+         * <p> Returns output stream of the connection.</p>
+         *
+         * @return OutputStream output stream.
+         */
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        /**
+         * <p> Marks whether the connection can carry another request, which is the case when every response sent
+         * on it was read completely.</p>
+         *
+         * @param reusable true if the connection can be reused.
+         */
+        public void setReusable(boolean reusable) {
+            this.reusable = reusable;
+        }
+
+        /**
+         * <p> Checks that the peer did not close the idle connection. An idle connection has nothing to read, so
+         * a short read either times out, meaning the connection is open, or finds the end of the stream.</p>
+         *
+         * @return boolean true if the connection can be used.
+         */
+        private boolean isOpen() {
+            if (socket.isClosed()) {
+                return false;
+            }
+            try {
+                socket.setSoTimeout(1);
+                in.read();
+                // end of stream, or unexpected bytes on an idle connection, either way it can not be used
+                return false;
+            } catch (SocketTimeoutException e) {
+                return true;
+            } catch (IOException e) {
+                return false;
+            } finally {
+                try {
+                    socket.setSoTimeout(READ_TIMEOUT);
+                } catch (IOException e) {
+                    // connection is discarded on the next error
+                }
+            }
+        }
+
+        /**
+         * <p> Closes the connection.</p>
+         */
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // connection is discarded either way
+            }
+        }
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ * 2023/10/13
+ * Anton Mishchenko
+ */
+
+package serviceClient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * <p> PeerProtocol class holds the request and response formats used between peers. The original request is a
+ * single line <i>GET path</i> answered with the raw file. A versioned request <i>GET path HTTP/1.1</i> is followed
+ * by header lines and an empty line, it can ask for a part of the file with a <i>Range: bytes=start-end</i>
+ * header and is answered with a status line and headers before the file bytes. Both formats are served so that
+ * peers running older clients keep working.</p>
+ * <p> A connection carrying versioned requests stays open after a response unless the request has a
+ * <i>Connection: close</i> header, so one connection can carry many requests and the next request may be sent
+ * before the previous response arrived. Connections without a request for <i>p2p.peer.idleTimeout</i> milliseconds
+ * are closed by the serving peer.</p>
+ */
+public class PeerProtocol {
+    public static final String VERSION = "HTTP/1.1";
+    public static final int MAX_HEADER_LENGTH = 8 * 1024;
+    public static final int IDLE_TIMEOUT = Math.max(1000, Integer.getInteger("p2p.peer.idleTimeout", 15000));
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    /**
+     * <p> Utility class, not instantiated.</p>
+     */
+    private PeerProtocol() {
+    }
+
+    /**
+     * <p> Parsed request of a peer.</p>
+     */
+    public static class Request {
+        private final String path;
+        private final boolean versioned;
+        private final boolean keepAlive;
+        private final long rangeStart;
+        private final long rangeEnd;
+
+        private Request(String path, boolean versioned, boolean keepAlive, long rangeStart, long rangeEnd) {
+            this.path = path;
+            this.versioned = versioned;
+            this.keepAlive = keepAlive;
+            this.rangeStart = rangeStart;
+            this.rangeEnd = rangeEnd;
+        }
+
+        /**
+         * <p> Returns path of the requested file.</p>
+         *
+         * @return String path of the file on this machine.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * <p> Returns true if the request uses the versioned format and expects a status line.</p>
+         *
+         * @return boolean true if request is versioned.
+         */
+        public boolean isVersioned() {
+            return versioned;
+        }
+
+        /**
+         * <p> Returns true if the connection stays open for further requests after the response.</p>
+         *
+         * @return boolean true if connection is kept alive.
+         */
+        public boolean isKeepAlive() {
+            return keepAlive;
+        }
+
+        /**
+         * <p> Returns true if the request asks for a part of the file.</p>
+         *
+         * @return boolean true if request has a range.
+         */
+        public boolean hasRange() {
+            return rangeStart >= 0;
+        }
+
+        /**
+         * <p> Returns first byte of the requested range.</p>
+         *
+         * @return long first byte, -1 if there is no range.
+         */
+        public long getRangeStart() {
+            return rangeStart;
+        }
+
+        /**
+         * <p> Returns last byte of the requested range, inclusive.</p>
+         *
+         * @return long last byte, -1 if the range is open ended or there is no range.
+         */
+        public long getRangeEnd() {
+            return rangeEnd;
+        }
+    }
+
+    /**
+     * <p> Response planned for a request: header to send first and the part of the file to send after it.</p>
+     */
+    public static class Response {
+        private final byte[] header;
+        private final long start;
+        private final long length;
+
+        private Response(byte[] header, long start, long length) {
+            this.header = header;
+            this.start = start;
+            this.length = length;
+        }
+
+        /**
+         * <p> Returns bytes sent before the file.</p>
+         *
+         * @return byte[] header, empty for original format requests of existing files.
+         */
+        public byte[] getHeader() {
+            return header;
+        }
+
+        /**
+         * <p> Returns the first byte of the file to send.</p>
+         *
+         * @return long position in the file.
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * <p> Returns the number of file bytes to send, 0 if only the header is sent.</p>
+         *
+         * @return long number of bytes.
+         */
+        public long getLength() {
+            return length;
+        }
+    }
+
+    /**
+     * <p> Plans the response to a request. Requests in the original format get the raw file, versioned requests
+     * get a 200 response with the whole file, a 206 response with the requested range or a 416 response if the
+     * range starts after the end of the file.</p>
+     *
+     * <p> Called by: {@link serviceClient.PeerUploadServer}, {@link serviceClient.FileTransferHandler#sendFile}</p>
+     *
+     * @param request parsed request.
+     * @param file requested file.
+     * @return Response planned response.
+     */
+    public static Response respond(Request request, File file) {
+        if (!file.isFile()) {
+            return new Response(notFound(request.isVersioned()), 0, 0);
+        }
+        long size = file.length();
+        if (!request.isVersioned()) {
+            return new Response(new byte[0], 0, size);
+        }
+        if (!request.hasRange()) {
+            return new Response(okHeader(size), 0, size);
+        }
+        long end = request.getRangeEnd() < 0 ? size - 1 : Math.min(request.getRangeEnd(), size - 1);
+        if (request.getRangeStart() >= size || end < request.getRangeStart()) {
+            return new Response(rangeNotSatisfiable(size), 0, 0);
+        }
+        return new Response(partialHeader(request.getRangeStart(), end, size), request.getRangeStart(),
+                end - request.getRangeStart() + 1);
+    }
+
+    /**
+     * <p> Returns the length of the request at the start of the buffer if it was received completely. A request in
+     * the original format ends with its first line, a versioned request ends with an empty line.</p>
+     *
+     * <p> Called by: {@link serviceClient.PeerUploadServer}</p>
+     *
+     * @param buffer received bytes.
+     * @param length number of received bytes.
+     * @return int length of the request, -1 if more bytes are needed.
+     */
+    public static int requestLength(byte[] buffer, int length) {
+        int lineStart = 0;
+        boolean firstLine = true;
+        boolean versioned = false;
+        for (int i = 0; i < length; i++) {
+            if (buffer[i] != '\n') {
+                continue;
+            }
+            int lineEnd = (i > lineStart && buffer[i - 1] == '\r') ? i - 1 : i;
+            if (firstLine) {
+                String line = new String(buffer, lineStart, lineEnd - lineStart, CHARSET);
+                versioned = line.trim().endsWith(" " + VERSION);
+                firstLine = false;
+                if (!versioned) {
+                    return i + 1;
+                }
+            } else if (lineEnd == lineStart) {
+                return i + 1;
+            }
+            lineStart = i + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * <p> Parses a request of a peer.</p>
+     *
+     * <p> Called by: {@link serviceClient.PeerUploadServer}, {@link serviceClient.FileTransferHandler#sendFile}</p>
+     *
+     * @param request complete request text.
+     * @return Request parsed request or <i>null</i> if request is malformed.
+     */
+    public static Request parseRequest(String request) {
+        String[] lines = request.split("\r?\n");
+        String[] parts = lines[0].trim().split(" ");
+        if (parts.length < 2 || !parts[0].equals("GET")) {
+            return null;
+        }
+        String path = parts[1].replace("%20", " ");
+        boolean versioned = parts.length >= 3 && parts[parts.length - 1].equals(VERSION);
+        boolean keepAlive = versioned;
+        long rangeStart = -1;
+        long rangeEnd = -1;
+        for (int i = 1; i < lines.length && versioned; i++) {
+            String line = lines[i];
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Connection")) {
+                keepAlive = !value.equalsIgnoreCase("close");
+                continue;
+            } else if (!name.equalsIgnoreCase("Range")) {
+                continue;
+            }
+            if (!value.startsWith("bytes=") || value.indexOf(',') >= 0) {
+                continue;
+            }
+            String[] range = value.substring("bytes=".length()).split("-", -1);
+            try {
+                rangeStart = Long.parseLong(range[0].trim());
+                rangeEnd = range.length > 1 && !range[1].trim().isEmpty() ? Long.parseLong(range[1].trim()) : -1;
+            } catch (NumberFormatException e) {
+                rangeStart = -1;
+                rangeEnd = -1;
+            }
+        }
+        return new Request(path, versioned, keepAlive, rangeStart, rangeEnd);
+    }
+
+    /**
+     * <p> Builds a versioned request for the file starting at the given byte. The Range header is only sent when
+     * the download does not start at the beginning of the file.</p>
+     *
+     * <p> Called by: {@link serviceClient.FileTransferHandler#requestFile}</p>
+     *
+     * @param path path of the file on the peer machine.
+     * @param start first byte to download.
+     * @return byte[] request to send.
+     */
+    public static byte[] request(String path, long start) {
+        return ("GET " + path.replaceAll(" ", "%20") + " " + VERSION + "\r\n"
+                + (start > 0 ? "Range: bytes=" + start + "-\r\n" : "") + "\r\n").getBytes(CHARSET);
+    }
+
+    /**
+     * <p> Builds a versioned request for a range of the file.</p>
+     *
+     * <p> Called by: {@link serviceClient.SwarmDownload}</p>
+     *
+     * @param path path of the file on the peer machine.
+     * @param start first byte of the range.
+     * @param end last byte of the range, inclusive.
+     * @return byte[] request to send.
+     */
+    public static byte[] rangeRequest(String path, long start, long end) {
+        return ("GET " + path.replaceAll(" ", "%20") + " " + VERSION + "\r\n"
+                + "Range: bytes=" + start + "-" + end + "\r\n\r\n").getBytes(CHARSET);
+    }
+
+    /**
+     * <p> Builds the response header sent before the whole file.</p>
+     *
+     * @param size size of the file.
+     * @return byte[] response header.
+     */
+    public static byte[] okHeader(long size) {
+        return (VERSION + " 200 OK\r\nContent-Length: " + size + "\r\n\r\n").getBytes(CHARSET);
+    }
+
+    /**
+     * <p> Builds the response header sent before a part of the file.</p>
+     *
+     * @param start first byte of the range.
+     * @param end last byte of the range, inclusive.
+     * @param size size of the file.
+     * @return byte[] response header.
+     */
+    public static byte[] partialHeader(long start, long end, long size) {
+        return (VERSION + " 206 Partial Content\r\nContent-Range: bytes " + start + "-" + end + "/" + size
+                + "\r\nContent-Length: " + (end - start + 1) + "\r\n\r\n").getBytes(CHARSET);
+    }
+
+    /**
+     * <p> Builds the response sent when the requested range starts after the end of the file.</p>
+     *
+     * @param size size of the file.
+     * @return byte[] response.
+     */
+    public static byte[] rangeNotSatisfiable(long size) {
+        return (VERSION + " 416 Range Not Satisfiable\r\nContent-Range: bytes */" + size
+                + "\r\nContent-Length: 0\r\n\r\n").getBytes(CHARSET);
+    }
+
+    /**
+     * <p> Builds the response sent when the file does not exist. Peers using the original format get the same
+     * single line they always got.</p>
+     *
+     * @param versioned true if the request was versioned.
+     * @return byte[] response.
+     */
+    public static byte[] notFound(boolean versioned) {
+        return versioned
+                ? (VERSION + " 404 Not Found\r\nContent-Length: 0\r\n\r\n").getBytes(CHARSET)
+                : (VERSION + " 404 Not Found\n").getBytes(CHARSET);
+    }
+
+    /**
+     * <p> Returns true if the stream starts with a status line. Peers running older clients send the raw file
+     * without one. The stream must support mark and reset.</p>
+     *
+     * <p> Called by: {@link serviceClient.FileTransferHandler#requestFile}</p>
+     *
+     * @param in stream of the peer socket.
+     * @return boolean true if a response header follows.
+     * @throws IOException if the stream could not be read.
+     */
+    public static boolean hasHeader(InputStream in) throws IOException {
+        byte[] prefix = "HTTP/".getBytes(CHARSET);
+        in.mark(prefix.length);
+        try {
+            for (byte expected : prefix) {
+                if (in.read() != expected) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * <p> Reads a response header up to and including the empty line.</p>
+     *
+     * <p> Called by: {@link serviceClient.SwarmDownload}, {@link serviceClient.FileTransferHandler#requestFile}</p>
+     *
+     * @param in stream of the peer socket.
+     * @return String header text without the empty line.
+     * @throws IOException if the stream ends or the header is too long.
+     */
+    public static String readHeader(InputStream in) throws IOException {
+        byte[] header = new byte[MAX_HEADER_LENGTH];
+        int length = 0;
+        while (length < header.length) {
+            int b = in.read();
+            if (b == -1) {
+                throw new IOException("Peer closed connection before sending response header.");
+            }
+            header[length++] = (byte) b;
+            if (length >= 4 && header[length - 1] == '\n' && header[length - 2] == '\r'
+                    && header[length - 3] == '\n' && header[length - 4] == '\r') {
+                return new String(header, 0, length - 4, CHARSET);
+            }
+        }
+        throw new IOException("Response header is too long.");
+    }
+
+    /**
+     * <p> Returns status code of a response header.</p>
+     *
+     * @param header response header.
+     * @return int status code, -1 if header has no valid status line.
+     */
+    public static int statusCode(String header) {
+        String[] parts = header.split("\r\n", 2)[0].split(" ");
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * <p> Returns the value of a header field.</p>
+     *
+     * @param header response header.
+     * @param name name of the field.
+     * @return String value of the field or <i>null</i> if it is not present.
+     */
+    public static String headerValue(String header, String name) {
+        String[] lines = header.split("\r\n");
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0 && lines[i].substring(0, colon).trim().equalsIgnoreCase(name)) {
+                return lines[i].substring(colon + 1).trim();
+            }
+        }
+        return null;
+    }
+}
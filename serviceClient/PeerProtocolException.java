@@ -0,0 +1,40 @@
+/*
+ * 2023/10/13
+ * Anton Mishchenko
+ */
+
+package serviceClient;
+
+import java.io.IOException;
+
+/**
+ * <p> PeerProtocolException is thrown when a peer answers a ranged request without a response header, so it runs
+ * an older client that can only send the whole file. The download has to fall back to requesting the whole file
+ * from that peer.</p>
+ */
+public class PeerProtocolException extends IOException {
+    private static final long serialVersionUID = 1L;
+    private final String[] host;
+
+    /**
+     * <p> Constructor for PeerProtocolException class.</p>
+     *
+     * @param message detail message.
+     * @param host IP, port and path of the peer that answered without a header.
+     */
+    public PeerProtocolException(String message, String[] host) {
+        super(message);
+        this.host = host;
+    }
+
+    /**
+     * <p> Returns the peer that answered without a header.</p>
+     *
+     * <p> Called by: {@link serviceClient.FileTransferHandler#requestFile}</p>
+     *
+     * @return String[] IP, port and path of the peer.
+     */
+    public String[] getHost() {
+        return host;
+    }
+}
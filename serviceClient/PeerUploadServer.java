@@ -0,0 +1,393 @@
+/*
+ * 2023/10/13
+ * Anton Mishchenko
+ */
+
+package serviceClient;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p> PeerUploadServer class serves files to peers with non-blocking sockets. The thread running the server
+ * accepts connections and hands them to a fixed number of event loops, each of which multiplexes many uploads on
+ * one Selector. Every connection is a small state machine: it reads a request, then sends the response header
+ * and the requested part of the file. Connections of versioned requests then read the next request, which may
+ * already be buffered if the peer pipelined it, other connections are closed. Requests are parsed by
+ * PeerProtocol. Connections that make no progress for <i>p2p.peer.idleTimeout</i> milliseconds are closed.</p>
+ * <p> The number of responses streamed at the same time is capped with the <i>p2p.upload.maxConcurrent</i>
+ * system property. A connection only holds a place while it sends a response, so idle keep-alive connections kept
+ * by the connection pools of peers do not block uploads to others. A request over the cap is answered with a 503
+ * response and its connection is closed. The number of open connections, idle or not, is capped separately with
+ * <i>p2p.upload.maxConnections</i> (four times the upload cap by default), connections over it are answered with a
+ * 503 response right after they are accepted. The number of event loops is set with <i>p2p.upload.loops</i>.</p>
+ * <p> Errors that stop the server are printed with ClientOutputManager.</p>
+ */
+public class PeerUploadServer implements Runnable {
+    private static final int DEFAULT_MAX_UPLOADS = 64;
+    private static final long TRANSFER_CHUNK = 1024 * 1024;
+    private static final byte[] BUSY = "HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\n\r\n".getBytes();
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] eventLoops;
+    private final int maxUploads;
+    private final int maxConnections;
+    private final AtomicInteger activeUploads = new AtomicInteger();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final ClientOutputManager clientOutputManager;
+    private volatile boolean running = true;
+    private Selector acceptSelector;
+    private int nextLoop = 0;
+
+    /**
+     * <p> Constructor for PeerUploadServer class. Reads limits from system properties and creates event loops.</p>
+     *
+     * <p> Called by: {@link serviceClient.ConnectionListener}</p>
+     *
+     * @param serverChannel bound server channel to accept peer connections on.
+     * @param clientOutputManager ClientOutputManager object used to print errors to GUI.
+     */
+    public PeerUploadServer(ServerSocketChannel serverChannel, ClientOutputManager clientOutputManager) {
+        this.serverChannel = serverChannel;
+        this.clientOutputManager = clientOutputManager;
+        this.maxUploads = Math.max(1, Integer.getInteger("p2p.upload.maxConcurrent", DEFAULT_MAX_UPLOADS));
+        this.maxConnections = Math.max(maxUploads, Integer.getInteger("p2p.upload.maxConnections", maxUploads * 4));
+        int defaultLoops = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        int loops = Math.max(1, Integer.getInteger("p2p.upload.loops", defaultLoops));
+        eventLoops = new EventLoop[loops];
+        for (int i = 0; i < loops; i++) {
+            eventLoops[i] = new EventLoop();
+        }
+    }
+
+    /**
+     * <p> Starts event loops and accepts connections until the server is closed.</p>
+     *
+     * <p> Called by: {@link serviceClient.ConnectionListener#run}</p>
+     */
+    @Override
+    public void run() {
+        try {
+            acceptSelector = Selector.open();
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i].start("peer-upload-" + i);
+            }
+            serverChannel.configureBlocking(false);
+            serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+            while (running) {
+                acceptSelector.select();
+                acceptSelector.selectedKeys().clear();
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    accept(channel);
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // don't print error if server was closed on purpose
+            if (running) {
+                clientOutputManager.printToLoginTextArea("ERROR: Upload server stopped accepting connections." +
+                        "\n" + e);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * <p> Stops accepting connections and closes all event loops and their connections.</p>
+     *
+     * <p> Called by: {@link serviceClient.ConnectionListener#closeConnectionListener}</p>
+     */
+    public void close() {
+        running = false;
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.wakeup();
+        }
+        try {
+            if (acceptSelector != null) {
+                acceptSelector.close();
+            }
+            serverChannel.close();
+        } catch (IOException e) {
+            clientOutputManager.printToLoginTextArea("ERROR: Could not close upload server." + "\n" + e);
+        }
+    }
+
+    /**
+     * <p> Hands an accepted connection to the next event loop, or rejects it if the connection cap is reached.</p>
+     *
+     * @param channel accepted connection.
+     */
+    private void accept(SocketChannel channel) {
+        if (openConnections.incrementAndGet() > maxConnections) {
+            openConnections.decrementAndGet();
+            try {
+                // new socket buffer is empty, the short response is written at once
+                channel.configureBlocking(false);
+                channel.write(ByteBuffer.wrap(BUSY));
+            } catch (IOException e) {
+                // peer is rejected either way
+            }
+            closeQuietly(channel);
+            return;
+        }
+        eventLoops[nextLoop].register(channel);
+        nextLoop = (nextLoop + 1) % eventLoops.length;
+    }
+
+    /**
+     * <p> Closes a channel, ignoring errors.</p>
+     *
+     * @param channel channel to close.
+     */
+    private static void closeQuietly(java.nio.channels.Channel channel) {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // channel is discarded either way
+        }
+    }
+
+    /**
+     * <p> Thread with its own Selector that serves the connections assigned to it.</p>
+     */
+    private class EventLoop implements Runnable {
+        private final ConcurrentLinkedQueue<SocketChannel> newConnections = new ConcurrentLinkedQueue<>();
+        private Selector selector;
+
+        private void start(String name) throws IOException {
+            selector = Selector.open();
+            Thread thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void register(SocketChannel channel) {
+            newConnections.add(channel);
+            selector.wakeup();
+        }
+
+        private void wakeup() {
+            if (selector != null) {
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            long nextIdleCheck = System.currentTimeMillis() + 1000;
+            try {
+                while (running) {
+                    selector.select(1000);
+                    SocketChannel channel;
+                    while ((channel = newConnections.poll()) != null) {
+                        UploadConnection connection = new UploadConnection(channel);
+                        try {
+                            channel.configureBlocking(false);
+                            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                        } catch (IOException e) {
+                            connection.close();
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        UploadConnection connection = (UploadConnection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                connection.onReadable();
+                            } else if (key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            connection.close();
+                        }
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now >= nextIdleCheck) {
+                        closeIdleConnections(now);
+                        nextIdleCheck = now + 1000;
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (running) {
+                    clientOutputManager.printToLoginTextArea("ERROR: Upload event loop stopped." + "\n" + e);
+                }
+            } finally {
+                shutdown();
+            }
+        }
+
+        /**
+         * <p> Closes connections that made no progress within the idle timeout.</p>
+         */
+        private void closeIdleConnections(long now) {
+            for (SelectionKey key : selector.keys()) {
+                UploadConnection connection = (UploadConnection) key.attachment();
+                if (now - connection.lastActive > PeerProtocol.IDLE_TIMEOUT) {
+                    connection.close();
+                }
+            }
+        }
+
+        private void shutdown() {
+            SocketChannel channel;
+            while ((channel = newConnections.poll()) != null) {
+                new UploadConnection(channel).close();
+            }
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    ((UploadConnection) key.attachment()).close();
+                }
+                selector.close();
+            } catch (IOException | ClosedSelectorException e) {
+                // loop is stopping either way
+            }
+        }
+    }
+
+    /**
+     * <p> State of a single connection: reading a request, sending the response header or sending the file.</p>
+     */
+    private class UploadConnection {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private final ByteBuffer request = ByteBuffer.allocate(PeerProtocol.MAX_HEADER_LENGTH);
+        private ByteBuffer header;
+        private FileChannel file;
+        private long position;
+        private long end;
+        private boolean keepAlive;
+        private boolean uploading = false;
+        private long lastActive = System.currentTimeMillis();
+        private boolean closed = false;
+
+        private UploadConnection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * <p> Reads request bytes until a request is complete, then starts sending the response.</p>
+         */
+        private void onReadable() throws IOException {
+            if (channel.read(request) == -1) {
+                close();
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+            startResponse();
+        }
+
+        /**
+         * <p> Starts the response to the first buffered request, or waits for more bytes if it is incomplete.</p>
+         */
+        private void startResponse() throws IOException {
+            int length = PeerProtocol.requestLength(request.array(), request.position());
+            if (length < 0) {
+                if (!request.hasRemaining()) {
+                    // request is too long
+                    close();
+                } else {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                return;
+            }
+            PeerProtocol.Request parsed = PeerProtocol.parseRequest(
+                    new String(request.array(), 0, length, Charset.defaultCharset()));
+            // keep pipelined requests that arrived after this one
+            request.flip();
+            request.position(length);
+            request.compact();
+            if (parsed == null) {
+                close();
+                return;
+            }
+            // a place is held only while the response is sent
+            if (activeUploads.incrementAndGet() > maxUploads) {
+                activeUploads.decrementAndGet();
+                header = ByteBuffer.wrap(BUSY);
+                keepAlive = false;
+                key.interestOps(SelectionKey.OP_WRITE);
+                onWritable();
+                return;
+            }
+            uploading = true;
+            keepAlive = parsed.isKeepAlive();
+            File requested = new File(parsed.getPath());
+            PeerProtocol.Response response = PeerProtocol.respond(parsed, requested);
+            header = ByteBuffer.wrap(response.getHeader());
+            if (response.getLength() > 0) {
+                file = new FileInputStream(requested).getChannel();
+                position = response.getStart();
+                end = response.getStart() + response.getLength();
+            }
+            key.interestOps(SelectionKey.OP_WRITE);
+            onWritable();
+        }
+
+        /**
+         * <p> Sends as much of the response header and file as the socket accepts.</p>
+         */
+        private void onWritable() throws IOException {
+            lastActive = System.currentTimeMillis();
+            if (header.hasRemaining()) {
+                channel.write(header);
+                if (header.hasRemaining()) {
+                    return;
+                }
+            }
+            if (file != null && position < end) {
+                position += file.transferTo(position, Math.min(TRANSFER_CHUNK, end - position), channel);
+            }
+            if (file != null && position < end) {
+                return;
+            }
+            closeQuietly(file);
+            file = null;
+            releaseUpload();
+            if (keepAlive) {
+                startResponse();
+            } else {
+                close();
+            }
+        }
+
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            releaseUpload();
+            openConnections.decrementAndGet();
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(file);
+            closeQuietly(channel);
+        }
+
+        /**
+         * <p> Gives back the place of the response that was sent or aborted.</p>
+         */
+        private void releaseUpload() {
+            if (uploading) {
+                uploading = false;
+                activeUploads.decrementAndGet();
+            }
+        }
+    }
+}
@@ -17,11 +17,12 @@ import java.util.List;
  */
 public class ProgressBar extends JPanel {
     JProgressBar progressBar;
+    private volatile TransferExecutor.Transfer transfer;
 
     /**
      * <p> Constructor for the custom progress bar together with ActionListener used by the clearing button.</p>
      * <p> When the <i>deleteButton</i> is pressed, the progress bar is removed from the GUI and the list of active
-     * progress bars.</p>
+     * progress bars. A download that is still running is cancelled.</p>
      *
      * <p> Called by: {@link serviceClient.ClientGUI}</p>
      *
@@ -41,6 +42,11 @@ public class ProgressBar extends JPanel {
         deleteButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
+                // stop download that is still running
+                TransferExecutor.Transfer running = transfer;
+                if (running != null && !running.isDone()) {
+                    running.cancel();
+                }
                 // remove this object from the list
                 progressBarList.remove(ProgressBar.this);
                 downloadProgressPanel.remove(ProgressBar.this);
@@ -61,4 +67,15 @@ public class ProgressBar extends JPanel {
     public JProgressBar getProgressBar() {
         return progressBar;
     }
+
+    /**
+     * <p> Sets the download displayed by this progress bar so it can be cancelled by the clearing button.</p>
+     *
+     * <p> Called by: {@link serviceClient.ClientGUI}</p>
+     *
+     * @param transfer handle of the download.
+     */
+    public void setTransfer(TransferExecutor.Transfer transfer) {
+        this.transfer = transfer;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,748 @@
+/*
+ * 2023/10/13
+ * Anton Mishchenko
+ */
+
+package serviceClient;
+
+import server.P2PServiceImplSEI;
+import server.StringArray;
+import javax.xml.ws.WebServiceException;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> SharedFolderManager class keeps the files of the shared folders registered on the server. Shared folders are
+ * set with the <i>p2p.sharedFolders</i> system property as a list of directories separated by the path separator
+ * of the platform. When the user logs in, the folders and their sub folders are walked in parallel, the files found
+ * are compared with the files the user has registered under those folders and only the differences are sent to the
+ * server, in batches of up to 1000 files.</p>
+ * <p> Size, modification time and hashes of every shared file are kept in a local index, stored in the file set by
+ * <i>p2p.sharedFolders.index</i> (.p2p-shared-index in the home directory by default), so files that did not
+ * change are not hashed again when the client starts. While the user is logged in a WatchService reports files
+ * that are added, changed or removed. Changes are collected until the folders are quiet for
+ * <i>p2p.sharedFolders.delay</i> milliseconds (2000 by default) and are then sent together.</p>
+ * <p> All state is owned by the task running the manager, only the walking and hashing of files is spread over a
+ * pool of <i>p2p.sharedFolders.threads</i> threads (one per processor by default).</p>
+ */
+public class SharedFolderManager implements Runnable {
+    private static final int BATCH_SIZE = 1000;
+    private static final int REGISTER_FIELDS = 7;
+    private static final int DEREGISTER_FIELDS = 3;
+    // changes are sent at the latest after this many quiet periods, even if the folders keep changing
+    private static final int MAX_DELAYS = 10;
+    private final P2PServiceImplSEI service;
+    private final String token;
+    private final String userName;
+    private final ClientOutputManager clientOutputManager;
+    private final List<Path> roots;
+    private final Path indexFile = Paths.get(System.getProperty("p2p.sharedFolders.index",
+            System.getProperty("user.home") + File.separator + ".p2p-shared-index"));
+    private final long delayMillis = Math.max(100, Long.getLong("p2p.sharedFolders.delay", 2000));
+    private final int threads = Math.max(1, Integer.getInteger("p2p.sharedFolders.threads",
+            Runtime.getRuntime().availableProcessors()));
+    private final Map<String, Entry> index = new HashMap<>();
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+    private final Set<Path> pending = new LinkedHashSet<>();
+    private volatile WatchService watchService;
+    private volatile boolean running = true;
+    private boolean rescan = false;
+
+    /**
+     * <p> Constructor for SharedFolderManager class.</p>
+     *
+     * @param service port of the P2P service.
+     * @param token token of the current session.
+     * @param userName username of the logged in user.
+     * @param clientOutputManager output manager used to report changes.
+     * @param roots absolute paths of the shared folders.
+     */
+    private SharedFolderManager(P2PServiceImplSEI service, String token, String userName,
+                                ClientOutputManager clientOutputManager, List<Path> roots) {
+        this.service = service;
+        this.token = token;
+        this.userName = userName;
+        this.clientOutputManager = clientOutputManager;
+        this.roots = roots;
+    }
+
+    /**
+     * <p> Starts a manager for the shared folders on the shared TransferExecutor. Folders that do not exist are
+     * reported and left out.</p>
+     *
+     * <p> Called by: {@link serviceClient.ClientGUI#guiLoggedIn}</p>
+     *
+     * @param service port of the P2P service.
+     * @param token token of the current session.
+     * @param userName username of the logged in user.
+     * @param clientOutputManager output manager used to report changes.
+     * @return SharedFolderManager started manager, <i>null</i> if no shared folders are set.
+     */
+    public static SharedFolderManager start(P2PServiceImplSEI service, String token, String userName,
+                                            ClientOutputManager clientOutputManager) {
+        List<Path> roots = new ArrayList<>();
+        for (String folder : System.getProperty("p2p.sharedFolders", "").split(File.pathSeparator)) {
+            if (folder.trim().isEmpty()) {
+                continue;
+            }
+            Path root = Paths.get(folder.trim()).toAbsolutePath().normalize();
+            if (!Files.isDirectory(root)) {
+                clientOutputManager.printToManageTextArea("Shared folder " + root + " does not exist.");
+                continue;
+            }
+            roots.add(root);
+        }
+        if (roots.isEmpty()) {
+            return null;
+        }
+        SharedFolderManager manager = new SharedFolderManager(service, token, userName, clientOutputManager, roots);
+        TransferExecutor.getShared().execute(manager);
+        return manager;
+    }
+
+    /**
+     * <p> Stops watching the shared folders. Changes not sent yet are sent when the user logs in again.</p>
+     *
+     * <p> Called by: {@link serviceClient.ClientGUI#guiLoggedIn}, {@link serviceClient.ClientGUI#returnToLoginTab}</p>
+     */
+    public void close() {
+        running = false;
+        WatchService service = watchService;
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException e) {
+                // watch service is discarded either way
+            }
+        }
+    }
+
+    /**
+     * <p> Synchronizes the shared folders with the server, then sends changes reported by the WatchService until
+     * the manager is closed.</p>
+     *
+     * <p> Calls: {@link serviceClient.SharedFolderManager#synchronize}, {@link serviceClient.SharedFolderManager#watch}</p>
+     */
+    @Override
+    public void run() {
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            if (!running) {
+                return;
+            }
+            loadIndex();
+            synchronize();
+            watch();
+        } catch (ClosedWatchServiceException e) {
+            // closed when the user logs out
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            clientOutputManager.printToManageTextArea("Shared folders could not be watched: " + e.getMessage());
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * <p> Waits for changes in the shared folders and sends them once the folders are quiet. New sub folders are
+     * watched and their files sent as added files.</p>
+     *
+     * @throws InterruptedException if the task is interrupted.
+     * @throws IOException if a new sub folder could not be walked.
+     */
+    private void watch() throws InterruptedException, IOException {
+        long firstChange = 0;
+        while (running) {
+            WatchKey key;
+            if (pending.isEmpty() && !rescan) {
+                key = watchService.take();
+                firstChange = System.currentTimeMillis();
+            } else if (System.currentTimeMillis() - firstChange > delayMillis * MAX_DELAYS) {
+                key = null;
+            } else {
+                key = watchService.poll(delayMillis, TimeUnit.MILLISECONDS);
+            }
+            if (key == null) {
+                if (rescan) {
+                    rescan = false;
+                    pending.clear();
+                    synchronize();
+                } else {
+                    sendChanges();
+                }
+                continue;
+            }
+            Path directory = watchedDirectories.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW || directory == null) {
+                    // events were lost, only walking the folders again finds all changes
+                    rescan = true;
+                    continue;
+                }
+                Path path = directory.resolve((Path) event.context());
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                        && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    pending.addAll(walk(path));
+                } else {
+                    pending.add(path);
+                }
+            }
+            if (!key.reset()) {
+                watchedDirectories.remove(key);
+            }
+        }
+    }
+
+    /**
+     * <p> Walks all shared folders in parallel and compares the files found with the files the user has
+     * registered under them. Files missing on the server are registered, registered files missing on disk are
+     * deregistered and files whose content changed are registered again. Only files that are new or changed since
+     * they were indexed are hashed.</p>
+     *
+     * @throws InterruptedException if the task is interrupted.
+     */
+    private void synchronize() throws InterruptedException {
+        ExecutorService pool = createPool();
+        try {
+            // walk every folder on its own thread
+            List<Future<List<Path>>> walks = new ArrayList<>();
+            for (final Path root : roots) {
+                walks.add(pool.submit(new Callable<List<Path>>() {
+                    @Override
+                    public List<Path> call() throws IOException {
+                        return walk(root);
+                    }
+                }));
+            }
+            Map<String, File> files = new HashMap<>();
+            for (Future<List<Path>> walk : walks) {
+                for (Path path : get(walk)) {
+                    File file = path.toFile();
+                    if (fileFields(file) != null) {
+                        files.put(file.getAbsolutePath(), file);
+                    }
+                }
+            }
+            Map<String, String[]> registered = getRegisteredFiles();
+            if (registered == null || !running) {
+                return;
+            }
+            // hash new and changed files in parallel
+            Map<String, Entry> previous = new HashMap<>(index);
+            index.clear();
+            Map<String, Future<Entry>> hashing = new HashMap<>();
+            for (final File file : files.values()) {
+                Entry entry = previous.get(file.getAbsolutePath());
+                if (entry != null && entry.matches(file)) {
+                    index.put(file.getAbsolutePath(), entry);
+                    continue;
+                }
+                hashing.put(file.getAbsolutePath(), pool.submit(new Callable<Entry>() {
+                    @Override
+                    public Entry call() {
+                        return hash(file);
+                    }
+                }));
+            }
+            for (Map.Entry<String, Future<Entry>> hashed : hashing.entrySet()) {
+                Entry entry = get(hashed.getValue());
+                if (entry != null) {
+                    index.put(hashed.getKey(), entry);
+                }
+            }
+            // find differences
+            List<String[]> deregister = new ArrayList<>();
+            List<File> register = new ArrayList<>();
+            for (Map.Entry<String, String[]> file : registered.entrySet()) {
+                Entry entry = index.get(file.getKey());
+                // files that could not be hashed are left as they are
+                if (!files.containsKey(file.getKey()) || entry != null
+                        && (!Long.toString(entry.size).equals(file.getValue()[3])
+                        || entry.changedFrom(previous.get(file.getKey())))) {
+                    deregister.add(Arrays.copyOf(file.getValue(), DEREGISTER_FIELDS));
+                }
+            }
+            for (File file : files.values()) {
+                String path = file.getAbsolutePath();
+                Entry entry = index.get(path);
+                // files that could not be hashed are left as they are
+                if (entry == null) {
+                    continue;
+                }
+                if (!registered.containsKey(path) || entry.changedFrom(previous.get(path))
+                        || !Long.toString(entry.size).equals(registered.get(path)[3])) {
+                    register.add(file);
+                }
+            }
+            send(deregister, register);
+            saveIndex();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * <p> Sends changes collected by the WatchService. Added files are registered, removed files are deregistered
+     * and files whose content changed are registered again. Files that were only touched are left as they are.</p>
+     */
+    private void sendChanges() {
+        Set<String> paths = new LinkedHashSet<>();
+        for (Path path : pending) {
+            String key = path.toAbsolutePath().toString();
+            paths.add(key);
+            // a removed folder only reports itself, its files are found in the index
+            if (!index.containsKey(key) && !Files.exists(path)) {
+                for (String indexed : index.keySet()) {
+                    if (indexed.startsWith(key + File.separator)) {
+                        paths.add(indexed);
+                    }
+                }
+            }
+        }
+        pending.clear();
+        List<String[]> deregister = new ArrayList<>();
+        List<File> register = new ArrayList<>();
+        for (String path : paths) {
+            File file = new File(path);
+            Entry previous = index.get(path);
+            String[] fields = fileFields(file);
+            if (file.isFile() && fields != null) {
+                if (previous != null && previous.matches(file)) {
+                    continue;
+                }
+                Entry entry = hash(file);
+                // file is still being written, it is hashed again when writing is done
+                if (entry == null) {
+                    continue;
+                }
+                index.put(path, entry);
+                if (previous != null) {
+                    if (!entry.changedFrom(previous)) {
+                        continue;
+                    }
+                    deregister.add(fields);
+                }
+                register.add(file);
+            } else if (previous != null) {
+                index.remove(path);
+                deregister.add(fileFields(path));
+            }
+        }
+        if (!deregister.isEmpty() || !register.isEmpty()) {
+            send(deregister, register);
+            saveIndex();
+        }
+    }
+
+    /**
+     * <p> Deregisters and then registers files in batches and reports the result. Differences left by a failed
+     * request are sent by the next synchronization.</p>
+     *
+     * <p> Calls: {@link server.P2PServiceImplSEI#deregisterFiles}, {@link server.P2PServiceImplSEI#registerFiles}</p>
+     *
+     * @param deregister name, type and path of every file to deregister.
+     * @param register files to register, all of them hashed in the index.
+     */
+    private void send(List<String[]> deregister, List<File> register) {
+        List<String> fields = new ArrayList<>();
+        for (String[] file : deregister) {
+            Collections.addAll(fields, file);
+        }
+        int removed = count(sendBatches("deregisterFiles", fields, DEREGISTER_FIELDS), "OK");
+        fields.clear();
+        for (File file : register) {
+            addRegisterFields(fields, file, index.get(file.getAbsolutePath()).hashes);
+        }
+        List<String> results = sendBatches("registerFiles", fields, REGISTER_FIELDS);
+        int added = count(results, "OK");
+        int full = count(results, "FULL");
+        if (added > 0 || removed > 0) {
+            clientOutputManager.printToManageTextArea("Shared folders: " + added + " files registered, " + removed +
+                    " files removed.");
+        }
+        if (full > 0) {
+            clientOutputManager.printToManageTextArea("Shared folders: " + full + " files were not registered. " +
+                    "User has reached maximum number of files.");
+        }
+    }
+
+    /**
+     * <p> Sends file fields to the server in batches of up to BATCH_SIZE files.</p>
+     *
+     * @param operation "registerFiles" or "deregisterFiles".
+     * @param fields fields of all files.
+     * @param fieldsPerFile number of fields of every file.
+     * @return List of the status of every file sent, shorter than the number of files if a request failed.
+     */
+    private List<String> sendBatches(String operation, List<String> fields, int fieldsPerFile) {
+        List<String> results = new ArrayList<>();
+        for (int start = 0; start < fields.size(); start += BATCH_SIZE * fieldsPerFile) {
+            StringArray batch = new StringArray();
+            batch.getItem().addAll(fields.subList(start, Math.min(fields.size(), start + BATCH_SIZE * fieldsPerFile)));
+            List<String> response;
+            try {
+                response = operation.equals("registerFiles")
+                        ? service.registerFiles(token, userName, batch).getItem()
+                        : service.deregisterFiles(token, userName, batch).getItem();
+            } catch (WebServiceException e) {
+                clientOutputManager.printToManageTextArea("Shared folders: server communication error.");
+                return results;
+            }
+            if (!response.get(0).equals("OK")) {
+                clientOutputManager.printToManageTextArea("Shared folders: " + response.get(1));
+                return results;
+            }
+            results.addAll(response.subList(1, response.size()));
+        }
+        return results;
+    }
+
+    /**
+     * <p> Returns files the user has registered under the shared folders.</p>
+     *
+     * <p> Calls: {@link server.P2PServiceImplSEI#getUserFiles}</p>
+     *
+     * @return Map of full paths to name, type, path and size of the files, <i>null</i> if the request failed.
+     */
+    private Map<String, String[]> getRegisteredFiles() {
+        List<String> response;
+        try {
+            response = service.getUserFiles(token, userName).getItem();
+        } catch (WebServiceException e) {
+            clientOutputManager.printToManageTextArea("Shared folders: server communication error.");
+            return null;
+        }
+        Map<String, String[]> files = new HashMap<>();
+        if (response.get(0).equals("404")) {
+            return files;
+        } else if (!response.get(0).equals("OK")) {
+            clientOutputManager.printToManageTextArea("Shared folders: " + response.get(1));
+            return null;
+        }
+        // File_ID, File_Name, File_Type, File_Path and File_Size of every file
+        for (int field = 1; field + 4 < response.size(); field += 5) {
+            String path = response.get(field + 3) + response.get(field + 1) + "." + response.get(field + 2);
+            for (Path root : roots) {
+                if (path.startsWith(root.toString() + File.separator)) {
+                    files.put(path, new String[]{response.get(field + 1), response.get(field + 2),
+                            response.get(field + 3), response.get(field + 4)});
+                    break;
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * <p> Walks a folder and its sub folders, watching every folder on the way.</p>
+     *
+     * @param folder folder to walk.
+     * @return List of regular files found.
+     * @throws IOException if the folder could not be walked.
+     */
+    private List<Path> walk(Path folder) throws IOException {
+        final List<Path> files = new ArrayList<>();
+        Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+                WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                watchedDirectories.put(key, directory);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (attributes.isRegularFile()) {
+                    files.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // unreadable entries are skipped
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    /**
+     * <p> Hashes a file and returns its index entry.</p>
+     *
+     * <p> Calls: {@link serviceClient.FileHasher#hash}</p>
+     *
+     * @param file file to hash.
+     * @return Entry of the file, <i>null</i> if the file could not be read or changed while it was hashed.
+     */
+    private static Entry hash(File file) {
+        long size = file.length();
+        long modified = file.lastModified();
+        try {
+            FileHasher.Hashes hashes = FileHasher.hash(file);
+            if (file.length() != size || file.lastModified() != modified) {
+                return null;
+            }
+            return new Entry(size, modified, hashes);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * <p> Returns the result of a task run on the pool.</p>
+     *
+     * @param future future of the task.
+     * @param <T> type of the result.
+     * @return T result of the task, <i>null</i> if the task failed.
+     * @throws InterruptedException if the task is interrupted.
+     */
+    private <T> T get(Future<T> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            // tasks fail when the watch service is closed on logout
+            if (running) {
+                clientOutputManager.printToManageTextArea("Shared folders: " + e.getCause());
+            }
+            return null;
+        }
+    }
+
+    /**
+     * <p> Creates the pool of daemon threads used to walk folders and hash files.</p>
+     *
+     * @return ExecutorService new pool.
+     */
+    private ExecutorService createPool() {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "shared-folders");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * <p> Counts results with the given status.</p>
+     *
+     * @param results status of every file.
+     * @param status status to count.
+     * @return int number of files with the status.
+     */
+    private static int count(List<String> results, String status) {
+        int count = 0;
+        for (String result : results) {
+            if (result.equals(status)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * <p> Returns name, type and path of a file as registered on the server: the name up to the last dot, the
+     * type after it and the folder with a trailing separator.</p>
+     *
+     * <p> Called by: {@link serviceClient.ClientGUI#registerFolderListener}</p>
+     *
+     * @param file file to describe.
+     * @return String[] name, type and path, <i>null</i> if the file has no type or name, type or path are longer
+     * than the server allows.
+     */
+    public static String[] fileFields(File file) {
+        return fileFields(file.getAbsolutePath());
+    }
+
+    /**
+     * <p> Returns name, type and path of a file given by its absolute path.</p>
+     *
+     * @param absolutePath absolute path of the file.
+     * @return String[] name, type and path, <i>null</i> if the file can not be registered.
+     */
+    private static String[] fileFields(String absolutePath) {
+        int nameStart = absolutePath.lastIndexOf(File.separator) + 1;
+        int typeStart = absolutePath.lastIndexOf(".");
+        if (typeStart < nameStart) {
+            return null;
+        }
+        String fileName = absolutePath.substring(nameStart, typeStart);
+        String fileType = absolutePath.substring(typeStart + 1);
+        String filePath = absolutePath.substring(0, nameStart);
+        if (fileName.length() > 100 || fileType.length() > 25 || filePath.length() > 300) {
+            return null;
+        }
+        return new String[]{fileName, fileType, filePath};
+    }
+
+    /**
+     * <p> Adds the seven fields registerFiles expects for a file: name, type, path, size and hashes, which are
+     * empty if the file was not hashed.</p>
+     *
+     * <p> Called by: {@link serviceClient.ClientGUI#registerFolderListener}</p>
+     *
+     * @param fields list to add the fields to.
+     * @param file file to register.
+     * @param hashes hashes of the file, <i>null</i> if it could not be hashed.
+     * @return boolean false if the file can not be registered, nothing is added then.
+     */
+    public static boolean addRegisterFields(List<String> fields, File file, FileHasher.Hashes hashes) {
+        String[] names = fileFields(file);
+        if (names == null) {
+            return false;
+        }
+        Collections.addAll(fields, names);
+        fields.add(Long.toString(file.length()));
+        fields.add(hashes != null ? hashes.getRootHash() : "");
+        fields.add(hashes != null ? Integer.toString(hashes.getPieceSize()) : "");
+        fields.add(hashes != null ? hashes.getPieceHashes() : "");
+        return true;
+    }
+
+    /**
+     * <p> Loads the index saved by an earlier session. A missing or unreadable index only means that all files are
+     * hashed again.</p>
+     */
+    private void loadIndex() {
+        index.clear();
+        if (!Files.exists(indexFile)) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // size, modification time, root hash, piece size, piece hashes and path
+                String[] fields = line.split("\t", 6);
+                if (fields.length < 6) {
+                    continue;
+                }
+                long size = Long.parseLong(fields[0]);
+                FileHasher.Hashes hashes = FileHasher.Hashes.parse(fields[2], fields[3], fields[4], size);
+                if (hashes != null) {
+                    index.put(fields[5], new Entry(size, Long.parseLong(fields[1]), hashes));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            index.clear();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // index is already read
+                }
+            }
+        }
+    }
+
+    /**
+     * <p> Saves the index to a temporary file that then replaces the index, so an interrupted save never leaves a
+     * partial index behind.</p>
+     */
+    private void saveIndex() {
+        Path temporary = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        BufferedWriter writer = null;
+        try {
+            writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8);
+            for (Map.Entry<String, Entry> indexed : index.entrySet()) {
+                Entry entry = indexed.getValue();
+                writer.write(entry.size + "\t" + entry.modified + "\t" + entry.hashes.getRootHash() + "\t" +
+                        entry.hashes.getPieceSize() + "\t" + entry.hashes.getPieceHashes() + "\t" + indexed.getKey());
+                writer.newLine();
+            }
+            writer.close();
+            writer = null;
+            try {
+                Files.move(temporary, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, indexFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            clientOutputManager.printToManageTextArea("Shared folders: index could not be saved.");
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // temporary file is discarded either way
+                }
+            }
+        }
+    }
+
+    /**
+     * <p> Indexed file: size and modification time when it was hashed and its hashes.</p>
+     */
+    private static class Entry {
+        private final long size;
+        private final long modified;
+        private final FileHasher.Hashes hashes;
+
+        private Entry(long size, long modified, FileHasher.Hashes hashes) {
+            this.size = size;
+            this.modified = modified;
+            this.hashes = hashes;
+        }
+
+        /**
+         * <p> Checks if the file still has the size and modification time it had when it was hashed.</p>
+         *
+         * @param file file on disk.
+         * @return boolean true if the file was not modified since.
+         */
+        private boolean matches(File file) {
+            return file.length() == size && file.lastModified() == modified;
+        }
+
+        /**
+         * <p> Checks if the content differs from an earlier entry of the same file.</p>
+         *
+         * @param previous earlier entry, <i>null</i> if the file was not indexed.
+         * @return boolean true if the file was indexed with other content.
+         */
+        private boolean changedFrom(Entry previous) {
+            return previous != null && previous != this
+                    && (previous.size != size || !previous.hashes.getRootHash().equals(hashes.getRootHash()));
+        }
+    }
+}
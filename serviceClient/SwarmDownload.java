@@ -0,0 +1,480 @@
+/*
+ * 2023/10/13
+ * Anton Mishchenko
+ */
+
+package serviceClient;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p> SwarmDownload class downloads a file from several peers at the same time. The file is split into pieces of
+ * fixed size (<i>p2p.swarm.pieceSize</i> bytes, 1 MB by default) and every host gets a worker that keeps requesting
+ * the next missing piece with a ranged request, so faster hosts end up sending more pieces. Every host can be
+ * asked for several pieces at the same time over separate connections, set with <i>p2p.download.connections</i>.
+ * Connections are taken from the PeerConnectionPool and returned to it when the download ends.</p>
+ * <p> A piece that fails is put back for other hosts, and a host that fails repeatedly is dropped. Once every
+ * piece is either finished or being downloaded, idle workers also request pieces still in progress on other hosts,
+ * so the last pieces are not held up by a slow host. The first copy to arrive is kept.</p>
+ * <p> When content hashes of the file are known every received piece is checked against its hash, and a corrupt
+ * piece is put back and fetched again like a failed one. Pieces already in the file from an earlier attempt are
+ * checked the same way and kept if they match, so a broken download continues where it stopped.</p>
+ * <p> A host that answers without a response header runs an older client that can not send pieces, its workers
+ * stop. If no host sends pieces because of that, the download fails with a PeerProtocolException naming such a
+ * host, so the whole file can be requested from it instead.</p>
+ */
+public class SwarmDownload implements Closeable {
+    private static final int DEFAULT_PIECE_SIZE = 1024 * 1024;
+    private static final int MAX_HOST_FAILURES = 3;
+    private final List<String[]> hosts = new ArrayList<>();
+    private final long fileSize;
+    private final File partFile;
+    private final ProgressBar progressBar;
+    private final FileHasher.Hashes hashes;
+    private final int pieceSize;
+    private final int pieceCount;
+    private final int connectionsPerHost;
+    private final int pipelineDepth;
+    private final AtomicIntegerArray completed;
+    private final AtomicIntegerArray requested;
+    private final ConcurrentLinkedDeque<Integer> pendingPieces = new ConcurrentLinkedDeque<>();
+    private final Set<Closeable> openSockets = Collections.newSetFromMap(new ConcurrentHashMap<Closeable, Boolean>());
+    private final AtomicLong completedBytes = new AtomicLong();
+    private final BandwidthLimiter downloadLimiter = BandwidthLimiter.forDownload();
+    private final BandwidthLimiter globalLimiter = BandwidthLimiter.getGlobalLimiter();
+    private FileChannel fileChannel;
+    private int remainingPieces;
+    private int activeWorkers;
+    private long pieceEvents;
+    private volatile boolean cancelled = false;
+    private volatile boolean protocolSupported = false;
+    private volatile String[] legacyHost;
+
+    /**
+     * <p> Constructor for SwarmDownload class. Splits the file into pieces, of the hashed piece size if hashes
+     * are known.</p>
+     *
+     * <p> Called by: {@link serviceClient.FileTransferHandler#requestFile}</p>
+     *
+     * @param ownerData String array of IP, port and full file path triples of all hosts of the file.
+     * @param fileSize Size of file to be requested.
+     * @param partFile File the download is written to.
+     * @param progressBar Progress bar to update during download.
+     * @param hashes content hashes of the file or <i>null</i> if they are not known.
+     */
+    public SwarmDownload(String[] ownerData, long fileSize, File partFile, ProgressBar progressBar,
+                         FileHasher.Hashes hashes) {
+        for (int i = 0; i + 2 < ownerData.length; i += 3) {
+            hosts.add(new String[]{ownerData[i], ownerData[i + 1], ownerData[i + 2]});
+        }
+        this.fileSize = fileSize;
+        this.partFile = partFile;
+        this.progressBar = progressBar;
+        this.hashes = hashes;
+        this.pieceSize = hashes != null ? hashes.getPieceSize()
+                : Math.max(16 * 1024, Integer.getInteger("p2p.swarm.pieceSize", DEFAULT_PIECE_SIZE));
+        this.pieceCount = (int) Math.max(1, (fileSize + pieceSize - 1) / pieceSize);
+        this.connectionsPerHost = Math.max(1, Integer.getInteger("p2p.download.connections", 1));
+        this.pipelineDepth = Math.max(1, Integer.getInteger("p2p.swarm.pipeline", 2));
+        this.completed = new AtomicIntegerArray(pieceCount);
+        this.requested = new AtomicIntegerArray(pieceCount);
+        // an empty file has nothing to request
+        for (int i = 0; fileSize > 0 && i < pieceCount; i++) {
+            pendingPieces.add(i);
+        }
+    }
+
+    /**
+     * <p> Downloads the file and blocks until every piece arrived, all hosts failed or the download was
+     * cancelled.</p>
+     *
+     * <p> Called by: {@link serviceClient.FileTransferHandler#requestFile}</p>
+     *
+     * @throws PeerProtocolException if no host sent pieces and at least one answered without a response header.
+     * @throws IOException if the file could not be written or no host could send the missing pieces.
+     */
+    public void download() throws IOException {
+        if (hashes == null && partFile.exists() && !partFile.delete()) {
+            throw new IOException("Could not remove " + partFile.getName());
+        }
+        RandomAccessFile output = new RandomAccessFile(partFile, "rw");
+        try {
+            fileChannel = output.getChannel();
+            int verifiedPieces = hashes != null ? verifyExistingPieces(output.length()) : 0;
+            output.setLength(fileSize);
+            // no worker is started for an empty file or one whose pieces all passed verification
+            int missingPieces = fileSize == 0 ? 0 : pieceCount - verifiedPieces;
+            synchronized (this) {
+                remainingPieces = missingPieces;
+                activeWorkers = missingPieces > 0 ? hosts.size() * connectionsPerHost : 0;
+            }
+            for (int h = 0; missingPieces > 0 && h < hosts.size(); h++) {
+                final String[] host = hosts.get(h);
+                for (int i = 0; i < connectionsPerHost; i++) {
+                    TransferExecutor.getShared().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            runWorker(host);
+                        }
+                    });
+                }
+            }
+            synchronized (this) {
+                while (remainingPieces > 0 && activeWorkers > 0 && !cancelled) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        cancelled = true;
+                    }
+                }
+                if (remainingPieces > 0 && !cancelled && !protocolSupported && legacyHost != null) {
+                    throw new PeerProtocolException("No host supports ranged requests.", legacyHost);
+                }
+                if (remainingPieces > 0) {
+                    throw new IOException(cancelled ? "Download cancelled." : "No host could send the missing pieces.");
+                }
+            }
+        } finally {
+            close();
+            output.close();
+        }
+    }
+
+    /**
+     * <p> Checks pieces already in the file against their hashes and marks the matching ones as finished.</p>
+     *
+     * @param existingLength length of the file before the download.
+     * @return int number of finished pieces.
+     * @throws IOException if the file could not be read.
+     */
+    private int verifyExistingPieces(long existingLength) throws IOException {
+        if (fileSize == 0) {
+            return 0;
+        }
+        byte[] buffer = new byte[pieceSize];
+        int verified = 0;
+        for (int piece = 0; piece < pieceCount; piece++) {
+            long start = (long) piece * pieceSize;
+            int length = pieceLength(piece);
+            if (start + length > existingLength) {
+                break;
+            }
+            ByteBuffer data = ByteBuffer.wrap(buffer, 0, length);
+            while (data.hasRemaining() && fileChannel.read(data, start + data.position()) != -1) {
+                // read the whole piece
+            }
+            if (!data.hasRemaining() && hashes.verifyPiece(piece, buffer, length)) {
+                completed.set(piece, 1);
+                pendingPieces.remove(piece);
+                completedBytes.addAndGet(length);
+                verified++;
+            }
+        }
+        progressBar.getProgressBar().setValue((int) (completedBytes.get() * 100 / fileSize));
+        return verified;
+    }
+
+    /**
+     * <p> Stops the download and closes all connections to hosts.
+     *
+     * <p> Called by: {@link serviceClient.TransferExecutor.Transfer#cancel}</p>
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (remainingPieces > 0) {
+                cancelled = true;
+            }
+            notifyAll();
+        }
+        for (Closeable socket : openSockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // download is stopping either way
+            }
+        }
+    }
+
+    /**
+     * <p> Requests pieces over one connection to a host until the download is finished or the host failed too
+     * often. Up to <i>p2p.swarm.pipeline</i> requests are sent ahead on the connection, so the host starts sending
+     * the next piece as soon as the previous one is done.</p>
+     *
+     * @param host IP, port and path of the host.
+     */
+    private void runWorker(String[] host) {
+        byte[] buffer = new byte[pieceSize];
+        ArrayDeque<Integer> sentPieces = new ArrayDeque<>();
+        PeerConnectionPool.Connection connection = null;
+        int failures = 0;
+        try {
+            while (!cancelled && failures < MAX_HOST_FAILURES) {
+                try {
+                    // keep the pipeline full
+                    while (sentPieces.size() < pipelineDepth) {
+                        int piece = nextPiece(sentPieces, sentPieces.isEmpty());
+                        if (piece < 0) {
+                            break;
+                        }
+                        sentPieces.addLast(piece);
+                        if (connection == null) {
+                            connection = PeerConnectionPool.getShared().acquire(host[0], Integer.parseInt(host[1]));
+                            openSockets.add(connection);
+                        }
+                        long start = (long) piece * pieceSize;
+                        connection.getOutputStream().write(PeerProtocol.rangeRequest(host[2], start,
+                                start + pieceLength(piece) - 1));
+                    }
+                    if (sentPieces.isEmpty()) {
+                        return;
+                    }
+                    boolean received = receivePiece(connection, host, sentPieces.peekFirst(), buffer);
+                    releasePiece(sentPieces.pollFirst());
+                    if (!received) {
+                        // rest of the response is still on the connection
+                        connection = discard(connection, sentPieces);
+                    }
+                    failures = 0;
+                } catch (PeerProtocolException e) {
+                    // host runs a client that can not send pieces
+                    legacyHost = host;
+                    return;
+                } catch (IOException e) {
+                    failures++;
+                    connection = discard(connection, sentPieces);
+                }
+            }
+        } finally {
+            if (connection != null && sentPieces.isEmpty()) {
+                openSockets.remove(connection);
+                connection.setReusable(true);
+                PeerConnectionPool.getShared().release(connection);
+            } else {
+                discard(connection, sentPieces);
+            }
+            synchronized (this) {
+                activeWorkers--;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * <p> Closes a connection and puts the pieces requested on it back for other connections.</p>
+     *
+     * @param connection connection to close, may be <i>null</i>.
+     * @param sentPieces pieces requested on the connection.
+     * @return PeerConnectionPool.Connection always <i>null</i>.
+     */
+    private PeerConnectionPool.Connection discard(PeerConnectionPool.Connection connection,
+                                                  ArrayDeque<Integer> sentPieces) {
+        if (connection != null) {
+            openSockets.remove(connection);
+            connection.close();
+        }
+        Integer piece;
+        while ((piece = sentPieces.pollFirst()) != null) {
+            releasePiece(piece);
+        }
+        return null;
+    }
+
+    /**
+     * <p> Marks a piece as no longer requested on a connection. An unfinished piece no other connection is
+     * working on is put back in front of the missing pieces. Wakes up connections waiting in nextPiece.</p>
+     *
+     * @param piece index of the piece.
+     */
+    private void releasePiece(int piece) {
+        if (requested.decrementAndGet(piece) == 0 && completed.get(piece) == 0) {
+            pendingPieces.addFirst(piece);
+        }
+        synchronized (this) {
+            pieceEvents++;
+            notifyAll();
+        }
+    }
+
+    /**
+     * <p> Picks the next piece to request. Missing pieces come first, when there are none the piece in progress
+     * with the fewest requests is requested again. While every connection is working on the remaining pieces it
+     * waits until a piece is released or finished.</p>
+     *
+     * @param sentPieces pieces already requested on the calling connection.
+     * @param wait true to wait while every connection is working on the remaining pieces.
+     * @return int index of the piece, -1 if there is no piece to request.
+     */
+    private int nextPiece(ArrayDeque<Integer> sentPieces, boolean wait) {
+        while (!cancelled) {
+            long events;
+            synchronized (this) {
+                events = pieceEvents;
+            }
+            Integer pending;
+            while ((pending = pendingPieces.pollFirst()) != null) {
+                if (completed.get(pending) == 0 && !sentPieces.contains(pending)) {
+                    requested.incrementAndGet(pending);
+                    return pending;
+                }
+            }
+            int best = -1;
+            boolean unfinished = false;
+            for (int i = 0; i < pieceCount; i++) {
+                if (completed.get(i) != 0) {
+                    continue;
+                }
+                unfinished = true;
+                if (!sentPieces.contains(i) && (best < 0 || requested.get(i) < requested.get(best))) {
+                    best = i;
+                }
+            }
+            if (!unfinished) {
+                return -1;
+            }
+            if (best >= 0 && requested.get(best) < hosts.size() * connectionsPerHost) {
+                requested.incrementAndGet(best);
+                return best;
+            }
+            if (!wait) {
+                return -1;
+            }
+            // every connection is already working on the remaining pieces
+            synchronized (this) {
+                // a piece released or finished since the scan started is seen by the next scan
+                while (events == pieceEvents && !cancelled) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return -1;
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * <p> Returns the length of a piece, only the last piece can be shorter than the piece size.</p>
+     *
+     * @param piece index of the piece.
+     * @return int length of the piece.
+     */
+    private int pieceLength(int piece) {
+        return (int) Math.min(pieceSize, fileSize - (long) piece * pieceSize);
+    }
+
+    /**
+     * <p> Reads the response to the request of a piece and writes the piece to the file.</p>
+     *
+     * @param connection connection the piece was requested on.
+     * @param host IP, port and path of the host.
+     * @param piece index of the piece.
+     * @param buffer buffer to receive the piece in.
+     * @return boolean true if the whole response was read, false if it was abandoned because another connection
+     * finished the piece first.
+     * @throws PeerProtocolException if host answered without a response header.
+     * @throws IOException if host could not send the piece.
+     */
+    private boolean receivePiece(PeerConnectionPool.Connection connection, String[] host, int piece, byte[] buffer)
+            throws IOException {
+        long start = (long) piece * pieceSize;
+        int length = pieceLength(piece);
+        InputStream in = connection.getInputStream();
+        if (!PeerProtocol.hasHeader(in)) {
+            // a closed connection is a failure of the host, not an older client
+            in.mark(1);
+            if (in.read() == -1) {
+                throw new IOException("Peer closed connection.");
+            }
+            in.reset();
+            throw new PeerProtocolException("Peer answered without a response header.", host);
+        }
+        String header = PeerProtocol.readHeader(in);
+        int status = PeerProtocol.statusCode(header);
+        if (status == 404) {
+            throw new IOException("File not found on peer machine.");
+        } else if (status != 206 || !("bytes " + start + "-" + (start + length - 1) + "/" + fileSize)
+                .equals(PeerProtocol.headerValue(header, "Content-Range"))) {
+            throw new IOException("Unexpected response: " + header.split("\r\n", 2)[0]);
+        }
+        protocolSupported = true;
+        int received = 0;
+        while (received < length) {
+            if (completed.get(piece) != 0) {
+                // another connection finished this piece first
+                return false;
+            }
+            int bytesRead = in.read(buffer, received, length - received);
+            if (bytesRead == -1) {
+                throw new IOException("Peer closed connection in the middle of a piece.");
+            }
+            throttle(bytesRead);
+            received += bytesRead;
+        }
+        if (hashes != null && !hashes.verifyPiece(piece, buffer, length)) {
+            throw new IOException("Piece " + piece + " does not match its hash.");
+        }
+        if (completed.get(piece) == 0) {
+            ByteBuffer data = ByteBuffer.wrap(buffer, 0, length);
+            long position = start;
+            while (data.hasRemaining()) {
+                position += fileChannel.write(data, position);
+            }
+            if (completed.compareAndSet(piece, 0, 1)) {
+                pieceCompleted(length);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * <p> Waits until the speed limits allow the received bytes.</p>
+     *
+     * @param bytes number of received bytes.
+     * @throws IOException if thread was interrupted while waiting.
+     */
+    private void throttle(int bytes) throws IOException {
+        try {
+            if (downloadLimiter != null) {
+                downloadLimiter.acquire(bytes);
+            }
+            if (globalLimiter != null) {
+                globalLimiter.acquire(bytes);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for bandwidth.");
+        }
+    }
+
+    /**
+     * <p> Updates progress after a piece was written, and wakes up the waiting download and connections waiting in
+     * nextPiece.</p>
+     *
+     * @param length length of the piece.
+     */
+    private void pieceCompleted(int length) {
+        long done = completedBytes.addAndGet(length);
+        progressBar.getProgressBar().setValue((int) (done * 100 / Math.max(1, fileSize)));
+        synchronized (this) {
+            remainingPieces--;
+            pieceEvents++;
+            notifyAll();
+        }
+    }
+}
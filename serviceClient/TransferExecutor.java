@@ -0,0 +1,266 @@
+/*
+ * 2023/10/13
+ * Anton Mishchenko
+ */
+
+package serviceClient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p> TransferExecutor class runs the blocking tasks of the client: file uploads, file downloads and the heart
+ * beat. On Java 21 and newer every task runs on its own virtual thread, so tens of thousands of blocking transfers
+ * do not need a platform thread each. On older Java versions, or when the <i>p2p.transfer.threads</i> system
+ * property is set to <i>platform</i>, a cached pool of platform threads is used instead.</p>
+ * <p> Uploads and downloads are tracked while they run. A Transfer can be cancelled, which interrupts its thread
+ * and closes the socket it attached, so transfers blocked on the network stop right away.</p>
+ */
+public class TransferExecutor {
+    private static final TransferExecutor SHARED = new TransferExecutor();
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    private final Set<Transfer> transfers = Collections.newSetFromMap(new ConcurrentHashMap<Transfer, Boolean>());
+
+    /**
+     * <p> Kind of tracked transfer.</p>
+     */
+    public enum Kind { UPLOAD, DOWNLOAD }
+
+    /**
+     * <p> Task run by a tracked transfer. The task receives its Transfer so it can attach the socket to close on
+     * cancellation. A RuntimeException thrown by run is passed to failed, so the task can report it and leave its
+     * progress bar in a final state.</p>
+     */
+    public interface TransferTask {
+        void run(Transfer transfer);
+
+        void failed(Transfer transfer, RuntimeException e);
+    }
+
+    /**
+     * <p> Constructor for TransferExecutor class. Creates virtual thread executor if it is available and not
+     * disabled, otherwise a cached pool of daemon platform threads.</p>
+     */
+    private TransferExecutor() {
+        ExecutorService virtualExecutor = null;
+        if (!"platform".equals(System.getProperty("p2p.transfer.threads"))) {
+            virtualExecutor = createVirtualThreadExecutor();
+        }
+        if (virtualExecutor != null) {
+            executor = virtualExecutor;
+            virtualThreads = true;
+        } else {
+            final AtomicInteger threadNumber = new AtomicInteger();
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "transfer-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            virtualThreads = false;
+        }
+    }
+
+    /**
+     * <p> Returns executor shared by the whole client.</p>
+     *
+     * <p> Called by: {@link serviceClient.FileTransferHandler}, {@link serviceClient.ClientGUI},
+     * {@link serviceClient.ConnectionListener}</p>
+     *
+     * @return TransferExecutor shared executor.
+     */
+    public static TransferExecutor getShared() {
+        return SHARED;
+    }
+
+    /**
+     * <p> Creates virtual thread per task executor through reflection so the client still runs on Java 8.</p>
+     *
+     * @return ExecutorService virtual thread executor or <i>null</i> if virtual threads are not available.
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * <p> Runs a tracked transfer. The Future of the transfer would keep a RuntimeException of the task to itself,
+     * so it is caught here and passed to {@link TransferTask#failed}.</p>
+     *
+     * <p> Called by: {@link serviceClient.FileTransferHandler#sendFile}, {@link serviceClient.FileTransferHandler#requestFile}</p>
+     *
+     * @param kind kind of the transfer.
+     * @param task task performing the transfer.
+     * @return Transfer handle that can be used to cancel the transfer.
+     */
+    public Transfer execute(Kind kind, final TransferTask task) {
+        final Transfer transfer = new Transfer(kind);
+        transfers.add(transfer);
+        try {
+            transfer.future = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!transfer.isCancelled()) {
+                            task.run(transfer);
+                        }
+                    } catch (RuntimeException e) {
+                        task.failed(transfer, e);
+                    } finally {
+                        transfer.closeResource();
+                        transfers.remove(transfer);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            transfers.remove(transfer);
+            throw e;
+        }
+        return transfer;
+    }
+
+    /**
+     * <p> Runs an untracked task, used for the heart beat.</p>
+     *
+     * <p> Called by: {@link serviceClient.ClientGUI#heartBeat}</p>
+     *
+     * @param task task to run.
+     */
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * <p> Cancels all running transfers of the given kind.</p>
+     *
+     * <p> Called by: {@link serviceClient.ConnectionListener#closeConnectionListener}</p>
+     *
+     * @param kind kind of transfers to cancel.
+     * @return int number of cancelled transfers.
+     */
+    public int cancelAll(Kind kind) {
+        int cancelled = 0;
+        for (Transfer transfer : transfers) {
+            if (transfer.kind == kind) {
+                transfer.cancel();
+                cancelled++;
+            }
+        }
+        return cancelled;
+    }
+
+    /**
+     * <p> Returns the number of running transfers of the given kind.</p>
+     *
+     * @param kind kind of transfers to count.
+     * @return int number of running transfers.
+     */
+    public int getActiveCount(Kind kind) {
+        int count = 0;
+        for (Transfer transfer : transfers) {
+            if (transfer.kind == kind) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * <p> Returns true if tasks run on virtual threads.</p>
+     *
+     * @return boolean true if virtual threads are used.
+     */
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * <p> Running upload or download. Holds the socket or stream to close when the transfer is cancelled.</p>
+     */
+    public static class Transfer {
+        private final Kind kind;
+        private volatile Future<?> future;
+        private volatile Closeable resource;
+        private volatile boolean cancelled = false;
+
+        private Transfer(Kind kind) {
+            this.kind = kind;
+        }
+
+        /**
+         * <p> Attaches the resource the transfer is blocked on. It is closed when the transfer is cancelled or
+         * finishes. If the transfer was already cancelled the resource is closed right away. Attaching <i>null</i>
+         * detaches the resource, so a connection can stay open for the next transfer.</p>
+         *
+         * @param resource socket or stream used by the transfer.
+         */
+        public void attach(Closeable resource) {
+            this.resource = resource;
+            if (cancelled) {
+                closeResource();
+            }
+        }
+
+        /**
+         * <p> Cancels the transfer. Its thread is interrupted and the attached resource is closed.</p>
+         *
+         * <p> Called by: {@link serviceClient.TransferExecutor#cancelAll}, {@link serviceClient.ProgressBar}</p>
+         */
+        public void cancel() {
+            cancelled = true;
+            Future<?> running = future;
+            if (running != null) {
+                running.cancel(true);
+            }
+            closeResource();
+        }
+
+        /**
+         * <p> Returns true if the transfer was cancelled.</p>
+         *
+         * @return boolean true if cancelled.
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * <p> Returns true if the transfer finished or was cancelled.</p>
+         *
+         * @return boolean true if transfer is no longer running.
+         */
+        public boolean isDone() {
+            Future<?> running = future;
+            return cancelled || (running != null && running.isDone());
+        }
+
+        private void closeResource() {
+            Closeable attached = resource;
+            if (attached == null) {
+                return;
+            }
+            try {
+                attached.close();
+            } catch (IOException e) {
+                // transfer is stopping either way
+            }
+        }
+    }
+}